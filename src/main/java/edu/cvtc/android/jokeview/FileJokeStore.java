@@ -0,0 +1,339 @@
+package edu.cvtc.android.jokeview;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.charset.Charset;
+import java.util.List;
+
+/**
+ * JokeStore kept in a single file, using only plain Java.
+ *
+ * The file is a log of every write: each insert, rating, text change and delete is
+ * appended as a record and flushed, so a write never rewrites what is already there.
+ * Opening the store reads the log back into an InMemoryJokeStore, which then answers
+ * every read. A record cut short by a crash is dropped from the end of the log.
+ *
+ * Once the log holds more than COMPACT_RATIO records per live joke, it is rewritten
+ * with one insert per joke, so it never grows much past the size of the jokes in it.
+ * It is also compacted when the store is closed.
+ *
+ * Every method is synchronized.
+ */
+public class FileJokeStore implements JokeStore {
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private static final int MAGIC = 0x4a4b4c31; // "JKL1"
+
+    /**
+     * Record types. NEXT_ID is written by compaction so deleted IDs are never reused.
+     */
+    private static final byte RECORD_INSERT = 1;
+    private static final byte RECORD_RATING = 2;
+    private static final byte RECORD_TEXT = 3;
+    private static final byte RECORD_DELETE = 4;
+    private static final byte RECORD_NEXT_ID = 5;
+
+    private static final int COMPACT_RATIO = 2;
+
+    /**
+     * Logs smaller than this are never compacted, to avoid rewriting small stores over and over.
+     */
+    private static final int COMPACT_MIN_RECORDS = 1000;
+
+    private final File file;
+    private final InMemoryJokeStore jokes = new InMemoryJokeStore();
+
+    private DataOutputStream log;
+    private int recordCount;
+
+    /**
+     * Opens the store in a file, creating the file if it does not exist.
+     *
+     * @throws IOException
+     *          If the file could not be read or is not a joke log.
+     */
+    public FileJokeStore(final File file) throws IOException {
+        this.file = file;
+
+        if (file.exists() && file.length() > 0) {
+            replay();
+        } else {
+            writeHeader(file);
+        }
+
+        log = openLog();
+    }
+
+    @Override
+    public synchronized long insert(final String text, final int rating) {
+        final long id = jokes.insert(text, rating);
+
+        if (-1 != id) {
+            final DataOutputStream out = startRecord(RECORD_INSERT, id);
+            try {
+                out.writeByte(rating);
+                writeText(out, text);
+            } catch (IOException e) {
+                throw new IllegalStateException("Unable to write " + file, e);
+            }
+            endRecord();
+        }
+
+        return id;
+    }
+
+    @Override
+    public synchronized boolean updateRating(final long id, final int rating) {
+        if (!jokes.updateRating(id, rating)) {
+            return false;
+        }
+
+        try {
+            startRecord(RECORD_RATING, id).writeByte(rating);
+        } catch (IOException e) {
+            throw new IllegalStateException("Unable to write " + file, e);
+        }
+        endRecord();
+        return true;
+    }
+
+    /**
+     * Writes a rating record for every joke found, as updateRating does.
+     */
+    @Override
+    public synchronized int updateRatings(final long[] ids, final int rating) {
+        int found = 0;
+        for (final long id : ids) {
+            if (updateRating(id, rating)) {
+                found++;
+            }
+        }
+        return found;
+    }
+
+    @Override
+    public synchronized boolean updateText(final long id, final String text) {
+        if (!jokes.updateText(id, text)) {
+            return false;
+        }
+
+        try {
+            writeText(startRecord(RECORD_TEXT, id), text);
+        } catch (IOException e) {
+            throw new IllegalStateException("Unable to write " + file, e);
+        }
+        endRecord();
+        return true;
+    }
+
+    @Override
+    public synchronized boolean delete(final long id) {
+        if (!jokes.delete(id)) {
+            return false;
+        }
+
+        startRecord(RECORD_DELETE, id);
+        endRecord();
+        return true;
+    }
+
+    @Override
+    public List<Joke> queryPage(final int filter, final long afterId, final int limit) {
+        return jokes.queryPage(filter, afterId, limit);
+    }
+
+    @Override
+    public List<Joke> search(final String text, final int limit) {
+        return jokes.search(text, limit);
+    }
+
+    @Override
+    public int count(final int filter) {
+        return jokes.count(filter);
+    }
+
+    /**
+     * Rewrites the log with one record per joke. The new log is written next to the
+     * old one and renamed over it, so a crash part way through leaves the old log.
+     */
+    public synchronized void compact() throws IOException {
+        final File compacted = new File(file.getPath() + ".compact");
+
+        writeHeader(compacted);
+
+        final DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(compacted, true)));
+        int records = 0;
+        try {
+            out.writeByte(RECORD_NEXT_ID);
+            out.writeLong(jokes.getNextId());
+            records++;
+
+            for (final Joke joke : jokes.getAll()) {
+                out.writeByte(RECORD_INSERT);
+                out.writeLong(joke.getId());
+                out.writeByte(joke.getRating());
+                writeText(out, joke.getText());
+                records++;
+            }
+        } finally {
+            out.close();
+        }
+
+        log.close();
+
+        if (!compacted.renameTo(file) && !(file.delete() && compacted.renameTo(file))) {
+            log = openLog();
+            throw new IOException("Unable to replace " + file);
+        }
+
+        log = openLog();
+        recordCount = records;
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        if (null == log) {
+            return;
+        }
+
+        try {
+            compact();
+        } finally {
+            log.close();
+            log = null;
+        }
+    }
+
+    /**
+     * Reads the whole log into memory, then cuts off a last record that was only
+     * partly written.
+     */
+    private void replay() throws IOException {
+        final DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+        long validLength = 0;
+
+        try {
+            if (MAGIC != in.readInt()) {
+                throw new IOException("Not a joke log: " + file);
+            }
+            validLength = 4;
+
+            while (true) {
+                final int type = in.read();
+                if (-1 == type) {
+                    break;
+                }
+
+                final long id = in.readLong();
+                int length = 9;
+
+                switch (type) {
+                    case RECORD_INSERT:
+                        final int rating = in.readByte();
+                        final byte[] text = readText(in);
+                        jokes.put(id, new String(text, UTF_8), rating);
+                        length += 1 + 4 + text.length;
+                        break;
+                    case RECORD_RATING:
+                        jokes.updateRating(id, in.readByte());
+                        length += 1;
+                        break;
+                    case RECORD_TEXT:
+                        final byte[] newText = readText(in);
+                        jokes.updateText(id, new String(newText, UTF_8));
+                        length += 4 + newText.length;
+                        break;
+                    case RECORD_DELETE:
+                        jokes.delete(id);
+                        break;
+                    case RECORD_NEXT_ID:
+                        jokes.setNextId(id);
+                        break;
+                    default:
+                        throw new IOException("Unknown record " + type + " at " + validLength + " in " + file);
+                }
+
+                validLength += length;
+                recordCount++;
+            }
+        } catch (EOFException e) {
+            // The last record was cut short; everything before it is kept.
+        } finally {
+            in.close();
+        }
+
+        if (validLength < file.length()) {
+            final RandomAccessFile truncate = new RandomAccessFile(file, "rw");
+            try {
+                truncate.setLength(validLength);
+            } finally {
+                truncate.close();
+            }
+        }
+    }
+
+    private DataOutputStream startRecord(final byte type, final long id) {
+        try {
+            log.writeByte(type);
+            log.writeLong(id);
+        } catch (IOException e) {
+            throw new IllegalStateException("Unable to write " + file, e);
+        }
+        return log;
+    }
+
+    /**
+     * Flushes the record just written and compacts the log once it has grown too long.
+     */
+    private void endRecord() {
+        try {
+            log.flush();
+            recordCount++;
+
+            if (recordCount > COMPACT_MIN_RECORDS && recordCount > COMPACT_RATIO * jokes.count(Joke.SHOW_ALL)) {
+                compact();
+            }
+        } catch (IOException e) {
+            throw new IllegalStateException("Unable to write " + file, e);
+        }
+    }
+
+    private DataOutputStream openLog() throws IOException {
+        return new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file, true)));
+    }
+
+    private static void writeHeader(final File file) throws IOException {
+        final DataOutputStream out = new DataOutputStream(new FileOutputStream(file));
+        try {
+            out.writeInt(MAGIC);
+        } finally {
+            out.close();
+        }
+    }
+
+    private static void writeText(final DataOutputStream out, final String text) throws IOException {
+        final byte[] bytes = text.getBytes(UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static byte[] readText(final DataInputStream in) throws IOException {
+        final int length = in.readInt();
+        if (length < 0) {
+            throw new IOException("Invalid text length " + length);
+        }
+
+        final byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        return bytes;
+    }
+}
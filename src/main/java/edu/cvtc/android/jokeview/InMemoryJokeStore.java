@@ -0,0 +1,258 @@
+package edu.cvtc.android.jokeview;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Locale;
+import java.util.TreeMap;
+
+/**
+ * JokeStore that keeps every joke in memory, for tests, benchmarks, and as the
+ * working set of FileJokeStore.
+ *
+ * Jokes are kept in ID order, with a JokeIdBitmap per rating for the filters.
+ * IDs are never reused, like the joke table's autoincrement IDs. Search scans
+ * every joke, matching words the way the full-text search table does.
+ *
+ * Every method is synchronized.
+ */
+public class InMemoryJokeStore implements JokeStore {
+
+    private final TreeMap<Long, Joke> jokes = new TreeMap<>();
+    private final JokeIdBitmap[] ratings = {new JokeIdBitmap(), new JokeIdBitmap(), new JokeIdBitmap()};
+
+    private long nextId = 1;
+
+    @Override
+    public synchronized long insert(final String text, final int rating) {
+        if (null == text || !isRating(rating)) {
+            return -1;
+        }
+
+        final long id = nextId;
+        put(id, text, rating);
+        return id;
+    }
+
+    @Override
+    public synchronized boolean updateRating(final long id, final int rating) {
+        final Joke joke = jokes.get(id);
+
+        if (null == joke || !isRating(rating)) {
+            return false;
+        }
+
+        ratings[joke.getRating()].remove(id);
+        ratings[rating].add(id);
+        joke.setRating(rating);
+        return true;
+    }
+
+    @Override
+    public synchronized int updateRatings(final long[] ids, final int rating) {
+        int found = 0;
+        for (final long id : ids) {
+            if (updateRating(id, rating)) {
+                found++;
+            }
+        }
+        return found;
+    }
+
+    @Override
+    public synchronized boolean updateText(final long id, final String text) {
+        final Joke joke = jokes.get(id);
+
+        if (null == joke || null == text) {
+            return false;
+        }
+
+        joke.setText(text);
+        return true;
+    }
+
+    @Override
+    public synchronized boolean delete(final long id) {
+        final Joke joke = jokes.remove(id);
+
+        if (null == joke) {
+            return false;
+        }
+
+        ratings[joke.getRating()].remove(id);
+        return true;
+    }
+
+    @Override
+    public synchronized List<Joke> queryPage(final int filter, final long afterId, final int limit) {
+        // A negative limit is no limit, as it is to SQLite.
+        final int maxJokes = limit < 0 ? Integer.MAX_VALUE : limit;
+
+        final List<Joke> page = new ArrayList<>(Math.min(maxJokes, 256));
+
+        if (Joke.SHOW_ALL == filter) {
+            for (final Joke joke : jokes.tailMap(afterId, false).values()) {
+                if (page.size() == maxJokes) {
+                    break;
+                }
+                page.add(copy(joke));
+            }
+        } else if (isRating(filter)) {
+            long id = afterId;
+            while (page.size() < maxJokes && -1 != (id = ratings[filter].nextAfter(id))) {
+                page.add(copy(jokes.get(id)));
+            }
+        }
+
+        return page;
+    }
+
+    /**
+     * Ranks jokes by how many of their words match a search word, then by length,
+     * like JokeSearchTable.SEARCH_QUERY, including its cap on the matches ranked.
+     */
+    @Override
+    public synchronized List<Joke> search(final String text, final int limit) {
+        final int maxJokes = limit < 0 ? Integer.MAX_VALUE : limit;
+
+        final List<String> terms = toWords(text);
+        if (terms.isEmpty()) {
+            return Collections.emptyList();
+        }
+
+        final List<Match> matches = new ArrayList<>();
+
+        for (final Joke joke : jokes.values()) {
+            final int hits = countHits(toWords(joke.getText()), terms);
+            if (hits > 0) {
+                matches.add(new Match(joke, hits));
+
+                if (matches.size() == MAX_RANKED_MATCHES) {
+                    break;
+                }
+            }
+        }
+
+        Collections.sort(matches, new Comparator<Match>() {
+            @Override
+            public int compare(Match a, Match b) {
+                final int byHits = b.hits - a.hits;
+                return 0 != byHits ? byHits : a.joke.getText().length() - b.joke.getText().length();
+            }
+        });
+
+        final List<Joke> results = new ArrayList<>(Math.min(maxJokes, matches.size()));
+        for (int i = 0; i < matches.size() && i < maxJokes; i++) {
+            results.add(copy(matches.get(i).joke));
+        }
+        return results;
+    }
+
+    private static class Match {
+
+        private final Joke joke;
+        private final int hits;
+
+        private Match(final Joke joke, final int hits) {
+            this.joke = joke;
+            this.hits = hits;
+        }
+    }
+
+    @Override
+    public synchronized int count(final int filter) {
+        if (Joke.SHOW_ALL == filter) {
+            return jokes.size();
+        }
+        return isRating(filter) ? ratings[filter].cardinality() : 0;
+    }
+
+    @Override
+    public void close() {
+    }
+
+    /**
+     * Adds a joke with a known ID, such as one read back from a file.
+     */
+    synchronized void put(final long id, final String text, final int rating) {
+        delete(id);
+
+        jokes.put(id, new Joke(id, text, rating));
+        ratings[rating].add(id);
+
+        nextId = Math.max(nextId, id + 1);
+    }
+
+    synchronized long getNextId() {
+        return nextId;
+    }
+
+    synchronized void setNextId(final long nextId) {
+        this.nextId = Math.max(this.nextId, nextId);
+    }
+
+    /**
+     * Returns copies of every joke in ID order.
+     */
+    synchronized List<Joke> getAll() {
+        final List<Joke> all = new ArrayList<>(jokes.size());
+        for (final Joke joke : jokes.values()) {
+            all.add(copy(joke));
+        }
+        return all;
+    }
+
+    /**
+     * Returns the number of words matching a search term, or 0 if any term matches no word.
+     * Terms shorter than MIN_PREFIX_LENGTH only match whole words.
+     */
+    private static int countHits(final List<String> words, final List<String> terms) {
+        int total = 0;
+
+        for (final String term : terms) {
+            int termHits = 0;
+            for (final String word : words) {
+                if (term.length() < MIN_PREFIX_LENGTH ? word.equals(term) : word.startsWith(term)) {
+                    termHits++;
+                }
+            }
+
+            if (0 == termHits) {
+                return 0;
+            }
+            total += termHits;
+        }
+
+        return total;
+    }
+
+    /**
+     * Splits text into lower case words of letters and digits.
+     */
+    private static List<String> toWords(final String text) {
+        final List<String> words = new ArrayList<>();
+        final StringBuilder word = new StringBuilder();
+
+        for (int i = 0; i <= text.length(); i++) {
+            final char c = i < text.length() ? text.charAt(i) : ' ';
+
+            if (Character.isLetterOrDigit(c)) {
+                word.append(c);
+            } else if (word.length() > 0) {
+                words.add(word.toString().toLowerCase(Locale.US));
+                word.setLength(0);
+            }
+        }
+
+        return words;
+    }
+
+    private static Joke copy(final Joke joke) {
+        return new Joke(joke.getId(), joke.getText(), joke.getRating());
+    }
+
+    private static boolean isRating(final int rating) {
+        return Joke.UNRATED == rating || Joke.LIKE == rating || Joke.DISLIKE == rating;
+    }
+}
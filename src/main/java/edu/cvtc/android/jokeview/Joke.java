@@ -37,6 +37,10 @@ public class Joke {
         return text;
     }
 
+    public void setText(String text) {
+        this.text = text;
+    }
+
     public int getRating() {
         return rating;
     }
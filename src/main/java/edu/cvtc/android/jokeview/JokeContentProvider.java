@@ -1,16 +1,29 @@
 package edu.cvtc.android.jokeview;
 
 import android.content.ContentProvider;
+import android.content.ContentProviderOperation;
+import android.content.ContentProviderResult;
 import android.content.ContentValues;
+import android.content.OperationApplicationException;
 import android.content.UriMatcher;
 import android.database.Cursor;
-import android.database.sqlite.SQLiteDatabase;
+import android.database.MatrixCursor;
+import android.database.SQLException;
 import android.database.sqlite.SQLiteQueryBuilder;
 import android.net.Uri;
+import android.os.AsyncTask;
+import android.os.Bundle;
+import android.os.ParcelFileDescriptor;
 import android.support.annotation.Nullable;
+import android.util.Log;
 
+import java.io.FileDescriptor;
+import java.io.FileNotFoundException;
+import java.io.PrintWriter;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashSet;
+import java.util.Set;
 
 /**
  * Class provides content from JokeDatabaseHelper to the application.
@@ -26,12 +39,59 @@ import java.util.HashSet;
  */
 public class JokeContentProvider extends ContentProvider {
 
+    private static final String TAG = "joke_content_provider";
+
     private JokeDatabaseHelper databaseHelper;
 
+    /**
+     * Which jokes have which rating, used to answer empty filters and pages without
+     * querying. Kept in sync by every write below. Loaded in the background, and not
+     * used until it has loaded.
+     */
+    private final JokeRatingIndex ratingIndex = new JokeRatingIndex();
+
+    /**
+     * Held by every write. Writes are serialized by the database's single writer
+     * connection anyway, and holding this first lets them share the store's compiled
+     * statements. It must be taken before a transaction is begun, never inside one.
+     */
+    private final Object writeLock = new Object();
+
+    /**
+     * Every read and write of jokes goes through the store, and so do the transactions
+     * that batches of writes are made in. Reads are taken from it as cursors, since
+     * CursorLoaders need cursors. Created on first use.
+     */
+    private volatile SqliteJokeStore store;
+
+    /**
+     * Latencies of every entry point and counts of rows and notifications.
+     */
+    private final JokeProviderMetrics metrics = new JokeProviderMetrics();
+
+    /**
+     * Queries over the slow query threshold, with their plans. Only kept in debug builds.
+     */
+    private final JokeSlowQueryLog slowQueries = BuildConfig.DEBUG
+            ? new JokeSlowQueryLog(JokeSlowQueryLog.DEFAULT_CAPACITY, JokeSlowQueryLog.DEFAULT_THRESHOLD_MILLIS)
+            : null;
+
+    /**
+     * Change notifications held back while the calling thread is applying a batch,
+     * so they are sent once, after the batch commits.
+     */
+    private final ThreadLocal<Set<Uri>> batchNotifications = new ThreadLocal<>();
+
+    /**
+     * Rating index changes held back while the calling thread is in a transaction,
+     * so the index only ever holds committed rows.
+     */
+    private final ThreadLocal<JokeRatingIndex.Changes> pendingIndexChanges = new ThreadLocal<>();
+
     /**
      * ContentProvider URI constants.
      */
-    private static final String AUTHORITY = "edu.cvtc.android.jokeview.provider";
+    public static final String AUTHORITY = "edu.cvtc.android.jokeview.provider";
     private static final String BASE_PATH = "joke_table";
 
     /**
@@ -40,11 +100,76 @@ public class JokeContentProvider extends ContentProvider {
      */
     public static final Uri CONTENT_URI = Uri.parse("content://" + AUTHORITY + "/" + BASE_PATH);
 
+    /**
+     * Query parameter holding the number of rows to return for a page of jokes.
+     */
+    public static final String PARAM_LIMIT = "limit";
+    public static final int DEFAULT_PAGE_SIZE = 50;
+
+    /**
+     * Query parameter that, set to "false" on a bulkInsert URI, leaves the change
+     * notification to the caller. Used by long imports that notify once at the end.
+     */
+    public static final String PARAM_NOTIFY = "notify";
+
+    /**
+     * Query parameters that, set on a bulkInsert URI, save an import checkpoint in the
+     * same transaction as the jokes: the source being imported, the byte offset of the
+     * record after the batch, and the number of jokes imported before the batch.
+     * The batch's jokes are added to the count.
+     */
+    public static final String PARAM_IMPORT_SOURCE = "import_source";
+    public static final String PARAM_IMPORT_OFFSET = "import_offset";
+    public static final String PARAM_IMPORT_COUNT = "import_count";
+
+    /**
+     * Query parameter holding the format of an export, one of the JokeExporter formats.
+     */
+    public static final String PARAM_FORMAT = "format";
+
+    /**
+     * Method for call that returns the number of jokes with each rating as an int array
+     * under EXTRA_COUNTS, indexed by the Joke rating constants up to and including Joke.SHOW_ALL.
+     */
+    public static final String METHOD_COUNTS = "counts";
+    public static final String EXTRA_COUNTS = "counts";
+
+    /**
+     * Method for call that returns the JokeProviderMetrics histograms and counters as longs
+     * under their JokeProviderMetrics keys, along with how many write statements were compiled,
+     * under EXTRA_COMPILE_COUNT, and how many were executed, under EXTRA_EXECUTE_COUNT.
+     */
+    public static final String METHOD_METRICS = "metrics";
+    public static final String EXTRA_COMPILE_COUNT = "compile_count";
+    public static final String EXTRA_EXECUTE_COUNT = "execute_count";
+
+    /**
+     * Method for call that returns the slow query log as a string ArrayList under
+     * EXTRA_SLOW_QUERIES, oldest first. Only answered in debug builds.
+     */
+    public static final String METHOD_SLOW_QUERIES = "slow_queries";
+    public static final String EXTRA_SLOW_QUERIES = "slow_queries";
+
+    /**
+     * Methods for call that take an import source as arg. METHOD_IMPORT_CHECKPOINT returns
+     * its checkpoint under EXTRA_IMPORT_OFFSET and EXTRA_IMPORT_COUNT, or null if there is
+     * none, and METHOD_CLEAR_IMPORT_CHECKPOINT removes it once the import is done.
+     */
+    public static final String METHOD_IMPORT_CHECKPOINT = "import_checkpoint";
+    public static final String METHOD_CLEAR_IMPORT_CHECKPOINT = "clear_import_checkpoint";
+    public static final String EXTRA_IMPORT_OFFSET = "import_offset";
+    public static final String EXTRA_IMPORT_COUNT = "import_count";
+
     /**
      * Values for the UriMatcher.
      */
     private static final int UPDATE = 1;
     private static final int QUERY = 2;
+    private static final int QUERY_PAGE = 3;
+    private static final int SEARCH = 4;
+    private static final int JOKES = 5;
+    private static final int EXPORT = 6;
+    private static final int RATING = 7;
 
     /**
      * UriMatcher we can use to match content URIs with possible
@@ -52,10 +177,59 @@ public class JokeContentProvider extends ContentProvider {
      */
     private static final UriMatcher matcher = new UriMatcher(UriMatcher.NO_MATCH);
     static {
+        matcher.addURI(AUTHORITY, BASE_PATH, JOKES);
         matcher.addURI(AUTHORITY, BASE_PATH + "/joke/#", UPDATE);
         matcher.addURI(AUTHORITY, BASE_PATH + "/filter/#", QUERY);
+        matcher.addURI(AUTHORITY, BASE_PATH + "/filter/#/after/#", QUERY_PAGE);
+        matcher.addURI(AUTHORITY, BASE_PATH + "/search/*", SEARCH);
+        matcher.addURI(AUTHORITY, BASE_PATH + "/export", EXPORT);
+        matcher.addURI(AUTHORITY, BASE_PATH + "/rating/#", RATING);
+    }
+
+    /**
+     * Builds the URI for a page of jokes matching a filter.
+     *
+     * @param filter
+     *          The rating to filter by, or Joke.SHOW_ALL.
+     * @param afterId
+     *          The ID of the last joke of the previous page, or 0 for the first page.
+     * @param limit
+     *          The maximum number of jokes in the page.
+     */
+    public static Uri getPageUri(final int filter, final long afterId, final int limit) {
+        return Uri.parse(CONTENT_URI + "/filter/" + filter + "/after/" + afterId + "?" + PARAM_LIMIT + "=" + limit);
+    }
+
+    /**
+     * Builds the URI for a full-text search of joke text.
+     *
+     * @param text
+     *          The text to search for, as typed by the user.
+     */
+    public static Uri getSearchUri(final String text) {
+        return CONTENT_URI.buildUpon().appendPath("search").appendPath(text).build();
+    }
+
+    /**
+     * Builds the URI for exporting the whole joke table through openFile.
+     *
+     * @param format
+     *          JokeExporter.FORMAT_JSON_LINES or JokeExporter.FORMAT_BINARY.
+     */
+    public static Uri getExportUri(final int format) {
+        return Uri.parse(CONTENT_URI + "/export?" + PARAM_FORMAT + "=" + format);
     }
 
+    /**
+     * Builds the URI for setting a rating on every joke matched by the selection
+     * passed to update, so many jokes can be rated with one statement.
+     *
+     * @param rating
+     *          Joke.LIKE, Joke.DISLIKE or Joke.UNRATED.
+     */
+    public static Uri getRatingUri(final int rating) {
+        return Uri.parse(CONTENT_URI + "/rating/" + rating);
+    }
 
     /**
      * Initializes our databaseHelper.
@@ -73,9 +247,27 @@ public class JokeContentProvider extends ContentProvider {
      * returns a list of jokes from the joke table matching that filter
      * in the form of a Cursor object.
      *
+     * Page URIs return at most PARAM_LIMIT jokes with an ID greater than the given one,
+     * or every such joke if the limit is negative. Paging on the ID instead of an offset
+     * means every page costs the same to fetch, no matter how deep into the table it is.
+     * Page and search URIs always return the joke table columns in JokeTable order.
+     *
+     * The rows are counted before the cursor is returned, which runs the query here,
+     * where it is timed, instead of on the first read. CursorLoader counts them right away anyway.
      */
     @Override
     public Cursor query(Uri uri, String[] projection, String selection, String[] selectionArgs, String sortOrder) {
+        final long start = System.nanoTime();
+        try {
+            final Cursor cursor = queryJokes(uri, projection, selection);
+            metrics.addRowsReturned(cursor.getCount());
+            return cursor;
+        } finally {
+            metrics.record(JokeProviderMetrics.QUERY, start);
+        }
+    }
+
+    private Cursor queryJokes(final Uri uri, final String[] projection, String selection) {
 
         final SQLiteQueryBuilder queryBuilder = new SQLiteQueryBuilder();
 
@@ -85,9 +277,16 @@ public class JokeContentProvider extends ContentProvider {
 
         int uriCode = matcher.match(uri);
         switch (uriCode) {
+            case SEARCH:
+                return search(uri);
             case QUERY:
 
                 final String filter = uri.getLastPathSegment();
+                final JokeRatingIndex index = getRatingIndex();
+
+                if (null != index && 0 == index.getCount(Integer.parseInt(filter))) {
+                    return emptyCursor(uri);
+                }
 
                 if (!filter.equals("" + Joke.SHOW_ALL)) {
                     queryBuilder.appendWhere(JokeTable.KEY_RATING + "=" + filter);
@@ -96,31 +295,226 @@ public class JokeContentProvider extends ContentProvider {
                 }
 
                 break;
+            case QUERY_PAGE:
+
+                final int pageFilter = Integer.parseInt(uri.getPathSegments().get(2));
+                final long afterId = Long.parseLong(uri.getLastPathSegment());
+                final JokeRatingIndex pageIndex = getRatingIndex();
+
+                if (null == pageIndex) {
+                    return watch(uri, getStore().queryPageCursor(pageFilter, afterId, getLimit(uri)));
+                }
+
+                /**
+                 * The rating index knows where the page starts, so an empty page is
+                 * answered without a query. Otherwise the index only gives the page's
+                 * first ID: the rows are still read by the page's range query, served by
+                 * the (rating, _id) index, and bounded by the limit rather than by an ID
+                 * the rating index gives for the page's end. So a write that commits
+                 * between reading the index and running the query can never make the
+                 * page come back short, which would end the list early.
+                 */
+                final long[] range = pageIndex.getPageRange(pageFilter, afterId, 1);
+
+                if (null == range) {
+                    return emptyCursor(uri);
+                }
+
+                return watch(uri, getStore().queryPageCursor(pageFilter, range[0] - 1, getLimit(uri)));
             default:
                 throw new IllegalArgumentException("Unknown URI: " + uri);
         }
 
-        final SQLiteDatabase database = databaseHelper.getWritableDatabase();
-        final Cursor cursor = queryBuilder.query(database, projection, selection, null, null, null, null);
-
         /**
-         * Register to watch a content URI for changes. We need to provide
-         * the content resolver from the this context. The listener attached to this
-         * resolver will be notified.
+         * Ordering by ID lets SQLite read the filtered rows straight out of the
+         * (rating, _id) index instead of scanning and sorting the table.
          */
+        final String sql = queryBuilder.buildQuery(projection, selection, null, null, JokeTable.KEY_ID, null);
+
+        return watch(uri, getStore().query(sql, null));
+    }
+
+    /**
+     * Registers a query's cursor to watch a content URI for changes. We need to provide
+     * the content resolver from the this context. The listener attached to this
+     * resolver will be notified.
+     */
+    private Cursor watch(final Uri uri, final Cursor cursor) {
+        cursor.setNotificationUri(getContext().getContentResolver(), uri);
+        return cursor;
+    }
+
+    /**
+     * Searches joke text through the full-text search table, matching every typed
+     * word as a prefix and returning the best matches first.
+     */
+    private Cursor search(final Uri uri) {
+
+        final int limit = null != uri.getQueryParameter(PARAM_LIMIT)
+                ? getLimit(uri) : JokeSearchTable.SEARCH_LIMIT;
+
+        final Cursor cursor = getStore().searchCursor(uri.getLastPathSegment(), limit);
+
+        return null != cursor ? watch(uri, cursor) : emptyCursor(uri);
+    }
+
+    /**
+     * Returns a Cursor with the joke table columns and no rows, which is
+     * still notified of changes like any other query result.
+     */
+    private Cursor emptyCursor(final Uri uri) {
+        final Cursor cursor = new MatrixCursor(new String[] {JokeTable.KEY_ID, JokeTable.KEY_TEXT, JokeTable.KEY_RATING});
+
         cursor.setNotificationUri(getContext().getContentResolver(), uri);
 
         return cursor;
     }
 
     /**
-     * We don't care of MIME types for this application.
+     * Returns the rating index, or null if it is not loaded yet, in which case the first
+     * caller starts loading it on a background thread. Loading reads the whole table, so
+     * it is kept off the query threads, and reads on a reader connection, without a
+     * transaction, so it never holds up the writes.
+     */
+    private JokeRatingIndex getRatingIndex() {
+        if (ratingIndex.isLoaded()) {
+            return ratingIndex;
+        }
+
+        if (ratingIndex.startLoading()) {
+            AsyncTask.THREAD_POOL_EXECUTOR.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        ratingIndex.load(databaseHelper.getReadableDatabase());
+                    } catch (SQLException e) {
+                        // The next query starts another load.
+                        Log.e(TAG, "Unable to load the rating index", e);
+                    }
+                }
+            });
+        }
+        return null;
+    }
+
+    /**
+     * Returns the joke store, creating it on first use. Writes through it must be made
+     * while holding the write lock; reads may be made from any thread.
+     */
+    private SqliteJokeStore getStore() {
+        SqliteJokeStore result = store;
+
+        if (null == result) {
+            synchronized (writeLock) {
+                if (null == store) {
+                    store = new SqliteJokeStore(databaseHelper);
+                    store.setSlowQueryLog(slowQueries);
+                }
+                result = store;
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Answers METHOD_COUNTS from the count table, which triggers keep up to date,
+     * so the counts cost the same no matter how many jokes there are,
+     * as well as METHOD_METRICS, the import checkpoint methods and, in debug builds,
+     * METHOD_SLOW_QUERIES.
+     */
+    @Nullable
+    @Override
+    public Bundle call(String method, String arg, Bundle extras) {
+
+        if (METHOD_COUNTS.equals(method)) {
+            final Bundle result = new Bundle();
+            result.putIntArray(EXTRA_COUNTS, JokeCountTable.getCounts(databaseHelper.getReadableDatabase()));
+            return result;
+        }
+
+        if (METHOD_METRICS.equals(method)) {
+            final Bundle result = new Bundle();
+            metrics.writeTo(result);
+            synchronized (writeLock) {
+                result.putLong(EXTRA_COMPILE_COUNT, null != store ? store.getStatements().getCompileCount() : 0);
+                result.putLong(EXTRA_EXECUTE_COUNT, null != store ? store.getStatements().getExecuteCount() : 0);
+            }
+            return result;
+        }
+
+        if (METHOD_IMPORT_CHECKPOINT.equals(method)) {
+            final long[] checkpoint = JokeImportTable.getCheckpoint(databaseHelper.getReadableDatabase(), arg);
+            if (null == checkpoint) {
+                return null;
+            }
+
+            final Bundle result = new Bundle();
+            result.putLong(EXTRA_IMPORT_OFFSET, checkpoint[0]);
+            result.putLong(EXTRA_IMPORT_COUNT, checkpoint[1]);
+            return result;
+        }
+
+        if (METHOD_CLEAR_IMPORT_CHECKPOINT.equals(method)) {
+            synchronized (writeLock) {
+                JokeImportTable.clearCheckpoint(databaseHelper.getWritableDatabase(), arg);
+            }
+            return null;
+        }
+
+        if (METHOD_SLOW_QUERIES.equals(method) && null != slowQueries) {
+            final Bundle result = new Bundle();
+            result.putStringArrayList(EXTRA_SLOW_QUERIES, slowQueries.getEntries());
+            return result;
+        }
+
+        return super.call(method, arg, extras);
+    }
+
+    /**
+     * Prints the metrics and, in debug builds, the slow query log, for dumpsys.
+     */
+    @Override
+    public void dump(FileDescriptor fd, PrintWriter writer, String[] args) {
+        metrics.dump(writer);
+
+        if (null != slowQueries) {
+            slowQueries.dump(writer);
+        }
+    }
+
+    /**
+     * We don't care of MIME types for this application, except for exports
+     * that are handed to other apps.
      */
     @Override
     public String getType(Uri uri) {
+        if (EXPORT == matcher.match(uri)) {
+            return JokeExporter.getMimeType(getExportFormat(uri));
+        }
         return null;
     }
 
+    /**
+     * Opens a read-only pipe that the whole joke table is streamed into by a JokeExporter
+     * on a background thread, so the export never has to fit in memory or in a file.
+     */
+    @Override
+    public ParcelFileDescriptor openFile(Uri uri, String mode) throws FileNotFoundException {
+
+        if (EXPORT != matcher.match(uri) || !"r".equals(mode)) {
+            throw new FileNotFoundException("Unable to open " + uri + " in mode " + mode);
+        }
+
+        final int format = getExportFormat(uri);
+
+        return openPipeHelper(uri, JokeExporter.getMimeType(format), null, format, new JokeExporter(databaseHelper));
+    }
+
+    private static int getExportFormat(final Uri uri) {
+        return ("" + JokeExporter.FORMAT_BINARY).equals(uri.getQueryParameter(PARAM_FORMAT))
+                ? JokeExporter.FORMAT_BINARY : JokeExporter.FORMAT_JSON_LINES;
+    }
+
     /**
      * Inserts a new joke into the joke table given a specific URI for a joke,
      * and the values of that joke, writes a new row in the table filled with
@@ -129,8 +523,15 @@ public class JokeContentProvider extends ContentProvider {
      */
     @Override
     public Uri insert(Uri uri, ContentValues values) {
+        final long start = System.nanoTime();
+        try {
+            return insertJoke(uri, values);
+        } finally {
+            metrics.record(JokeProviderMetrics.INSERT, start);
+        }
+    }
 
-        final SQLiteDatabase database = databaseHelper.getWritableDatabase();
+    private Uri insertJoke(final Uri uri, final ContentValues values) {
 
         long id = 0; // ID of the inserted joke.
 
@@ -145,7 +546,23 @@ public class JokeContentProvider extends ContentProvider {
              */
             case UPDATE:
 
-                id = database.insert(JokeTable.TABLE_NAME, null, values);
+                final String text = values.getAsString(JokeTable.KEY_TEXT);
+                final Integer rating = values.getAsInteger(JokeTable.KEY_RATING);
+
+                synchronized (writeLock) {
+                    try {
+                        id = getStore().insert(text, null != rating ? rating : Joke.UNRATED);
+                    } catch (SQLException | IllegalArgumentException e) {
+                        // Like SQLiteDatabase.insert, a row that can't be inserted gives an ID of -1.
+                        Log.e(TAG, "Unable to insert " + values, e);
+                        id = -1;
+                    }
+
+                    if (-1 != id) {
+                        putIndexRating(id, null != rating ? rating : Joke.UNRATED);
+                        metrics.addRowsWritten(1);
+                    }
+                }
 
                 break;
             default:
@@ -155,7 +572,7 @@ public class JokeContentProvider extends ContentProvider {
         /**
          * Alert any watchers of an underlying data change for content/view refreshing.
          */
-        getContext().getContentResolver().notifyChange(uri, null);
+        notifyChange(uri);
 
         return Uri.parse(BASE_PATH + "/" + id);
     }
@@ -168,8 +585,15 @@ public class JokeContentProvider extends ContentProvider {
      */
     @Override
     public int delete(Uri uri, String selection, String[] selectionArgs) {
+        final long start = System.nanoTime();
+        try {
+            return deleteJoke(uri);
+        } finally {
+            metrics.record(JokeProviderMetrics.DELETE, start);
+        }
+    }
 
-        final SQLiteDatabase database = databaseHelper.getWritableDatabase();
+    private int deleteJoke(final Uri uri) {
 
         int rowsDeleted = 0;
 
@@ -177,9 +601,15 @@ public class JokeContentProvider extends ContentProvider {
         switch (uriCode) {
             case UPDATE:
 
-                final String id = uri.getLastPathSegment();
+                final long id = Long.parseLong(uri.getLastPathSegment());
 
-                rowsDeleted = database.delete(JokeTable.TABLE_NAME, JokeTable.KEY_ID + "=" + id, null);
+                synchronized (writeLock) {
+                    rowsDeleted = getStore().delete(id) ? 1 : 0;
+
+                    if (rowsDeleted > 0) {
+                        removeIndexRating(id);
+                    }
+                }
 
                 break;
             default:
@@ -187,7 +617,8 @@ public class JokeContentProvider extends ContentProvider {
         }
 
         if (rowsDeleted > 0) {
-            getContext().getContentResolver().notifyChange(uri, null);
+            metrics.addRowsWritten(rowsDeleted);
+            notifyChange(uri);
         }
 
         return rowsDeleted;
@@ -196,12 +627,20 @@ public class JokeContentProvider extends ContentProvider {
     /**
      * Updates a row in the joke table given a specific URI containing a joke ID
      * and the new joke values, updates the values in the row with the matching ID
-     * in the table.
+     * in the table. Given a rating URI, sets that rating on every joke whose ID
+     * is one of the selectionArgs instead; the selection is ignored.
      */
     @Override
     public int update(Uri uri, ContentValues values, String selection, String[] selectionArgs) {
+        final long start = System.nanoTime();
+        try {
+            return updateJokes(uri, values, selectionArgs);
+        } finally {
+            metrics.record(JokeProviderMetrics.UPDATE, start);
+        }
+    }
 
-        final SQLiteDatabase database = databaseHelper.getWritableDatabase();
+    private int updateJokes(final Uri uri, final ContentValues values, final String[] selectionArgs) {
 
         int rowsUpdated = 0;
 
@@ -209,9 +648,50 @@ public class JokeContentProvider extends ContentProvider {
         switch (uriCode) {
             case UPDATE:
 
-                final String id = uri.getLastPathSegment();
+                final long id = Long.parseLong(uri.getLastPathSegment());
 
-                rowsUpdated = database.update(JokeTable.TABLE_NAME, values, JokeTable.KEY_ID + "=" + id, null);
+                synchronized (writeLock) {
+                    rowsUpdated = getStore().update(id, values) ? 1 : 0;
+
+                    if (rowsUpdated > 0 && values.containsKey(JokeTable.KEY_RATING)) {
+                        putIndexRating(id, values.getAsInteger(JokeTable.KEY_RATING));
+                    }
+                }
+
+                break;
+            case RATING:
+
+                if (null == selectionArgs || 0 == selectionArgs.length) {
+                    throw new IllegalArgumentException("Rating updates need joke IDs: " + uri);
+                }
+
+                final int rating = Integer.parseInt(uri.getLastPathSegment());
+                final long[] ids = new long[selectionArgs.length];
+                for (int i = 0; i < ids.length; i++) {
+                    ids[i] = Long.parseLong(selectionArgs[i]);
+                }
+
+                synchronized (writeLock) {
+                    final SqliteJokeStore store = getStore();
+
+                    // Every statement of the update commits at once.
+                    store.beginTransaction();
+                    try {
+                        rowsUpdated = store.updateRatings(ids, rating);
+                        store.setTransactionSuccessful();
+                    } finally {
+                        store.endTransaction();
+                    }
+
+                    if (rowsUpdated == ids.length) {
+                        for (final long jokeId : ids) {
+                            putIndexRating(jokeId, rating);
+                        }
+                    } else {
+                        // Some of the IDs were not in the table, or were repeated.
+                        invalidateIndex();
+                    }
+                }
 
                 break;
             default:
@@ -219,12 +699,234 @@ public class JokeContentProvider extends ContentProvider {
         }
 
         if (rowsUpdated > 0) {
-            getContext().getContentResolver().notifyChange(uri, null);
+            metrics.addRowsWritten(rowsUpdated);
+            notifyChange(uri);
         }
 
         return rowsUpdated;
     }
 
+    /**
+     * Inserts many jokes in a single transaction, reusing the compiled insert statement
+     * for every row and sending a single change notification for the whole table
+     * once they are all written. Accepts the table URI or a joke URI, and saves
+     * an import checkpoint in the same transaction if the URI has PARAM_IMPORT_SOURCE.
+     */
+    @Override
+    public int bulkInsert(Uri uri, ContentValues[] values) {
+        final long start = System.nanoTime();
+        try {
+            return bulkInsertJokes(uri, values);
+        } finally {
+            metrics.record(JokeProviderMetrics.BULK_INSERT, start);
+        }
+    }
+
+    private int bulkInsertJokes(final Uri uri, final ContentValues[] values) {
+
+        final int uriCode = matcher.match(uri);
+        switch (uriCode) {
+            case JOKES:
+            case UPDATE:
+                break;
+            default:
+                throw new IllegalArgumentException("Unknown URI: " + uri);
+        }
+
+        int rowsInserted = 0;
+        boolean successful = false;
+
+        synchronized (writeLock) {
+            final SqliteJokeStore store = getStore();
+            final JokeRatingIndex.Changes indexChanges = beginIndexChanges();
+
+            store.beginTransaction();
+            try {
+                for (final ContentValues joke : values) {
+                    final Integer rating = joke.getAsInteger(JokeTable.KEY_RATING);
+
+                    final long id = store.insert(joke.getAsString(JokeTable.KEY_TEXT),
+                            null != rating ? rating : Joke.UNRATED);
+                    if (-1 != id) {
+                        putIndexRating(id, null != rating ? rating : Joke.UNRATED);
+                        rowsInserted++;
+                    }
+                }
+
+                final String importSource = uri.getQueryParameter(PARAM_IMPORT_SOURCE);
+                if (null != importSource) {
+                    databaseHelper.getWritableDatabase().execSQL(JokeImportTable.SAVE_CHECKPOINT, new Object[] {importSource,
+                            Long.parseLong(uri.getQueryParameter(PARAM_IMPORT_OFFSET)),
+                            Long.parseLong(uri.getQueryParameter(PARAM_IMPORT_COUNT)) + rowsInserted});
+                }
+
+                store.setTransactionSuccessful();
+                successful = true;
+            } finally {
+                store.endTransaction();
+                endIndexChanges(indexChanges, successful);
+            }
+        }
+
+        metrics.addRowsWritten(rowsInserted);
+
+        if (rowsInserted > 0 && !"false".equals(uri.getQueryParameter(PARAM_NOTIFY))) {
+            notifyChange(CONTENT_URI);
+        } else if (rowsInserted > 0) {
+            databaseHelper.scheduleCheckpoint();
+        }
+
+        return rowsInserted;
+    }
+
+    /**
+     * Applies a batch of operations in a single database transaction, so a batch
+     * costs one commit instead of one per operation. If any operation fails,
+     * none of the batch is written. Change notifications are held back until the
+     * batch commits, and each changed URI is notified once. The table URI is not
+     * notified in their place, since the list's page cursor is under it and would
+     * reload from the first page for every batch.
+     */
+    @Override
+    public ContentProviderResult[] applyBatch(ArrayList<ContentProviderOperation> operations) throws OperationApplicationException {
+        final long start = System.nanoTime();
+        try {
+            return applyJokeBatch(operations);
+        } finally {
+            metrics.record(JokeProviderMetrics.APPLY_BATCH, start);
+        }
+    }
+
+    private ContentProviderResult[] applyJokeBatch(final ArrayList<ContentProviderOperation> operations)
+            throws OperationApplicationException {
+
+        final Set<Uri> changedUris = new HashSet<>();
+        final boolean outermostBatch = null == batchNotifications.get();
+        if (outermostBatch) {
+            batchNotifications.set(changedUris);
+        }
+
+        final ContentProviderResult[] results;
+        boolean successful = false;
+        synchronized (writeLock) {
+            final SqliteJokeStore store = getStore();
+            final JokeRatingIndex.Changes indexChanges = beginIndexChanges();
+
+            store.beginTransaction();
+            try {
+                results = super.applyBatch(operations);
+                store.setTransactionSuccessful();
+                successful = true;
+            } finally {
+                store.endTransaction();
+                if (outermostBatch) {
+                    batchNotifications.remove();
+                }
+                endIndexChanges(indexChanges, successful);
+            }
+        }
+
+        for (final Uri uri : changedUris) {
+            notifyChange(uri);
+        }
+
+        return results;
+    }
+
+    /**
+     * Starts holding back rating index changes on the calling thread until its
+     * transaction ends. Must be called while holding the write lock.
+     *
+     * @return
+     *          The changes to pass to endIndexChanges, or null if an outer transaction
+     *          on this thread is already holding them back.
+     */
+    private JokeRatingIndex.Changes beginIndexChanges() {
+        if (null != pendingIndexChanges.get()) {
+            return null;
+        }
+
+        final JokeRatingIndex.Changes changes = new JokeRatingIndex.Changes();
+        pendingIndexChanges.set(changes);
+        return changes;
+    }
+
+    /**
+     * Applies held back index changes once their transaction has committed, or drops them
+     * if it rolled back. Called before the write lock is released, so changes are applied
+     * in commit order.
+     */
+    private void endIndexChanges(final JokeRatingIndex.Changes changes, final boolean successful) {
+        if (null == changes) {
+            return;
+        }
+
+        pendingIndexChanges.remove();
+
+        if (successful) {
+            ratingIndex.apply(changes);
+        }
+    }
+
+    private void putIndexRating(final long id, final int rating) {
+        final JokeRatingIndex.Changes pending = pendingIndexChanges.get();
+
+        if (null != pending) {
+            pending.put(id, rating);
+        } else {
+            ratingIndex.put(id, rating);
+        }
+    }
+
+    private void removeIndexRating(final long id) {
+        final JokeRatingIndex.Changes pending = pendingIndexChanges.get();
+
+        if (null != pending) {
+            pending.remove(id);
+        } else {
+            ratingIndex.remove(id);
+        }
+    }
+
+    private void invalidateIndex() {
+        final JokeRatingIndex.Changes pending = pendingIndexChanges.get();
+
+        if (null != pending) {
+            pending.invalidate();
+        } else {
+            ratingIndex.invalidate();
+        }
+    }
+
+    /**
+     * Alerts any watchers of a data change for content/view refreshing,
+     * or holds the alert back if the calling thread is in the middle of a batch.
+     */
+    private void notifyChange(final Uri uri) {
+        final Set<Uri> pending = batchNotifications.get();
+
+        if (null != pending) {
+            pending.add(uri);
+        } else {
+            getContext().getContentResolver().notifyChange(uri, null);
+            metrics.countNotify();
+            databaseHelper.scheduleCheckpoint();
+        }
+    }
+
+    /**
+     * Reads the page size from a page URI, falling back to DEFAULT_PAGE_SIZE.
+     */
+    private static int getLimit(final Uri uri) {
+        final String limit = uri.getQueryParameter(PARAM_LIMIT);
+
+        try {
+            return null != limit ? Integer.parseInt(limit) : DEFAULT_PAGE_SIZE;
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Invalid page limit: " + uri);
+        }
+    }
+
     /**
      * Verifies the correct set of columns to return data from when performing a query.
      *
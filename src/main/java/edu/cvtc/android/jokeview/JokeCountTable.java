@@ -0,0 +1,135 @@
+package edu.cvtc.android.jokeview;
+
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+
+/**
+ * Class that manages the table of joke counts per rating.
+ *
+ * The count table holds one row per rating with the number of jokes that have it.
+ * Triggers on the joke table keep the counts up to date on insert, delete and
+ * rating update, so reading the counts is a read of three rows rather than
+ * a count over the whole joke table.
+ *
+ * Jokes already in the table when the count table is added by a migration are
+ * counted by a backfill. Until the backfill reaches a joke, deleting it or changing
+ * its rating leaves the counts alone, since the backfill counts it as it is then.
+ */
+public class JokeCountTable {
+
+    public static final String TABLE_NAME = "joke_count";
+
+    /**
+     * Column names of the count table.
+     */
+    public static final String KEY_RATING = "rating";
+    public static final String KEY_COUNT = "count";
+
+    /**
+     * SQL statement to use when creating the count table.
+     */
+    public static final String DATABASE_CREATE = "create table " + TABLE_NAME + " (" +
+            KEY_RATING + " integer primary key, " +
+            KEY_COUNT + " integer not null default 0);";
+
+    /**
+     * Triggers that keep the counts in step with the joke table.
+     */
+    public static final String TRIGGER_INSERT = "create trigger if not exists " + TABLE_NAME + "_insert" +
+            " after insert on " + JokeTable.TABLE_NAME + " begin" +
+            " update " + TABLE_NAME + " set " + KEY_COUNT + " = " + KEY_COUNT + " + 1" +
+            " where " + KEY_RATING + " = new." + JokeTable.KEY_RATING + ";" +
+            " end;";
+
+    public static final String TRIGGER_DELETE = "create trigger if not exists " + TABLE_NAME + "_delete" +
+            " after delete on " + JokeTable.TABLE_NAME +
+            " when " + isCounted("old") + " begin" +
+            " update " + TABLE_NAME + " set " + KEY_COUNT + " = " + KEY_COUNT + " - 1" +
+            " where " + KEY_RATING + " = old." + JokeTable.KEY_RATING + ";" +
+            " end;";
+
+    public static final String TRIGGER_UPDATE = "create trigger if not exists " + TABLE_NAME + "_update" +
+            " after update of " + JokeTable.KEY_RATING + " on " + JokeTable.TABLE_NAME +
+            " when old." + JokeTable.KEY_RATING + " is not new." + JokeTable.KEY_RATING +
+            " and " + isCounted("old") + " begin" +
+            " update " + TABLE_NAME + " set " + KEY_COUNT + " = " + KEY_COUNT + " - 1" +
+            " where " + KEY_RATING + " = old." + JokeTable.KEY_RATING + ";" +
+            " update " + TABLE_NAME + " set " + KEY_COUNT + " = " + KEY_COUNT + " + 1" +
+            " where " + KEY_RATING + " = new." + JokeTable.KEY_RATING + ";" +
+            " end;";
+
+    /**
+     * SQL statement that adds a zero count for every rating. Multi-row VALUES
+     * is avoided since the SQLite of older supported devices does not have it.
+     */
+    public static final String SEED = "insert or ignore into " + TABLE_NAME + " (" + KEY_RATING + ", " + KEY_COUNT + ")" +
+            " select " + Joke.UNRATED + ", 0 union all select " + Joke.LIKE + ", 0" +
+            " union all select " + Joke.DISLIKE + ", 0;";
+
+    /**
+     * SQL statement that counts the jokes with IDs in a range, used to backfill the counts
+     * in chunks. Takes the ID to start after and the last ID to count as arguments.
+     */
+    public static final String POPULATE_RANGE = "update " + TABLE_NAME + " set " + KEY_COUNT + " = " + KEY_COUNT +
+            " + (select count(*) from " + JokeTable.TABLE_NAME +
+            " where " + JokeTable.KEY_RATING + " = " + TABLE_NAME + "." + KEY_RATING +
+            " and " + JokeTable.KEY_ID + " > ? and " + JokeTable.KEY_ID + " <= ?);";
+
+    private static final String COUNTS_QUERY = "select " + KEY_RATING + ", " + KEY_COUNT + " from " + TABLE_NAME;
+
+    /**
+     * Condition of a trigger that is true once a joke row has been counted, which is
+     * always unless a backfill of the counts has yet to reach it. New jokes always
+     * have IDs past the backfill, so only the delete and update triggers check it.
+     *
+     * @param row
+     *          "old" or "new".
+     */
+    private static String isCounted(final String row) {
+        return "not exists (select 1 from " + JokeMigrations.TABLE_NAME +
+                " where " + JokeMigrations.KEY_NAME + " = '" + TABLE_NAME + "'" +
+                " and " + row + "." + JokeTable.KEY_ID + " > " + JokeMigrations.KEY_LAST_ID +
+                " and " + row + "." + JokeTable.KEY_ID + " <= " + JokeMigrations.KEY_END_ID + ")";
+    }
+
+    /**
+     * Initializes the count table. The migration table must already exist,
+     * since the triggers read it.
+     *
+     * @param database
+     *          The database to initialize.
+     */
+    public static void onCreate(final SQLiteDatabase database) {
+        database.execSQL(DATABASE_CREATE);
+        database.execSQL(SEED);
+        database.execSQL(TRIGGER_INSERT);
+        database.execSQL(TRIGGER_DELETE);
+        database.execSQL(TRIGGER_UPDATE);
+    }
+
+    /**
+     * Reads the count of every rating.
+     *
+     * @return
+     *          The counts indexed by the Joke rating constants, with the total under Joke.SHOW_ALL.
+     */
+    public static int[] getCounts(final SQLiteDatabase database) {
+        final int[] counts = new int[Joke.SHOW_ALL + 1];
+
+        final Cursor cursor = database.rawQuery(COUNTS_QUERY, null);
+        try {
+            while (cursor.moveToNext()) {
+                final int rating = cursor.getInt(0);
+
+                if (rating >= 0 && rating < Joke.SHOW_ALL) {
+                    counts[rating] = cursor.getInt(1);
+                    counts[Joke.SHOW_ALL] += counts[rating];
+                }
+            }
+        } finally {
+            cursor.close();
+        }
+
+        return counts;
+    }
+}
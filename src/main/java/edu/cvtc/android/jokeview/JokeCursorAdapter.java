@@ -5,11 +5,17 @@ import android.database.Cursor;
 import android.support.v4.widget.CursorAdapter;
 import android.view.View;
 import android.view.ViewGroup;
+import android.widget.AbsListView;
 
 /**
  * Created by gandrews7 on 12/8/16.
  */
-public class JokeCursorAdapter extends CursorAdapter {
+public class JokeCursorAdapter extends CursorAdapter implements AbsListView.OnScrollListener {
+
+    /**
+     * How many rows on each side of the visible rows have their text laid out ahead of time.
+     */
+    private static final int WARM_UP_ROWS = 5;
 
     /**
      * The listener that will be notified when the internal state changes
@@ -17,6 +23,19 @@ public class JokeCursorAdapter extends CursorAdapter {
      */
     private JokeView.OnJokeChangeListener onJokeChangeListener;
 
+    /**
+     * Cache the JokeViews' text layouts are kept in, and the first visible row
+     * when layouts were last warmed up.
+     */
+    private final JokeLayoutCache layoutCache;
+    private int warmedUpFirstVisibleItem = -1;
+
+    /**
+     * Told of every row created and bound and of the list scrolling, or null if frames
+     * are not being monitored.
+     */
+    private JokeFrameMonitor frameMonitor;
+
     /**
      * Parameterized constructor that takes in the context in which
      * the adapter is used and the Cursor to which it is bound.
@@ -29,34 +48,157 @@ public class JokeCursorAdapter extends CursorAdapter {
      */
     public JokeCursorAdapter(final Context context, final Cursor jokeCursor, int flags) {
         super(context, jokeCursor, flags);
+
+        layoutCache = JokeLayoutCache.getInstance(context);
     }
 
     public void setOnJokeChangeListener(JokeView.OnJokeChangeListener onJokeChangeListener) {
         this.onJokeChangeListener = onJokeChangeListener;
     }
 
+    public void setFrameMonitor(final JokeFrameMonitor frameMonitor) {
+        this.frameMonitor = frameMonitor;
+    }
+
+    /**
+     * Wraps every Cursor handed to this Adapter in a JokeListCursor so single rows
+     * can be patched in place instead of reloading the whole result set.
+     * The replaced JokeListCursor is closed, which leaves the Cursor it wraps open
+     * for whoever handed it in.
+     */
+    @Override
+    public Cursor swapCursor(final Cursor newCursor) {
+        final Cursor oldCursor = super.swapCursor(null != newCursor ? new JokeListCursor(newCursor) : null);
+
+        if (null != oldCursor) {
+            oldCursor.close();
+        }
+
+        return oldCursor;
+    }
+
+    /**
+     * Uses the list cursor's item IDs, so jokes added to the list that have not been
+     * inserted yet each have their own ID rather than all sharing the unset ID of 0.
+     */
+    @Override
+    public long getItemId(int position) {
+        final Cursor cursor = getCursor();
+
+        if (mDataValid && cursor instanceof JokeListCursor && cursor.moveToPosition(position)) {
+            return ((JokeListCursor) cursor).getItemId();
+        }
+        return super.getItemId(position);
+    }
+
+    /**
+     * Changes the rating kept for the joke at the given position. The JokeView that was
+     * rated already shows its new rating and no row moves, so the ListView is not told
+     * to rebind its rows; the patched rating is used the next time the row is bound.
+     */
+    public void setJokeRating(final int position, final int rating) {
+        final JokeListCursor cursor = (JokeListCursor) getCursor();
+
+        if (null != cursor) {
+            cursor.setRating(position, rating);
+        }
+    }
+
+    /**
+     * Removes the joke at the given position from the list.
+     */
+    public void removeJoke(final int position) {
+        final JokeListCursor cursor = (JokeListCursor) getCursor();
+
+        if (null != cursor) {
+            cursor.remove(position);
+            notifyDataSetChanged();
+        }
+    }
+
+    /**
+     * Adds a joke to the end of the list.
+     */
+    public void addJoke(final Joke joke) {
+        final JokeListCursor cursor = (JokeListCursor) getCursor();
+
+        if (null != cursor) {
+            cursor.add(joke);
+            notifyDataSetChanged();
+        }
+    }
+
     @Override
     public View newView(Context context, Cursor cursor, ViewGroup parent) {
 
-        final Joke joke = new Joke( cursor.getLong(JokeTable.INDEX_ID),
-                                    cursor.getString(JokeTable.INDEX_TEXT),
-                                    cursor.getInt(JokeTable.INDEX_RATING));
+        if (null != frameMonitor) {
+            frameMonitor.onNewView();
+        }
 
-        final JokeView jokeView = new JokeView(context, joke);
+        final JokeView jokeView = new JokeView(context);
         jokeView.setOnJokeChangeListener(onJokeChangeListener);
 
         return jokeView;
     }
 
+    /**
+     * Binds a row to a JokeView without creating a Joke: the View refills its own Joke
+     * from the cursor. Jokes added to the list are bound as-is instead, since they may
+     * not have been given an ID yet and writes to them must use the same instance.
+     */
     @Override
     public void bindView(View view, Context context, Cursor cursor) {
 
-        final Joke joke = new Joke( cursor.getLong(JokeTable.INDEX_ID),
-                cursor.getString(JokeTable.INDEX_TEXT),
-                cursor.getInt(JokeTable.INDEX_RATING));
+        if (null != frameMonitor) {
+            frameMonitor.onBindView();
+        }
+
+        final JokeView jokeView = (JokeView) view;
+        final Joke addedJoke = ((JokeListCursor) cursor).getAddedJoke();
+
+        jokeView.setOnJokeChangeListener(null); // stop recursive 'out of memory' issue from happening
+        if (null != addedJoke) {
+            jokeView.setJoke(addedJoke);
+        } else {
+            jokeView.setJoke(cursor);
+        }
+        jokeView.setOnJokeChangeListener(onJokeChangeListener);
+    }
+
+    @Override
+    public void onScrollStateChanged(AbsListView view, int scrollState) {
+        if (null != frameMonitor) {
+            frameMonitor.setScrolling(SCROLL_STATE_IDLE != scrollState);
+        }
+    }
+
+    /**
+     * Lays out the text of the rows just above and below the visible ones in the background,
+     * so they can be bound from the layout cache once they scroll into view. Only the rows'
+     * IDs and text are copied here, into pooled rows; no Joke or String is made on the UI thread.
+     */
+    @Override
+    public void onScroll(AbsListView view, int firstVisibleItem, int visibleItemCount, int totalItemCount) {
+        final Cursor cursor = getCursor();
+
+        if (null == cursor || firstVisibleItem == warmedUpFirstVisibleItem || 0 == visibleItemCount) {
+            return;
+        }
+        warmedUpFirstVisibleItem = firstVisibleItem;
+
+        final int end = Math.min(cursor.getCount(), firstVisibleItem + visibleItemCount + WARM_UP_ROWS);
+
+        warmUp(cursor, firstVisibleItem + visibleItemCount, end);
+        warmUp(cursor, Math.max(0, firstVisibleItem - WARM_UP_ROWS), firstVisibleItem);
+    }
 
-        ((JokeView) view).setOnJokeChangeListener(null); // stop recursive 'out of memory' issue from happening
-        ((JokeView) view).setJoke(joke);
-        ((JokeView) view).setOnJokeChangeListener(onJokeChangeListener);
+    private void warmUp(final Cursor cursor, final int start, final int end) {
+        for (int position = start; position < end; position++) {
+            if (cursor.moveToPosition(position)) {
+                final JokeLayoutCache.WarmUpRow row = layoutCache.obtainWarmUpRow();
+                row.set(cursor);
+                layoutCache.warmUp(row);
+            }
+        }
     }
 }
@@ -1,33 +1,143 @@
 package edu.cvtc.android.jokeview;
 
 import android.content.Context;
+import android.database.Cursor;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteDatabase.CursorFactory;
+import android.database.sqlite.SQLiteException;
 import android.database.sqlite.SQLiteOpenHelper;
+import android.os.Build;
+import android.util.Log;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
 
 /**
  * Class that hooks up to the JokeContentProvider for initialization and maintenance.
  * Uses JokeTable for assistance.
  *
+ * The database is opened in write-ahead logging mode, so queries run on a pool of
+ * reader connections and see the last committed data while a write is in progress,
+ * instead of waiting for an import or a batch of ratings to finish. Writes are copied
+ * back from the log into the database by checkpoints, which are run after a burst of
+ * writes has ended rather than in the middle of one.
+ *
  * Created by gandrews7 on 12/6/16.
  */
 public class JokeDatabaseHelper extends SQLiteOpenHelper {
 
+    private static final String TAG = "joke_database_helper";
+
     public static final String DATABASE_NAME = "jokes.db";
 
-    public static final int DATABASE_VERSION = 1;
+    public static final int DATABASE_VERSION = 5;
+
+    /**
+     * How long after the last write a checkpoint is run.
+     */
+    private static final long CHECKPOINT_DELAY_MILLIS = 2000;
+
+    /**
+     * A passive checkpoint copies what it can without waiting on readers or writers.
+     */
+    private static final String CHECKPOINT = "PRAGMA wal_checkpoint";
+
+    /**
+     * Runs checkpoints and migration backfills, one at a time, off the caller's thread.
+     */
+    private final ScheduledExecutorService maintenanceExecutor = Executors.newSingleThreadScheduledExecutor();
+    private ScheduledFuture<?> scheduledCheckpoint;
+
+    private final Runnable checkpointRunnable = new Runnable() {
+        @Override
+        public void run() {
+            checkpoint();
+        }
+    };
+
+    private final Runnable backfillRunnable = new Runnable() {
+        @Override
+        public void run() {
+            try {
+                JokeMigrations.runBackfills(getWritableDatabase());
+            } catch (SQLiteException e) {
+                Log.w(TAG, "Backfill stopped, it will resume when the database is next opened", e);
+            }
+        }
+    };
 
     public JokeDatabaseHelper(final Context context, final String name, final CursorFactory factory, final int version) {
         super(context, DATABASE_NAME, null, DATABASE_VERSION);
+
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN) {
+            setWriteAheadLoggingEnabled(true);
+        }
+    }
+
+    @Override
+    public void onOpen(SQLiteDatabase db) {
+        super.onOpen(db);
+
+        // Before Jelly Bean, the helper can't open the database in WAL mode itself.
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.JELLY_BEAN && !db.isReadOnly()) {
+            db.enableWriteAheadLogging();
+        }
+
+        // Finish any backfill left by an upgrade, now or in an earlier run.
+        maintenanceExecutor.execute(backfillRunnable);
     }
 
     @Override
     public void onCreate(SQLiteDatabase sqLiteDatabase) {
         JokeTable.onCreate(sqLiteDatabase);
+        JokeSearchTable.onCreate(sqLiteDatabase);
+        JokeMigrations.onCreate(sqLiteDatabase);
+        JokeCountTable.onCreate(sqLiteDatabase);
+        JokeImportTable.onCreate(sqLiteDatabase);
     }
 
     @Override
     public void onUpgrade(SQLiteDatabase sqLiteDatabase, int oldVersion, int newVersion) {
-        JokeTable.onUpgrade(sqLiteDatabase, oldVersion, newVersion);
+        JokeMigrations.onUpgrade(sqLiteDatabase, oldVersion, newVersion);
+    }
+
+    /**
+     * Schedules a checkpoint once writes have stopped for CHECKPOINT_DELAY_MILLIS.
+     * Called after every committed write.
+     */
+    public synchronized void scheduleCheckpoint() {
+        if (maintenanceExecutor.isShutdown()) {
+            return;
+        }
+
+        if (null != scheduledCheckpoint) {
+            scheduledCheckpoint.cancel(false);
+        }
+        scheduledCheckpoint = maintenanceExecutor.schedule(checkpointRunnable, CHECKPOINT_DELAY_MILLIS, TimeUnit.MILLISECONDS);
+    }
+
+    private void checkpoint() {
+        synchronized (this) {
+            scheduledCheckpoint = null;
+        }
+
+        try {
+            final Cursor cursor = getWritableDatabase().rawQuery(CHECKPOINT, null);
+            try {
+                cursor.moveToFirst();
+            } finally {
+                cursor.close();
+            }
+        } catch (SQLiteException e) {
+            Log.w(TAG, "Checkpoint failed", e);
+        }
+    }
+
+    @Override
+    public synchronized void close() {
+        maintenanceExecutor.shutdownNow();
+        super.close();
     }
 }
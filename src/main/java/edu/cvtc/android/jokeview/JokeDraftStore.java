@@ -0,0 +1,217 @@
+package edu.cvtc.android.jokeview;
+
+import android.util.Log;
+
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Keeps the joke being typed in a small file of its own, so a draft survives the app
+ * being stopped without the UI thread ever waiting on a write.
+ *
+ * Text is saved as it is typed, once typing pauses for SAVE_WINDOW_MILLIS or the first
+ * unsaved change has waited for MAX_SAVE_DELAY_MILLIS, on a background thread. Only the
+ * latest text is written, to a new file that is then renamed over the old one, so the
+ * file always holds a whole draft. The file is a length followed by the UTF-8 text,
+ * and is read back by mapping it into memory, which costs next to nothing for a draft.
+ */
+public class JokeDraftStore {
+
+    private static final String TAG = "joke_draft_store";
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private static final long SAVE_WINDOW_MILLIS = 500;
+    private static final long MAX_SAVE_DELAY_MILLIS = 2000;
+
+    private final File file;
+
+    private final ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor();
+
+    /**
+     * Guards the text waiting to be saved and the scheduled save.
+     */
+    private final Object lock = new Object();
+
+    /**
+     * The latest text, or null if it has been handed to the writer, and the last text
+     * loaded or saved, so unchanged text is not written again.
+     */
+    private String pendingText;
+    private String savedText;
+
+    private ScheduledFuture<?> scheduledSave;
+    private long saveDeadline;
+
+    private final Runnable saveRunnable = new Runnable() {
+        @Override
+        public void run() {
+            save();
+        }
+    };
+
+    public JokeDraftStore(final File file) {
+        this.file = file;
+    }
+
+    /**
+     * Reads the saved draft. Fast enough to call on the UI thread.
+     *
+     * @return
+     *          The draft, or null if none was saved.
+     */
+    public String load() {
+        if (!file.exists()) {
+            return null;
+        }
+
+        try {
+            final RandomAccessFile draft = new RandomAccessFile(file, "r");
+            try {
+                final FileChannel channel = draft.getChannel();
+                final MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+
+                final int length = buffer.remaining() >= 4 ? buffer.getInt() : -1;
+                if (length < 0 || length > buffer.remaining()) {
+                    Log.w(TAG, "Ignoring damaged draft " + file);
+                    return null;
+                }
+
+                final byte[] bytes = new byte[length];
+                buffer.get(bytes);
+
+                final String text = new String(bytes, UTF_8);
+                synchronized (lock) {
+                    savedText = text;
+                }
+                return text;
+            } finally {
+                draft.close();
+            }
+        } catch (IOException e) {
+            Log.e(TAG, "Unable to read " + file, e);
+            return null;
+        }
+    }
+
+    /**
+     * Saves text as the draft once typing pauses. Never blocks.
+     */
+    public void setText(final String text) {
+        synchronized (lock) {
+            if (null == pendingText && text.equals(savedText)) {
+                return;
+            }
+            pendingText = text;
+
+            final long now = System.currentTimeMillis();
+            if (null == scheduledSave) {
+                saveDeadline = now + MAX_SAVE_DELAY_MILLIS;
+            } else {
+                scheduledSave.cancel(false);
+            }
+
+            final long delay = Math.max(0, Math.min(SAVE_WINDOW_MILLIS, saveDeadline - now));
+            scheduledSave = executor.schedule(saveRunnable, delay, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Saves text as the draft right away on the background thread, then runs a callback
+     * on that thread once the draft is written. The callback is not run if the draft
+     * could not be written, so whatever it cleans up is still there to try again with.
+     * Never blocks.
+     */
+    public void save(final String text, final Runnable onSaved) {
+        synchronized (lock) {
+            pendingText = text;
+        }
+
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                if (save()) {
+                    onSaved.run();
+                }
+            }
+        });
+    }
+
+    /**
+     * Saves the latest text right away on the background thread. Never blocks.
+     */
+    public void flush() {
+        executor.execute(saveRunnable);
+    }
+
+    /**
+     * Saves the latest text and stops the background thread once it is written.
+     */
+    public void shutdown() {
+        flush();
+        executor.shutdown();
+    }
+
+    /**
+     * Writes the latest text if it has not been written yet. Runs on the background thread only.
+     *
+     * @return
+     *          True if the file holds the latest text.
+     */
+    private boolean save() {
+        final String text;
+
+        synchronized (lock) {
+            if (null != scheduledSave) {
+                scheduledSave.cancel(false);
+                scheduledSave = null;
+            }
+
+            text = pendingText;
+            pendingText = null;
+
+            if (null == text || text.equals(savedText)) {
+                // An earlier save took the text, and failed if it forgot what it saved.
+                return null != savedText;
+            }
+            savedText = text;
+        }
+
+        final File newFile = new File(file.getPath() + ".new");
+        try {
+            final DataOutputStream out = new DataOutputStream(new FileOutputStream(newFile));
+            try {
+                final byte[] bytes = text.getBytes(UTF_8);
+                out.writeInt(bytes.length);
+                out.write(bytes);
+            } finally {
+                out.close();
+            }
+
+            if (!newFile.renameTo(file)) {
+                throw new IOException("Unable to rename " + newFile + " to " + file);
+            }
+            return true;
+        } catch (IOException e) {
+            Log.e(TAG, "Unable to save draft", e);
+
+            synchronized (lock) {
+                // Let the next change or flush try again.
+                if (text.equals(savedText)) {
+                    savedText = null;
+                }
+            }
+            return false;
+        }
+    }
+}
@@ -0,0 +1,291 @@
+package edu.cvtc.android.jokeview;
+
+import android.content.ContentProvider;
+import android.database.CharArrayBuffer;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteOpenHelper;
+import android.net.Uri;
+import android.os.Bundle;
+import android.os.ParcelFileDescriptor;
+import android.util.Log;
+
+import java.io.BufferedOutputStream;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.Charset;
+
+/**
+ * Streams the joke table into a pipe for JokeContentProvider.openFile.
+ *
+ * Rows are read in pages keyed on ID, so each page is a short read and the export
+ * never holds the database for its whole length. Each row is copied straight from the
+ * Cursor into reusable buffers and written out, so no Joke or String is created per row.
+ *
+ * FORMAT_JSON_LINES writes one {"id":1,"text":"...","rating":0} object per line, which
+ * JokeImporter reads back. FORMAT_BINARY writes the bytes "JOKE", a format version int,
+ * then per row: the ID as a long, the rating as a byte, the text's UTF-8 length as an int
+ * and the UTF-8 text. All numbers are big-endian.
+ */
+public class JokeExporter implements ContentProvider.PipeDataWriter<Integer> {
+
+    private static final String TAG = "joke_exporter";
+
+    public static final int FORMAT_JSON_LINES = 0;
+    public static final int FORMAT_BINARY = 1;
+
+    public static final String MIME_TYPE_JSON_LINES = "application/x-ndjson";
+    public static final String MIME_TYPE_BINARY = "application/octet-stream";
+
+    private static final int BINARY_VERSION = 1;
+
+    /**
+     * Number of rows read per query.
+     */
+    private static final int PAGE_SIZE = 1000;
+
+    private static final int WRITE_BUFFER_SIZE = 64 * 1024;
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private static final String PAGE_QUERY = "select " + JokeTable.KEY_ID + ", " + JokeTable.KEY_TEXT + ", " +
+            JokeTable.KEY_RATING + " from " + JokeTable.TABLE_NAME +
+            " where " + JokeTable.KEY_ID + " > ? order by " + JokeTable.KEY_ID + " limit " + PAGE_SIZE;
+
+    private final SQLiteOpenHelper databaseHelper;
+
+    public JokeExporter(final SQLiteOpenHelper databaseHelper) {
+        this.databaseHelper = databaseHelper;
+    }
+
+    /**
+     * Returns the MIME type of an export format.
+     */
+    public static String getMimeType(final int format) {
+        return FORMAT_BINARY == format ? MIME_TYPE_BINARY : MIME_TYPE_JSON_LINES;
+    }
+
+    /**
+     * Runs on a background thread started by ContentProvider.openPipeHelper.
+     */
+    @Override
+    public void writeDataToPipe(ParcelFileDescriptor output, Uri uri, String mimeType, Bundle opts, Integer format) {
+        final OutputStream out = new ParcelFileDescriptor.AutoCloseOutputStream(output);
+
+        try {
+            if (FORMAT_BINARY == format) {
+                new BinaryWriter(out).export();
+            } else {
+                new JsonLinesWriter(out).export();
+            }
+        } catch (IOException e) {
+            // The reader went away before the export finished.
+            Log.w(TAG, "Export of " + uri + " stopped: " + e.getMessage());
+        } finally {
+            try {
+                out.close();
+            } catch (IOException e) {
+                Log.w(TAG, "Unable to close export of " + uri, e);
+            }
+        }
+    }
+
+    /**
+     * Reads the joke table a page at a time and hands each row to writeRow.
+     */
+    private abstract class RowWriter {
+
+        protected final CharArrayBuffer text = new CharArrayBuffer(256);
+
+        protected void export() throws IOException {
+            final SQLiteDatabase database = databaseHelper.getReadableDatabase();
+            final String[] args = new String[1];
+
+            long lastId = 0;
+            int count;
+
+            do {
+                args[0] = Long.toString(lastId);
+
+                final Cursor cursor = database.rawQuery(PAGE_QUERY, args);
+                try {
+                    count = cursor.getCount();
+
+                    while (cursor.moveToNext()) {
+                        lastId = cursor.getLong(JokeTable.INDEX_ID);
+                        cursor.copyStringToBuffer(JokeTable.INDEX_TEXT, text);
+
+                        writeRow(lastId, cursor.getInt(JokeTable.INDEX_RATING));
+                    }
+                } finally {
+                    cursor.close();
+                }
+            } while (count == PAGE_SIZE);
+
+            finish();
+        }
+
+        /**
+         * Writes one row. The row's text is in the text buffer.
+         */
+        protected abstract void writeRow(long id, int rating) throws IOException;
+
+        protected abstract void finish() throws IOException;
+    }
+
+    private class JsonLinesWriter extends RowWriter {
+
+        private final Writer writer;
+        private final char[] digits = new char[20];
+
+        private JsonLinesWriter(final OutputStream out) {
+            writer = new BufferedWriter(new OutputStreamWriter(out, UTF_8), WRITE_BUFFER_SIZE);
+        }
+
+        @Override
+        protected void writeRow(final long id, final int rating) throws IOException {
+            writer.write("{\"id\":");
+            writeNumber(id);
+            writer.write(",\"" + JokeTable.KEY_TEXT + "\":\"");
+            writeEscapedText();
+            writer.write("\",\"" + JokeTable.KEY_RATING + "\":");
+            writeNumber(rating);
+            writer.write("}\n");
+        }
+
+        @Override
+        protected void finish() throws IOException {
+            writer.flush();
+        }
+
+        /**
+         * Writes a non-negative number without going through a String.
+         */
+        private void writeNumber(long value) throws IOException {
+            int start = digits.length;
+            do {
+                digits[--start] = (char) ('0' + value % 10);
+                value /= 10;
+            } while (value > 0);
+
+            writer.write(digits, start, digits.length - start);
+        }
+
+        private void writeEscapedText() throws IOException {
+            final char[] data = text.data;
+            final int length = text.sizeCopied;
+
+            for (int i = 0; i < length; i++) {
+                final char c = data[i];
+
+                switch (c) {
+                    case '"':
+                        writer.write("\\\"");
+                        break;
+                    case '\\':
+                        writer.write("\\\\");
+                        break;
+                    case '\n':
+                        writer.write("\\n");
+                        break;
+                    case '\r':
+                        writer.write("\\r");
+                        break;
+                    case '\t':
+                        writer.write("\\t");
+                        break;
+                    default:
+                        if (c < 0x20) {
+                            writer.write("\\u00");
+                            writer.write(Character.forDigit(c >> 4, 16));
+                            writer.write(Character.forDigit(c & 0xf, 16));
+                        } else {
+                            writer.write(c);
+                        }
+                        break;
+                }
+            }
+        }
+    }
+
+    private class BinaryWriter extends RowWriter {
+
+        private final OutputStream out;
+        private byte[] utf8 = new byte[1024];
+
+        private BinaryWriter(final OutputStream out) throws IOException {
+            this.out = new BufferedOutputStream(out, WRITE_BUFFER_SIZE);
+
+            this.out.write(new byte[] {'J', 'O', 'K', 'E'});
+            writeInt(BINARY_VERSION);
+        }
+
+        @Override
+        protected void writeRow(final long id, final int rating) throws IOException {
+            final int length = encodeText();
+
+            writeInt((int) (id >>> 32));
+            writeInt((int) id);
+            out.write(rating);
+            writeInt(length);
+            out.write(utf8, 0, length);
+        }
+
+        @Override
+        protected void finish() throws IOException {
+            out.flush();
+        }
+
+        private void writeInt(final int value) throws IOException {
+            out.write(value >>> 24);
+            out.write(value >>> 16);
+            out.write(value >>> 8);
+            out.write(value);
+        }
+
+        /**
+         * Encodes the text buffer as UTF-8 into the reusable byte buffer.
+         *
+         * @return
+         *          The number of bytes written.
+         */
+        private int encodeText() {
+            final char[] data = text.data;
+            final int length = text.sizeCopied;
+
+            if (utf8.length < length * 3) {
+                utf8 = new byte[length * 3];
+            }
+
+            int n = 0;
+            for (int i = 0; i < length; i++) {
+                int c = data[i];
+
+                if (Character.isHighSurrogate((char) c) && i + 1 < length && Character.isLowSurrogate(data[i + 1])) {
+                    c = Character.toCodePoint((char) c, data[++i]);
+                }
+
+                if (c < 0x80) {
+                    utf8[n++] = (byte) c;
+                } else if (c < 0x800) {
+                    utf8[n++] = (byte) (0xc0 | (c >> 6));
+                    utf8[n++] = (byte) (0x80 | (c & 0x3f));
+                } else if (c < 0x10000) {
+                    utf8[n++] = (byte) (0xe0 | (c >> 12));
+                    utf8[n++] = (byte) (0x80 | ((c >> 6) & 0x3f));
+                    utf8[n++] = (byte) (0x80 | (c & 0x3f));
+                } else {
+                    utf8[n++] = (byte) (0xf0 | (c >> 18));
+                    utf8[n++] = (byte) (0x80 | ((c >> 12) & 0x3f));
+                    utf8[n++] = (byte) (0x80 | ((c >> 6) & 0x3f));
+                    utf8[n++] = (byte) (0x80 | (c & 0x3f));
+                }
+            }
+
+            return n;
+        }
+    }
+}
@@ -0,0 +1,176 @@
+package edu.cvtc.android.jokeview;
+
+import android.annotation.TargetApi;
+import android.os.Build;
+import android.util.Log;
+import android.view.Choreographer;
+
+import java.util.Locale;
+
+/**
+ * Measures how long each frame takes while the joke list scrolls, and how many rows
+ * JokeCursorAdapter created and bound for it, so slow frames can be put down to
+ * inflating or to binding.
+ *
+ * A Choreographer frame callback runs at the start of every frame while the list scrolls;
+ * the time since the previous callback is how long the previous frame took, and the rows
+ * created and bound since then are the ones that frame did. Each frame is added to a
+ * histogram of all frames and to one for frames that created a row, bound a row, or did
+ * neither. When the list stops, the percentiles are logged and the histograms start over.
+ *
+ * Off unless turned on with "adb shell setprop log.tag.joke_frames DEBUG",
+ * and only on API 16 and up, where Choreographer is public.
+ */
+@TargetApi(Build.VERSION_CODES.JELLY_BEAN)
+public class JokeFrameMonitor {
+
+    private static final String TAG = "joke_frames";
+
+    /**
+     * A frame taking longer than this missed at least one 60 Hz vsync, and shows as jank.
+     */
+    private static final long JANK_NANOS = 25000000;
+
+    private final JokeLatencyHistogram allFrames = new JokeLatencyHistogram();
+    private final JokeLatencyHistogram newViewFrames = new JokeLatencyHistogram();
+    private final JokeLatencyHistogram bindViewFrames = new JokeLatencyHistogram();
+    private final JokeLatencyHistogram idleFrames = new JokeLatencyHistogram();
+
+    /**
+     * Kept out of the class declaration so isEnabled can be called below API 16.
+     */
+    private final Choreographer.FrameCallback frameCallback = new Choreographer.FrameCallback() {
+        @Override
+        public void doFrame(long frameTimeNanos) {
+            onFrame(frameTimeNanos);
+        }
+    };
+
+    private boolean scrolling;
+    private long lastFrameTimeNanos;
+
+    /**
+     * Rows created and bound since the last frame callback, and over the whole scroll.
+     */
+    private int newViews;
+    private int bindViews;
+    private int totalNewViews;
+    private int totalBindViews;
+
+    private int jankFrames;
+    private long slowestFrameNanos;
+    private int slowestFrameNewViews;
+    private int slowestFrameBindViews;
+
+    /**
+     * Returns whether frames should be monitored on this device.
+     */
+    public static boolean isEnabled() {
+        return Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN && Log.isLoggable(TAG, Log.DEBUG);
+    }
+
+    public void onNewView() {
+        newViews++;
+    }
+
+    public void onBindView() {
+        bindViews++;
+    }
+
+    /**
+     * Starts measuring frames when the list starts scrolling, and logs them once it stops.
+     * Must be called on the main thread.
+     */
+    public void setScrolling(final boolean scrolling) {
+        if (scrolling == this.scrolling) {
+            return;
+        }
+        this.scrolling = scrolling;
+
+        if (scrolling) {
+            lastFrameTimeNanos = 0;
+            Choreographer.getInstance().postFrameCallback(frameCallback);
+        } else {
+            Choreographer.getInstance().removeFrameCallback(frameCallback);
+            publish();
+        }
+    }
+
+    private void onFrame(final long frameTimeNanos) {
+        if (!scrolling) {
+            return;
+        }
+
+        if (0 != lastFrameTimeNanos) {
+            record(frameTimeNanos - lastFrameTimeNanos);
+        }
+
+        lastFrameTimeNanos = frameTimeNanos;
+        newViews = 0;
+        bindViews = 0;
+
+        Choreographer.getInstance().postFrameCallback(frameCallback);
+    }
+
+    private void record(final long frameNanos) {
+        allFrames.record(frameNanos);
+
+        if (newViews > 0) {
+            newViewFrames.record(frameNanos);
+        } else if (bindViews > 0) {
+            bindViewFrames.record(frameNanos);
+        } else {
+            idleFrames.record(frameNanos);
+        }
+
+        if (frameNanos > JANK_NANOS) {
+            jankFrames++;
+        }
+
+        if (frameNanos > slowestFrameNanos) {
+            slowestFrameNanos = frameNanos;
+            slowestFrameNewViews = newViews;
+            slowestFrameBindViews = bindViews;
+        }
+
+        totalNewViews += newViews;
+        totalBindViews += bindViews;
+    }
+
+    /**
+     * Logs the frames of the scroll that just ended, then starts over.
+     */
+    private void publish() {
+        if (0 == allFrames.getCount()) {
+            return;
+        }
+
+        Log.d(TAG, String.format(Locale.US, "%d frames, %d janky, %d newView, %d bindView;" +
+                        " slowest %.1f ms with %d newView, %d bindView",
+                allFrames.getCount(), jankFrames, totalNewViews, totalBindViews,
+                slowestFrameNanos / 1e6, slowestFrameNewViews, slowestFrameBindViews));
+        Log.d(TAG, format("all", allFrames));
+        Log.d(TAG, format("newView", newViewFrames));
+        Log.d(TAG, format("bindView", bindViewFrames));
+        Log.d(TAG, format("neither", idleFrames));
+
+        allFrames.reset();
+        newViewFrames.reset();
+        bindViewFrames.reset();
+        idleFrames.reset();
+
+        totalNewViews = 0;
+        totalBindViews = 0;
+        jankFrames = 0;
+        slowestFrameNanos = 0;
+        slowestFrameNewViews = 0;
+        slowestFrameBindViews = 0;
+    }
+
+    private static String format(final String frames, final JokeLatencyHistogram histogram) {
+        return String.format(Locale.US, "%-8s frames: %5d, p50 %.1f ms, p90 %.1f ms, p99 %.1f ms, max %.1f ms",
+                frames, histogram.getCount(), histogram.getPercentileMicros(50) / 1e3,
+                histogram.getPercentileMicros(90) / 1e3, histogram.getPercentileMicros(99) / 1e3,
+                histogram.getMaxMicros() / 1e3);
+    }
+}
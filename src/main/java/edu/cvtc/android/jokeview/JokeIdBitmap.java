@@ -0,0 +1,288 @@
+package edu.cvtc.android.jokeview;
+
+import java.util.Arrays;
+
+/**
+ * Compressed set of joke IDs, laid out like a roaring bitmap.
+ *
+ * IDs are split into their high bits, which select a container, and their low 16 bits,
+ * which are stored in it. A container holding few IDs is a sorted array of them; once it
+ * would hold more than ARRAY_CONTAINER_MAX IDs it becomes an 8 KB bitmap of all 65536
+ * possible values, which is smaller from that point on. Since joke IDs are handed out
+ * in order, a table of a few thousand jokes fits in one or two containers.
+ *
+ * Not thread-safe.
+ */
+public class JokeIdBitmap {
+
+    /**
+     * Largest array container. Past this, a bitmap container takes less memory.
+     */
+    private static final int ARRAY_CONTAINER_MAX = 4096;
+
+    private static final int BITMAP_WORDS = 65536 / 64;
+
+    /**
+     * Container keys (the high bits of the IDs) in ascending order, and the containers.
+     */
+    private long[] keys = new long[4];
+    private Container[] containers = new Container[4];
+    private int containerCount;
+
+    private int cardinality;
+
+    public boolean add(final long id) {
+        final long key = id >>> 16;
+        int index = Arrays.binarySearch(keys, 0, containerCount, key);
+
+        if (index < 0) {
+            index = insertContainer(-index - 1, key);
+        }
+
+        final Container container = containers[index];
+        if (!container.add((char) id)) {
+            return false;
+        }
+
+        if (container instanceof ArrayContainer && container.cardinality() > ARRAY_CONTAINER_MAX) {
+            containers[index] = ((ArrayContainer) container).toBitmap();
+        }
+
+        cardinality++;
+        return true;
+    }
+
+    public boolean remove(final long id) {
+        final int index = Arrays.binarySearch(keys, 0, containerCount, id >>> 16);
+
+        if (index < 0 || !containers[index].remove((char) id)) {
+            return false;
+        }
+
+        if (0 == containers[index].cardinality()) {
+            removeContainer(index);
+        } else if (containers[index] instanceof BitmapContainer
+                && containers[index].cardinality() <= ARRAY_CONTAINER_MAX / 2) {
+            containers[index] = ((BitmapContainer) containers[index]).toArray();
+        }
+
+        cardinality--;
+        return true;
+    }
+
+    public boolean contains(final long id) {
+        final int index = Arrays.binarySearch(keys, 0, containerCount, id >>> 16);
+        return index >= 0 && containers[index].contains((char) id);
+    }
+
+    public int cardinality() {
+        return cardinality;
+    }
+
+    public void clear() {
+        Arrays.fill(containers, 0, containerCount, null);
+        containerCount = 0;
+        cardinality = 0;
+    }
+
+    /**
+     * Returns the smallest ID in this set greater than the given ID, or -1 if there is none.
+     */
+    public long nextAfter(final long id) {
+        final long key = id >>> 16;
+        int index = Arrays.binarySearch(keys, 0, containerCount, key);
+
+        if (index >= 0) {
+            final char low = (char) id;
+            if (Character.MAX_VALUE != low) {
+                final int next = containers[index].nextFrom(low + 1);
+                if (next >= 0) {
+                    return (key << 16) | next;
+                }
+            }
+            index++;
+        } else {
+            index = -index - 1;
+        }
+
+        // Containers are never empty, so the next container's first value is the answer.
+        return index < containerCount ? (keys[index] << 16) | containers[index].nextFrom(0) : -1;
+    }
+
+    private int insertContainer(final int index, final long key) {
+        if (containerCount == keys.length) {
+            keys = Arrays.copyOf(keys, containerCount * 2);
+            containers = Arrays.copyOf(containers, containerCount * 2);
+        }
+
+        System.arraycopy(keys, index, keys, index + 1, containerCount - index);
+        System.arraycopy(containers, index, containers, index + 1, containerCount - index);
+
+        keys[index] = key;
+        containers[index] = new ArrayContainer();
+        containerCount++;
+
+        return index;
+    }
+
+    private void removeContainer(final int index) {
+        System.arraycopy(keys, index + 1, keys, index, containerCount - index - 1);
+        System.arraycopy(containers, index + 1, containers, index, containerCount - index - 1);
+
+        containers[--containerCount] = null;
+    }
+
+    /**
+     * Holds the low 16 bits of the IDs sharing one key.
+     */
+    private interface Container {
+        boolean add(char value);
+        boolean remove(char value);
+        boolean contains(char value);
+        int cardinality();
+
+        /**
+         * Returns the smallest value in this container at least from, or -1 if there is none.
+         */
+        int nextFrom(int from);
+    }
+
+    private static class ArrayContainer implements Container {
+
+        private char[] values = new char[8];
+        private int size;
+
+        @Override
+        public boolean add(final char value) {
+            int index = Arrays.binarySearch(values, 0, size, value);
+            if (index >= 0) {
+                return false;
+            }
+            index = -index - 1;
+
+            if (size == values.length) {
+                values = Arrays.copyOf(values, Math.min(size * 2, ARRAY_CONTAINER_MAX + 1));
+            }
+
+            System.arraycopy(values, index, values, index + 1, size - index);
+            values[index] = value;
+            size++;
+            return true;
+        }
+
+        @Override
+        public boolean remove(final char value) {
+            final int index = Arrays.binarySearch(values, 0, size, value);
+            if (index < 0) {
+                return false;
+            }
+
+            System.arraycopy(values, index + 1, values, index, size - index - 1);
+            size--;
+            return true;
+        }
+
+        @Override
+        public boolean contains(final char value) {
+            return Arrays.binarySearch(values, 0, size, value) >= 0;
+        }
+
+        @Override
+        public int cardinality() {
+            return size;
+        }
+
+        @Override
+        public int nextFrom(final int from) {
+            if (from > Character.MAX_VALUE) {
+                return -1;
+            }
+
+            int index = Arrays.binarySearch(values, 0, size, (char) from);
+            if (index < 0) {
+                index = -index - 1;
+            }
+            return index < size ? values[index] : -1;
+        }
+
+        private BitmapContainer toBitmap() {
+            final BitmapContainer bitmap = new BitmapContainer();
+            for (int i = 0; i < size; i++) {
+                bitmap.add(values[i]);
+            }
+            return bitmap;
+        }
+    }
+
+    private static class BitmapContainer implements Container {
+
+        private final long[] words = new long[BITMAP_WORDS];
+        private int cardinality;
+
+        @Override
+        public boolean add(final char value) {
+            final long bit = 1L << value;
+            final int word = value >>> 6;
+
+            if (0 != (words[word] & bit)) {
+                return false;
+            }
+
+            words[word] |= bit;
+            cardinality++;
+            return true;
+        }
+
+        @Override
+        public boolean remove(final char value) {
+            final long bit = 1L << value;
+            final int word = value >>> 6;
+
+            if (0 == (words[word] & bit)) {
+                return false;
+            }
+
+            words[word] &= ~bit;
+            cardinality--;
+            return true;
+        }
+
+        @Override
+        public boolean contains(final char value) {
+            return 0 != (words[value >>> 6] & (1L << value));
+        }
+
+        @Override
+        public int cardinality() {
+            return cardinality;
+        }
+
+        @Override
+        public int nextFrom(final int from) {
+            int word = from >>> 6;
+            if (word >= BITMAP_WORDS) {
+                return -1;
+            }
+
+            long bits = words[word] & (-1L << from);
+            while (0 == bits) {
+                if (++word == BITMAP_WORDS) {
+                    return -1;
+                }
+                bits = words[word];
+            }
+
+            return word * 64 + Long.numberOfTrailingZeros(bits);
+        }
+
+        private ArrayContainer toArray() {
+            final ArrayContainer array = new ArrayContainer();
+            for (int value = nextFrom(0); value >= 0; value = nextFrom(value + 1)) {
+                array.values = array.size == array.values.length
+                        ? Arrays.copyOf(array.values, array.size * 2) : array.values;
+                array.values[array.size++] = (char) value;
+            }
+            return array;
+        }
+    }
+}
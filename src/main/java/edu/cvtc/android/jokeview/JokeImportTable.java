@@ -0,0 +1,69 @@
+package edu.cvtc.android.jokeview;
+
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+
+/**
+ * Class that manages the table of import checkpoints.
+ *
+ * Each row holds how far an import of one source file has got: the byte offset of the
+ * next record to read and the number of jokes imported so far. The provider writes the
+ * row in the same transaction as the batch of jokes it describes, so after a crash the
+ * checkpoint always matches the jokes that were committed.
+ */
+public class JokeImportTable {
+
+    public static final String TABLE_NAME = "joke_import";
+
+    /**
+     * Column names of the import table.
+     */
+    public static final String KEY_SOURCE = "source";
+    public static final String KEY_OFFSET = "byte_offset";
+    public static final String KEY_COUNT = "count";
+
+    /**
+     * SQL statement to use when creating the import table.
+     */
+    public static final String DATABASE_CREATE = "create table if not exists " + TABLE_NAME + " (" +
+            KEY_SOURCE + " text primary key, " +
+            KEY_OFFSET + " integer not null, " +
+            KEY_COUNT + " integer not null);";
+
+    /**
+     * SQL statement saving the checkpoint of a source. Takes the source, the offset
+     * and the number of jokes imported as arguments.
+     */
+    public static final String SAVE_CHECKPOINT = "insert or replace into " + TABLE_NAME +
+            " (" + KEY_SOURCE + ", " + KEY_OFFSET + ", " + KEY_COUNT + ") values (?, ?, ?);";
+
+    /**
+     * Initializes the import table.
+     *
+     * @param database
+     *          The database to initialize.
+     */
+    public static void onCreate(final SQLiteDatabase database) {
+        database.execSQL(DATABASE_CREATE);
+    }
+
+    /**
+     * Reads the checkpoint of a source.
+     *
+     * @return
+     *          The byte offset and the number of jokes imported, or null if there is no checkpoint.
+     */
+    public static long[] getCheckpoint(final SQLiteDatabase database, final String source) {
+        final Cursor cursor = database.query(TABLE_NAME, new String[] {KEY_OFFSET, KEY_COUNT},
+                KEY_SOURCE + " = ?", new String[] {source}, null, null, null);
+        try {
+            return cursor.moveToFirst() ? new long[] {cursor.getLong(0), cursor.getLong(1)} : null;
+        } finally {
+            cursor.close();
+        }
+    }
+
+    public static void clearCheckpoint(final SQLiteDatabase database, final String source) {
+        database.delete(TABLE_NAME, KEY_SOURCE + " = ?", new String[] {source});
+    }
+}
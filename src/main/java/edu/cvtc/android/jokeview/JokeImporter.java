@@ -0,0 +1,417 @@
+package edu.cvtc.android.jokeview;
+
+import android.content.ContentResolver;
+import android.content.ContentValues;
+import android.content.SharedPreferences;
+import android.content.res.AssetFileDescriptor;
+import android.net.Uri;
+import android.os.Bundle;
+import android.util.JsonReader;
+import android.util.Log;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.StringReader;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+
+/**
+ * Streams jokes from a JSON-lines or CSV file into the JokeContentProvider.
+ *
+ * The file is read one record at a time, and records are written in fixed-size batches
+ * through JokeContentProvider.bulkInsert, so memory use depends on MAX_RECORD_LENGTH
+ * and the batch size, never on the size of the file. Longer records are skipped.
+ *
+ * Every batch carries the byte offset of the record after it, which the provider saves
+ * as the file's checkpoint in the same transaction as the batch's jokes. Importing the same
+ * file again after an interruption continues from the checkpoint, so no joke is imported
+ * twice and none is missed. Checkpoints saved in preferences by older versions are
+ * picked up once.
+ *
+ * Change notifications are sent once the import ends rather than after every batch,
+ * so the joke list is not reloaded over and over while the import runs.
+ *
+ * JSON-lines records look like {"text": "...", "rating": 1}. CSV records are text,rating
+ * with an optional header row. The rating is optional in both and defaults to Joke.UNRATED.
+ */
+public class JokeImporter {
+
+    private static final String TAG = "joke_importer";
+
+    public static final int FORMAT_JSON_LINES = 0;
+    public static final int FORMAT_CSV = 1;
+
+    /**
+     * Number of jokes written per transaction.
+     */
+    private static final int BATCH_SIZE = 500;
+
+    private static final int READ_BUFFER_SIZE = 64 * 1024;
+
+    /**
+     * The longest record read, in bytes. A file with no newlines would otherwise be read
+     * into memory whole.
+     */
+    private static final int MAX_RECORD_LENGTH = 64 * 1024;
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    /**
+     * Keys of checkpoints saved in preferences by older versions, suffixed with the source URI.
+     */
+    private static final String CHECKPOINT_OFFSET_KEY = "importOffset:";
+    private static final String CHECKPOINT_COUNT_KEY = "importCount:";
+
+    /**
+     * Interface definition for a callback reporting import progress after every batch.
+     */
+    public static interface OnProgressListener {
+        public void onProgress(long bytesRead, long totalBytes, long jokesImported);
+    }
+
+    private final ContentResolver contentResolver;
+    private final SharedPreferences legacyCheckpoints;
+
+    private volatile boolean cancelled;
+
+    /**
+     * Reusable state for reading records. A record is held as raw bytes until it is complete.
+     */
+    private final byte[] buffer = new byte[READ_BUFFER_SIZE];
+    private int bufferPosition;
+    private int bufferLimit;
+    private byte[] record = new byte[1024];
+    private int recordLength;
+    private long offset;
+
+    /**
+     * Reusable batch of rows handed to bulkInsert.
+     */
+    private final ContentValues[] batch = new ContentValues[BATCH_SIZE];
+
+    public JokeImporter(final ContentResolver contentResolver, final SharedPreferences legacyCheckpoints) {
+        this.contentResolver = contentResolver;
+        this.legacyCheckpoints = legacyCheckpoints;
+
+        for (int i = 0; i < BATCH_SIZE; i++) {
+            batch[i] = new ContentValues(2);
+        }
+    }
+
+    /**
+     * Stops the import after the batch being read. The checkpoint is kept so it can be resumed.
+     */
+    public void cancel() {
+        cancelled = true;
+    }
+
+    /**
+     * Imports every joke in the source file, resuming from its checkpoint if there is one.
+     * Blocks until the import finishes, so it must not be called on the UI thread.
+     *
+     * @param source
+     *          The URI of the file to import.
+     * @param format
+     *          FORMAT_JSON_LINES or FORMAT_CSV.
+     * @param listener
+     *          Notified of progress after every batch, may be null.
+     * @return
+     *          The number of jokes imported from the file, including earlier attempts.
+     */
+    public long importJokes(final Uri source, final int format, final OnProgressListener listener) throws IOException {
+
+        final String key = source.toString();
+        final long totalBytes = getLength(source);
+
+        final Bundle checkpoint = contentResolver.call(JokeContentProvider.CONTENT_URI,
+                JokeContentProvider.METHOD_IMPORT_CHECKPOINT, key, null);
+
+        final long importedBefore;
+        if (null != checkpoint) {
+            offset = checkpoint.getLong(JokeContentProvider.EXTRA_IMPORT_OFFSET);
+            importedBefore = checkpoint.getLong(JokeContentProvider.EXTRA_IMPORT_COUNT);
+        } else {
+            offset = legacyCheckpoints.getLong(CHECKPOINT_OFFSET_KEY + key, 0);
+            importedBefore = legacyCheckpoints.getLong(CHECKPOINT_COUNT_KEY + key, 0);
+        }
+        long imported = importedBefore;
+
+        final InputStream in = contentResolver.openInputStream(source);
+        if (null == in) {
+            throw new IOException("Unable to open " + source);
+        }
+
+        bufferPosition = 0;
+        bufferLimit = 0;
+        try {
+            skipFully(in, offset);
+
+            boolean firstRecord = 0 == offset;
+            int batchCount = 0;
+
+            final boolean csv = FORMAT_CSV == format;
+            while (!cancelled && readRecord(in, csv)) {
+                final ContentValues values = batch[batchCount];
+                values.clear();
+
+                final String line = new String(record, 0, recordLength, UTF_8);
+                final boolean parsed = csv
+                        ? parseCsv(line, values, firstRecord)
+                        : parseJson(line, values);
+                firstRecord = false;
+
+                if (parsed && ++batchCount == BATCH_SIZE) {
+                    imported += commit(key, batchCount, imported);
+                    batchCount = 0;
+
+                    if (null != listener) {
+                        listener.onProgress(offset, totalBytes, imported);
+                    }
+                }
+            }
+
+            if (batchCount > 0) {
+                imported += commit(key, batchCount, imported);
+            }
+
+            if (null != listener) {
+                listener.onProgress(offset, totalBytes, imported);
+            }
+        } finally {
+            in.close();
+
+            if (imported > importedBefore) {
+                contentResolver.notifyChange(JokeContentProvider.CONTENT_URI, null);
+            }
+        }
+
+        if (!cancelled) {
+            contentResolver.call(JokeContentProvider.CONTENT_URI,
+                    JokeContentProvider.METHOD_CLEAR_IMPORT_CHECKPOINT, key, null);
+        }
+
+        return imported;
+    }
+
+    /**
+     * Writes the first count rows of the batch in one transaction, along with the
+     * checkpoint of the record following them.
+     */
+    private int commit(final String key, final int count, final long importedBefore) {
+        final ContentValues[] rows = count == BATCH_SIZE ? batch : Arrays.copyOf(batch, count);
+
+        final Uri uri = JokeContentProvider.CONTENT_URI.buildUpon()
+                .appendQueryParameter(JokeContentProvider.PARAM_NOTIFY, "false")
+                .appendQueryParameter(JokeContentProvider.PARAM_IMPORT_SOURCE, key)
+                .appendQueryParameter(JokeContentProvider.PARAM_IMPORT_OFFSET, Long.toString(offset))
+                .appendQueryParameter(JokeContentProvider.PARAM_IMPORT_COUNT, Long.toString(importedBefore))
+                .build();
+
+        final int inserted = contentResolver.bulkInsert(uri, rows);
+
+        // The provider holds the checkpoint from now on.
+        if (legacyCheckpoints.contains(CHECKPOINT_OFFSET_KEY + key)) {
+            legacyCheckpoints.edit()
+                    .remove(CHECKPOINT_OFFSET_KEY + key)
+                    .remove(CHECKPOINT_COUNT_KEY + key)
+                    .apply();
+        }
+
+        return inserted;
+    }
+
+    /**
+     * Reads the next non-empty record into the record buffer, advancing the offset past it.
+     * Records end at a newline, except inside a quoted CSV field. A record longer than
+     * MAX_RECORD_LENGTH is read past without being kept.
+     *
+     * @return
+     *          False at the end of the file.
+     */
+    private boolean readRecord(final InputStream in, final boolean csv) throws IOException {
+        recordLength = 0;
+        boolean quoted = false;
+        boolean tooLong = false;
+
+        int b;
+        while (-1 != (b = read(in))) {
+            offset++;
+
+            if ('\n' == b && !quoted) {
+                if (tooLong) {
+                    Log.w(TAG, "Skipping record longer than " + MAX_RECORD_LENGTH + " bytes before offset " + offset);
+                    recordLength = 0;
+                    tooLong = false;
+                    continue;
+                }
+                if (recordLength > 0 && '\r' == record[recordLength - 1]) {
+                    recordLength--;
+                }
+                if (recordLength > 0) {
+                    return true;
+                }
+                continue;
+            }
+
+            if (csv && '"' == b) {
+                quoted = !quoted;
+            }
+
+            if (tooLong) {
+                continue;
+            }
+            if (recordLength == MAX_RECORD_LENGTH) {
+                tooLong = true;
+                continue;
+            }
+            if (recordLength == record.length) {
+                record = Arrays.copyOf(record, Math.min(record.length * 2, MAX_RECORD_LENGTH));
+            }
+            record[recordLength++] = (byte) b;
+        }
+
+        if (tooLong) {
+            Log.w(TAG, "Skipping record longer than " + MAX_RECORD_LENGTH + " bytes at the end of the file");
+            recordLength = 0;
+        }
+
+        return recordLength > 0;
+    }
+
+    /**
+     * Returns the next byte of the file, refilling the read buffer when it runs out, or -1 at the end.
+     */
+    private int read(final InputStream in) throws IOException {
+        if (bufferPosition == bufferLimit) {
+            bufferLimit = in.read(buffer, 0, buffer.length);
+            bufferPosition = 0;
+
+            if (bufferLimit <= 0) {
+                bufferLimit = 0;
+                return -1;
+            }
+        }
+        return buffer[bufferPosition++] & 0xff;
+    }
+
+    private static boolean parseJson(final String line, final ContentValues values) {
+        final JsonReader reader = new JsonReader(new StringReader(line));
+
+        try {
+            int rating = Joke.UNRATED;
+            String text = null;
+
+            reader.beginObject();
+            while (reader.hasNext()) {
+                final String name = reader.nextName();
+
+                if (JokeTable.KEY_TEXT.equals(name)) {
+                    text = reader.nextString();
+                } else if (JokeTable.KEY_RATING.equals(name)) {
+                    rating = reader.nextInt();
+                } else {
+                    reader.skipValue();
+                }
+            }
+            reader.endObject();
+
+            return put(values, text, rating);
+        } catch (IOException | IllegalStateException | NumberFormatException e) {
+            Log.w(TAG, "Skipping malformed JSON record: " + e.getMessage());
+            return false;
+        }
+    }
+
+    private static boolean parseCsv(final String line, final ContentValues values, final boolean firstRecord) {
+        final StringBuilder text = new StringBuilder(line.length());
+
+        int i = readCsvField(line, 0, text);
+
+        if (firstRecord && JokeTable.KEY_TEXT.equalsIgnoreCase(text.toString().trim())) {
+            return false; // Header row.
+        }
+
+        int rating = Joke.UNRATED;
+        if (i < line.length()) {
+            final StringBuilder ratingField = new StringBuilder(2);
+            readCsvField(line, i + 1, ratingField);
+
+            try {
+                rating = Integer.parseInt(ratingField.toString().trim());
+            } catch (NumberFormatException e) {
+                Log.w(TAG, "Skipping CSV record with malformed rating: " + ratingField);
+                return false;
+            }
+        }
+
+        return put(values, text.toString(), rating);
+    }
+
+    /**
+     * Reads one CSV field starting at the given index, unquoting it if needed.
+     *
+     * @return
+     *          The index of the comma ending the field, or the length of the line.
+     */
+    private static int readCsvField(final String line, int i, final StringBuilder field) {
+        if (i < line.length() && '"' == line.charAt(i)) {
+            i++;
+            while (i < line.length()) {
+                final char c = line.charAt(i++);
+                if ('"' != c) {
+                    field.append(c);
+                } else if (i < line.length() && '"' == line.charAt(i)) {
+                    field.append('"');
+                    i++;
+                } else {
+                    break;
+                }
+            }
+        }
+
+        while (i < line.length() && ',' != line.charAt(i)) {
+            field.append(line.charAt(i++));
+        }
+
+        return i;
+    }
+
+    private static boolean put(final ContentValues values, final String text, final int rating) {
+        if (null == text || text.trim().isEmpty()
+                || (Joke.UNRATED != rating && Joke.LIKE != rating && Joke.DISLIKE != rating)) {
+            return false;
+        }
+
+        values.put(JokeTable.KEY_TEXT, text.trim());
+        values.put(JokeTable.KEY_RATING, rating);
+        return true;
+    }
+
+    private long getLength(final Uri source) {
+        try {
+            final AssetFileDescriptor descriptor = contentResolver.openAssetFileDescriptor(source, "r");
+            if (null != descriptor) {
+                final long length = descriptor.getLength();
+                descriptor.close();
+                return length;
+            }
+        } catch (IOException e) {
+            Log.w(TAG, "Unable to read the size of " + source, e);
+        }
+        return AssetFileDescriptor.UNKNOWN_LENGTH;
+    }
+
+    private static void skipFully(final InputStream in, long bytes) throws IOException {
+        while (bytes > 0) {
+            final long skipped = in.skip(bytes);
+            if (skipped <= 0) {
+                if (-1 == in.read()) {
+                    throw new IOException("Checkpoint is past the end of the file");
+                }
+                bytes--;
+            } else {
+                bytes -= skipped;
+            }
+        }
+    }
+}
@@ -0,0 +1,127 @@
+package edu.cvtc.android.jokeview;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Histogram of latencies in microseconds, in the style of HdrHistogram: every power of two
+ * is split into SUB_BUCKETS equal buckets, so any recorded value is known to within
+ * 1 / SUB_BUCKETS of itself while latencies of up to many hours fit in a few hundred counters.
+ *
+ * Recording is a few shifts and one atomic increment, with no locks or allocation,
+ * so it is cheap enough to run on every provider call from any thread.
+ * Reads are not atomic with respect to writes, which only matters to within a few samples.
+ */
+public class JokeLatencyHistogram {
+
+    private static final int SUB_BUCKET_BITS = 3;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+
+    /**
+     * Latencies are recorded up to 2^(MAX_EXPONENT + SUB_BUCKET_BITS + 1) microseconds,
+     * about 19 hours; longer ones are counted in the last bucket.
+     */
+    private static final int MAX_EXPONENT = 32;
+
+    private final AtomicLongArray counts = new AtomicLongArray((MAX_EXPONENT + 2) * SUB_BUCKETS);
+    private final AtomicLong count = new AtomicLong();
+    private final AtomicLong totalMicros = new AtomicLong();
+    private final AtomicLong maxMicros = new AtomicLong();
+
+    /**
+     * Records one latency.
+     *
+     * @param nanos
+     *          The latency in nanoseconds, as measured with System.nanoTime.
+     */
+    public void record(final long nanos) {
+        final long micros = Math.max(0, nanos / 1000);
+
+        counts.incrementAndGet(getBucket(micros));
+        count.incrementAndGet();
+        totalMicros.addAndGet(micros);
+
+        long max = maxMicros.get();
+        while (micros > max && !maxMicros.compareAndSet(max, micros)) {
+            max = maxMicros.get();
+        }
+    }
+
+    public long getCount() {
+        return count.get();
+    }
+
+    public long getMaxMicros() {
+        return maxMicros.get();
+    }
+
+    public long getMeanMicros() {
+        final long n = count.get();
+        return 0 == n ? 0 : totalMicros.get() / n;
+    }
+
+    /**
+     * Returns the latency that a percentage of recorded latencies are at or below,
+     * rounded up to the top of its bucket, or 0 if nothing was recorded.
+     *
+     * @param percent
+     *          The percentile, from 0 to 100.
+     */
+    public long getPercentileMicros(final double percent) {
+        final long n = count.get();
+        if (0 == n) {
+            return 0;
+        }
+
+        final long rank = Math.max(1, (long) Math.ceil(percent / 100 * n));
+        long seen = 0;
+
+        for (int bucket = 0; bucket < counts.length(); bucket++) {
+            seen += counts.get(bucket);
+            if (seen >= rank) {
+                return Math.min(getBucketTop(bucket), maxMicros.get());
+            }
+        }
+        return maxMicros.get();
+    }
+
+    public void reset() {
+        for (int bucket = 0; bucket < counts.length(); bucket++) {
+            counts.set(bucket, 0);
+        }
+        count.set(0);
+        totalMicros.set(0);
+        maxMicros.set(0);
+    }
+
+    /**
+     * Values below SUB_BUCKETS get a bucket each; above that, the bucket is picked by
+     * the highest set bit and the SUB_BUCKET_BITS bits below it.
+     */
+    private static int getBucket(final long micros) {
+        if (micros < SUB_BUCKETS) {
+            return (int) micros;
+        }
+
+        final int exponent = 63 - Long.numberOfLeadingZeros(micros) - SUB_BUCKET_BITS;
+        if (exponent > MAX_EXPONENT) {
+            return (MAX_EXPONENT + 2) * SUB_BUCKETS - 1;
+        }
+
+        final int subBucket = (int) (micros >>> exponent) - SUB_BUCKETS;
+        return (exponent + 1) * SUB_BUCKETS + subBucket;
+    }
+
+    /**
+     * Returns the largest value that falls in a bucket.
+     */
+    private static long getBucketTop(final int bucket) {
+        if (bucket < SUB_BUCKETS) {
+            return bucket;
+        }
+
+        final int exponent = bucket / SUB_BUCKETS - 1;
+        final int subBucket = bucket % SUB_BUCKETS;
+        return ((long) (SUB_BUCKETS + subBucket + 1) << exponent) - 1;
+    }
+}
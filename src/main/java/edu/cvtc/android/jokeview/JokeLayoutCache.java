@@ -0,0 +1,333 @@
+package edu.cvtc.android.jokeview;
+
+import android.content.Context;
+import android.content.res.TypedArray;
+import android.database.CharArrayBuffer;
+import android.database.Cursor;
+import android.graphics.Color;
+import android.graphics.Paint;
+import android.text.Layout;
+import android.text.StaticLayout;
+import android.text.TextPaint;
+import android.util.LruCache;
+import android.util.TypedValue;
+
+import java.util.ArrayDeque;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Least-recently-used cache of the StaticLayouts JokeViews draw their text with,
+ * so a joke scrolling back into view is not measured and broken into lines again.
+ *
+ * Layouts are keyed by joke ID, text width and a hash of the text, so a joke whose text
+ * or width changed gets a new layout. The cache is bounded by an estimate of the bytes
+ * its layouts hold rather than by a number of entries, since a long joke's layout is
+ * many times the size of a one-liner's.
+ *
+ * Layouts for rows just outside the visible part of the list can be built ahead of time
+ * on a background thread with warmUp. The UI thread only copies each row's ID and text
+ * into a pooled WarmUpRow; the String and the layout are made on the background thread.
+ * Every cached layout holds its own String copy of the text, since the text a JokeView
+ * is bound with may be a reused buffer.
+ */
+public class JokeLayoutCache {
+
+    /**
+     * Memory budget of the shared cache.
+     */
+    public static final int DEFAULT_MAX_BYTES = 1024 * 1024;
+
+    /**
+     * Estimated bytes held by a layout in addition to its text, and per line of text.
+     */
+    private static final int LAYOUT_OVERHEAD_BYTES = 160;
+    private static final int LINE_OVERHEAD_BYTES = 32;
+
+    /**
+     * Most idle WarmUpRows kept for reuse.
+     */
+    private static final int MAX_POOLED_ROWS = 32;
+
+    private static JokeLayoutCache instance;
+
+    /**
+     * Identifies a layout. Instances are immutable once they are in the cache;
+     * lookups on the UI thread reuse a single mutable Key instead of allocating one.
+     */
+    private static class Key {
+        private long id;
+        private int width;
+        private int textHash;
+
+        private Key(final long id, final int width, final int textHash) {
+            set(id, width, textHash);
+        }
+
+        private Key set(final long id, final int width, final int textHash) {
+            this.id = id;
+            this.width = width;
+            this.textHash = textHash;
+            return this;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof Key)) {
+                return false;
+            }
+
+            final Key key = (Key) o;
+            return id == key.id && width == key.width && textHash == key.textHash;
+        }
+
+        @Override
+        public int hashCode() {
+            int result = (int) (id ^ (id >>> 32));
+            result = 31 * result + width;
+            result = 31 * result + textHash;
+            return result;
+        }
+    }
+
+    /**
+     * A row to lay out ahead of time: its joke ID and a copy of its text, filled on
+     * the UI thread without creating a Joke or a String. Runs on the warm-up thread,
+     * then goes back to the pool.
+     */
+    public class WarmUpRow implements Runnable {
+        private long id;
+        private int width;
+        private final CharArrayBuffer text = new CharArrayBuffer(128);
+
+        private WarmUpRow() {
+        }
+
+        /**
+         * Copies the ID and text of the cursor's current row.
+         */
+        public void set(final Cursor cursor) {
+            id = cursor.getLong(JokeTable.INDEX_ID);
+            cursor.copyStringToBuffer(JokeTable.INDEX_TEXT, text);
+        }
+
+        @Override
+        public void run() {
+            try {
+                final Key key = new Key(id, width, hash(text.data, text.sizeCopied));
+
+                if (null == layouts.get(key)) {
+                    layouts.put(key, createLayout(new String(text.data, 0, text.sizeCopied), width, warmUpPaint));
+                    warmUpCount.incrementAndGet();
+                }
+            } finally {
+                recycle(this);
+            }
+        }
+    }
+
+    private final LruCache<Key, StaticLayout> layouts;
+
+    /**
+     * Paint used to build layouts on the UI thread, and a copy of it used by warm-up,
+     * since a Paint must not be used by two threads at once.
+     */
+    private final TextPaint textPaint;
+    private final TextPaint warmUpPaint;
+
+    private final Key lookupKey = new Key(0, 0, 0);
+
+    private final ExecutorService warmUpExecutor = Executors.newSingleThreadExecutor();
+
+    /**
+     * Idle WarmUpRows. Guarded by itself.
+     */
+    private final ArrayDeque<WarmUpRow> rowPool = new ArrayDeque<>(MAX_POOLED_ROWS);
+
+    /**
+     * The text width JokeViews were last measured at, or -1 before the first measure.
+     */
+    private volatile int textWidth = -1;
+
+    private final AtomicLong hitCount = new AtomicLong();
+    private final AtomicLong missCount = new AtomicLong();
+    private final AtomicLong warmUpCount = new AtomicLong();
+
+    /**
+     * Returns the cache shared by every JokeView in the application.
+     */
+    public static synchronized JokeLayoutCache getInstance(final Context context) {
+        if (null == instance) {
+            instance = new JokeLayoutCache(context.getApplicationContext(), DEFAULT_MAX_BYTES);
+        }
+        return instance;
+    }
+
+    public JokeLayoutCache(final Context context, final int maxBytes) {
+        textPaint = createTextPaint(context);
+        warmUpPaint = new TextPaint(textPaint);
+
+        layouts = new LruCache<Key, StaticLayout>(maxBytes) {
+            @Override
+            protected int sizeOf(Key key, StaticLayout layout) {
+                return estimateBytes(layout);
+            }
+        };
+    }
+
+    /**
+     * Styles text the same way a plain TextView would be styled by the theme.
+     */
+    private static TextPaint createTextPaint(final Context context) {
+        final TextPaint paint = new TextPaint(Paint.ANTI_ALIAS_FLAG);
+
+        final TypedValue appearance = new TypedValue();
+        context.getTheme().resolveAttribute(android.R.attr.textAppearanceSmall, appearance, true);
+
+        final TypedArray attributes = context.obtainStyledAttributes(appearance.resourceId,
+                new int[] {android.R.attr.textSize, android.R.attr.textColor});
+        try {
+            paint.setTextSize(attributes.getDimensionPixelSize(0,
+                    Math.round(14 * context.getResources().getDisplayMetrics().scaledDensity)));
+            paint.setColor(attributes.getColor(1, Color.DKGRAY));
+        } finally {
+            attributes.recycle();
+        }
+
+        return paint;
+    }
+
+    /**
+     * Records the width JokeViews lay their text out at, which warm-up uses.
+     */
+    public void setTextWidth(final int textWidth) {
+        this.textWidth = textWidth;
+    }
+
+    /**
+     * Returns the layout of a joke's text, building and caching it on a miss.
+     * Must only be called on the UI thread.
+     *
+     * @param id
+     *          The ID of the joke, or 0 if it has not been inserted yet.
+     * @param text
+     *          The joke's text. Only read during this call.
+     * @param width
+     *          The width to lay the text out at.
+     */
+    public StaticLayout getLayout(final long id, final CharSequence text, final int width) {
+        final int textHash = hash(text);
+
+        StaticLayout layout = layouts.get(lookupKey.set(id, width, textHash));
+        if (null != layout && layout.getText().length() == text.length()) {
+            hitCount.incrementAndGet();
+            return layout;
+        }
+
+        missCount.incrementAndGet();
+
+        layout = createLayout(text.toString(), width, textPaint);
+        layouts.put(new Key(id, width, textHash), layout);
+
+        return layout;
+    }
+
+    /**
+     * Returns an idle WarmUpRow to fill and pass to warmUp.
+     */
+    public WarmUpRow obtainWarmUpRow() {
+        synchronized (rowPool) {
+            final WarmUpRow row = rowPool.poll();
+            return null != row ? row : new WarmUpRow();
+        }
+    }
+
+    /**
+     * Builds the layout of a row on a background thread, unless it is already cached.
+     * The row must not be touched again by the caller. Does nothing but recycle the row
+     * until a JokeView has been measured.
+     */
+    public void warmUp(final WarmUpRow row) {
+        row.width = textWidth;
+
+        if (row.width < 0) {
+            recycle(row);
+            return;
+        }
+
+        warmUpExecutor.execute(row);
+    }
+
+    private void recycle(final WarmUpRow row) {
+        synchronized (rowPool) {
+            if (rowPool.size() < MAX_POOLED_ROWS) {
+                rowPool.push(row);
+            }
+        }
+    }
+
+    public long getHitCount() {
+        return hitCount.get();
+    }
+
+    public long getMissCount() {
+        return missCount.get();
+    }
+
+    /**
+     * Returns the number of layouts built ahead of time by warm-up.
+     */
+    public long getWarmUpCount() {
+        return warmUpCount.get();
+    }
+
+    /**
+     * Returns the estimated bytes held by the cached layouts.
+     */
+    public int getSizeBytes() {
+        return layouts.size();
+    }
+
+    public int getMaxSizeBytes() {
+        return layouts.maxSize();
+    }
+
+    public void clear() {
+        layouts.evictAll();
+    }
+
+    private static StaticLayout createLayout(final String text, final int width, final TextPaint paint) {
+        return new StaticLayout(text, paint, width, Layout.Alignment.ALIGN_NORMAL, 1.0f, 0.0f, false);
+    }
+
+    /**
+     * Hashes text the way String.hashCode does, without turning a buffer into a String.
+     */
+    private static int hash(final CharSequence text) {
+        if (text instanceof String) {
+            return text.hashCode();
+        }
+
+        int hash = 0;
+        for (int i = 0, length = text.length(); i < length; i++) {
+            hash = 31 * hash + text.charAt(i);
+        }
+        return hash;
+    }
+
+    private static int hash(final char[] text, final int length) {
+        int hash = 0;
+        for (int i = 0; i < length; i++) {
+            hash = 31 * hash + text[i];
+        }
+        return hash;
+    }
+
+    private static int estimateBytes(final StaticLayout layout) {
+        return LAYOUT_OVERHEAD_BYTES + 2 * layout.getText().length() + LINE_OVERHEAD_BYTES * layout.getLineCount();
+    }
+}
@@ -0,0 +1,394 @@
+package edu.cvtc.android.jokeview;
+
+import android.database.AbstractCursor;
+import android.database.CharArrayBuffer;
+import android.database.Cursor;
+import android.util.SparseIntArray;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Cursor that sits between the CursorLoader's result set and the JokeCursorAdapter,
+ * allowing single rows to be patched (rating changed, removed, or added) without
+ * re-querying the whole joke table.
+ *
+ * The rows from the provider arrive in one or more pages: the first page is the Cursor
+ * delivered by the CursorLoader, and later pages are appended as the list scrolls.
+ * Rows from the pages are addressed by their position across all pages (the "source
+ * position"). Removed rows are remembered as hidden source positions, changed ratings
+ * are remembered per source position, and added jokes are kept in memory and shown
+ * after the paged rows. The cost of a patch therefore depends on the number of
+ * patches, never on the number of rows in the table.
+ *
+ * Added jokes may not have been inserted yet, so each is given its item ID when it is
+ * added: its own ID if it has one, or else a temporary negative ID, which can never
+ * collide with a database ID. It keeps that item ID once it is inserted, so the list's
+ * stable IDs never change under a row.
+ *
+ * Expects every page to use the column order defined in JokeTable
+ * (INDEX_ID, INDEX_TEXT, INDEX_RATING) and to be ordered by ID.
+ */
+public class JokeListCursor extends AbstractCursor {
+
+    /**
+     * Pages of rows loaded from the JokeContentProvider, along with the source position
+     * of the first row of each page. The first page belongs to the CursorLoader; the rest
+     * belong to this Cursor and are closed with it.
+     */
+    private final List<Cursor> pages = new ArrayList<>();
+    private int[] pageStarts = new int[8];
+    private int sourceRowCount;
+
+    /**
+     * ID of the last row of the last non-empty page, used as the key for the next page.
+     */
+    private long lastSourceId;
+
+    /**
+     * Sorted source positions of rows that have been removed from the list.
+     */
+    private int[] hiddenPositions = new int[8];
+    private int hiddenCount;
+
+    /**
+     * Ratings that have changed since the pages were loaded, keyed by source position.
+     */
+    private final SparseIntArray changedRatings = new SparseIntArray();
+
+    /**
+     * Jokes added since the pages were loaded, shown after the paged rows.
+     */
+    private final List<Joke> addedJokes = new ArrayList<>();
+
+    /**
+     * Item IDs of the added jokes, kept by instance since Joke.equals compares text,
+     * and the next temporary ID to give out, counting down from -1.
+     */
+    private final Map<Joke, Long> addedItemIds = new IdentityHashMap<>();
+    private long nextUnsavedId = -1;
+
+    /**
+     * The page the cursor is positioned on, or the added Joke when positioned after the pages.
+     */
+    private Cursor currentPage;
+    private Joke currentJoke;
+    private int currentSourcePosition = -1;
+
+    public JokeListCursor(final Cursor firstPage) {
+        addPage(firstPage);
+    }
+
+    /**
+     * Appends the next page of rows. Added jokes that the page already contains are
+     * dropped: an added joke whose ID is at most the page's last ID was committed
+     * before the page was queried, so the page holds its row.
+     *
+     * @param page
+     *          The rows following the last page, ordered by ID.
+     */
+    public void addPage(final Cursor page) {
+        final int count = page.getCount();
+
+        if (pages.size() == pageStarts.length) {
+            pageStarts = Arrays.copyOf(pageStarts, pageStarts.length * 2);
+        }
+        pageStarts[pages.size()] = sourceRowCount;
+        pages.add(page);
+        sourceRowCount += count;
+
+        if (count > 0 && page.moveToLast()) {
+            lastSourceId = page.getLong(JokeTable.INDEX_ID);
+
+            final Iterator<Joke> iterator = addedJokes.iterator();
+            while (iterator.hasNext()) {
+                final Joke joke = iterator.next();
+                if (0 < joke.getId() && joke.getId() <= lastSourceId) {
+                    iterator.remove();
+                    addedItemIds.remove(joke);
+                }
+            }
+        }
+
+        resetPosition();
+    }
+
+    /**
+     * Returns the ID to page after when loading the next page.
+     */
+    public long getLastSourceId() {
+        return lastSourceId;
+    }
+
+    /**
+     * Closes the pages this Cursor loaded itself. The first page is left
+     * for the CursorLoader that delivered it.
+     */
+    @Override
+    public void close() {
+        super.close();
+
+        for (int i = 1; i < pages.size(); i++) {
+            pages.get(i).close();
+        }
+    }
+
+    /**
+     * Changes the rating of the row at the given list position.
+     *
+     * @param position
+     *          The position of the row in this Cursor.
+     * @param rating
+     *          The new rating of the joke.
+     */
+    public void setRating(final int position, final int rating) {
+        final int sourceCount = getSourceCount();
+
+        if (position < sourceCount) {
+            changedRatings.put(toSourcePosition(position), rating);
+        } else {
+            addedJokes.get(position - sourceCount).setRating(rating);
+        }
+
+        resetPosition();
+    }
+
+    /**
+     * Removes the row at the given list position.
+     *
+     * @param position
+     *          The position of the row in this Cursor.
+     */
+    public void remove(final int position) {
+        final int sourceCount = getSourceCount();
+
+        if (position < sourceCount) {
+            hide(toSourcePosition(position));
+        } else {
+            addedItemIds.remove(addedJokes.remove(position - sourceCount));
+        }
+
+        resetPosition();
+    }
+
+    /**
+     * Adds a joke to the end of the list.
+     *
+     * @param joke
+     *          The joke to add.
+     */
+    public void add(final Joke joke) {
+        addedJokes.add(joke);
+        addedItemIds.put(joke, 0 != joke.getId() ? joke.getId() : nextUnsavedId--);
+
+        resetPosition();
+    }
+
+    /**
+     * Returns the added Joke at the current position, or null if the current row
+     * came from a page. Added jokes may still be waiting on their insert,
+     * so writes to them must go through this same instance.
+     */
+    public Joke getAddedJoke() {
+        return currentJoke;
+    }
+
+    /**
+     * Returns the item ID of the row at the current position: the joke's ID for a row
+     * from a page, or the item ID an added joke was given when it was added.
+     */
+    public long getItemId() {
+        if (null != currentJoke) {
+            return addedItemIds.get(currentJoke);
+        }
+        return currentPage.getLong(JokeTable.INDEX_ID);
+    }
+
+    /**
+     * The row at the current position may have moved, so force the next
+     * move to reposition instead of short-circuiting on the same position.
+     */
+    private void resetPosition() {
+        mPos = -1;
+    }
+
+    private int getSourceCount() {
+        return sourceRowCount - hiddenCount;
+    }
+
+    /**
+     * Converts a list position of a source row into its source position
+     * by stepping over every hidden row at or before it.
+     */
+    private int toSourcePosition(final int position) {
+        int sourcePosition = position;
+
+        for (int i = 0; i < hiddenCount && hiddenPositions[i] <= sourcePosition; i++) {
+            sourcePosition++;
+        }
+
+        return sourcePosition;
+    }
+
+    private void hide(final int sourcePosition) {
+        int index = Arrays.binarySearch(hiddenPositions, 0, hiddenCount, sourcePosition);
+
+        if (index >= 0) {
+            return;
+        }
+
+        index = -(index + 1);
+
+        if (hiddenCount == hiddenPositions.length) {
+            hiddenPositions = Arrays.copyOf(hiddenPositions, hiddenCount * 2);
+        }
+
+        System.arraycopy(hiddenPositions, index, hiddenPositions, index + 1, hiddenCount - index);
+        hiddenPositions[index] = sourcePosition;
+        hiddenCount++;
+    }
+
+    @Override
+    public boolean onMove(final int oldPosition, final int newPosition) {
+        final int sourceCount = getSourceCount();
+
+        if (newPosition < sourceCount) {
+            currentJoke = null;
+            currentSourcePosition = toSourcePosition(newPosition);
+
+            int page = Arrays.binarySearch(pageStarts, 0, pages.size(), currentSourcePosition);
+            if (page < 0) {
+                page = -(page + 1) - 1;
+            }
+
+            // Skip over empty pages sharing the same start.
+            while (page + 1 < pages.size() && pageStarts[page + 1] <= currentSourcePosition) {
+                page++;
+            }
+
+            currentPage = pages.get(page);
+            return currentPage.moveToPosition(currentSourcePosition - pageStarts[page]);
+        }
+
+        currentPage = null;
+        currentJoke = addedJokes.get(newPosition - sourceCount);
+        currentSourcePosition = -1;
+        return true;
+    }
+
+    @Override
+    public int getCount() {
+        return getSourceCount() + addedJokes.size();
+    }
+
+    @Override
+    public String[] getColumnNames() {
+        return pages.get(0).getColumnNames();
+    }
+
+    @Override
+    public String getString(final int column) {
+        if (null != currentJoke) {
+            return column == JokeTable.INDEX_TEXT ? currentJoke.getText() : String.valueOf(getLong(column));
+        }
+
+        if (column == JokeTable.INDEX_RATING && hasChangedRating()) {
+            return String.valueOf(getChangedRating());
+        }
+
+        return currentPage.getString(column);
+    }
+
+    /**
+     * Copies text straight out of the page's CursorWindow instead of going through
+     * getString, so binding a row does not create a String.
+     */
+    @Override
+    public void copyStringToBuffer(final int column, final CharArrayBuffer buffer) {
+        if (null == currentJoke && !(column == JokeTable.INDEX_RATING && hasChangedRating())) {
+            currentPage.copyStringToBuffer(column, buffer);
+            return;
+        }
+
+        final String text = getString(column);
+        final int length = null != text ? text.length() : 0;
+
+        if (null == buffer.data || buffer.data.length < length) {
+            buffer.data = new char[length];
+        }
+        if (length > 0) {
+            text.getChars(0, length, buffer.data, 0);
+        }
+        buffer.sizeCopied = length;
+    }
+
+    @Override
+    public short getShort(final int column) {
+        return (short) getLong(column);
+    }
+
+    @Override
+    public int getInt(final int column) {
+        return (int) getLong(column);
+    }
+
+    @Override
+    public long getLong(final int column) {
+        if (null != currentJoke) {
+            switch (column) {
+                case JokeTable.INDEX_ID:
+                    return currentJoke.getId();
+                case JokeTable.INDEX_RATING:
+                    return currentJoke.getRating();
+                default:
+                    return Long.parseLong(currentJoke.getText());
+            }
+        }
+
+        if (column == JokeTable.INDEX_RATING && hasChangedRating()) {
+            return getChangedRating();
+        }
+
+        return currentPage.getLong(column);
+    }
+
+    @Override
+    public float getFloat(final int column) {
+        return getLong(column);
+    }
+
+    @Override
+    public double getDouble(final int column) {
+        return getLong(column);
+    }
+
+    @Override
+    public int getType(final int column) {
+        if (null != currentJoke) {
+            return column == JokeTable.INDEX_TEXT ? FIELD_TYPE_STRING : FIELD_TYPE_INTEGER;
+        }
+
+        return currentPage.getType(column);
+    }
+
+    @Override
+    public boolean isNull(final int column) {
+        if (null != currentJoke) {
+            return column == JokeTable.INDEX_TEXT && null == currentJoke.getText();
+        }
+
+        return currentPage.isNull(column);
+    }
+
+    private boolean hasChangedRating() {
+        return changedRatings.indexOfKey(currentSourcePosition) >= 0;
+    }
+
+    private int getChangedRating() {
+        return changedRatings.get(currentSourcePosition);
+    }
+}
@@ -0,0 +1,260 @@
+package edu.cvtc.android.jokeview;
+
+import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+import android.util.Log;
+
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Ordered registry of the steps that upgrade the joke database from one version to the next.
+ *
+ * Each step brings the schema from the version before it up to its own version, and runs
+ * in its own transaction, nested in the transaction SQLiteOpenHelper runs the whole upgrade
+ * in. A step that fails rolls the upgrade back and leaves the database at its old version
+ * with every joke in it, so the upgrade is tried again the next time the database is opened.
+ * No step ever drops the joke table.
+ *
+ * Steps that would have to copy the whole joke table register a backfill instead of doing
+ * the copy while the database is being opened. Backfills copy rows in chunks keyed on ID,
+ * each chunk in its own short transaction, and record how far they got in the migration table,
+ * so they run in the background without holding the database and pick up where they left
+ * off if the app is stopped. Rows written after a backfill is registered are kept up to date
+ * by triggers, so a backfill only covers the IDs that existed when it was registered.
+ *
+ * To change the schema, add a step for DATABASE_VERSION + 1 to the end of MIGRATIONS
+ * and raise JokeDatabaseHelper.DATABASE_VERSION.
+ */
+public class JokeMigrations {
+
+    private static final String TAG = "joke_migrations";
+
+    /**
+     * Number of rows copied per backfill transaction.
+     */
+    private static final int BACKFILL_CHUNK_SIZE = 500;
+
+    /**
+     * Table recording the progress of every backfill.
+     */
+    public static final String TABLE_NAME = "joke_migration";
+
+    public static final String KEY_NAME = "name";
+    public static final String KEY_LAST_ID = "last_id";
+    public static final String KEY_END_ID = "end_id";
+
+    private static final String DATABASE_CREATE = "create table if not exists " + TABLE_NAME + " (" +
+            KEY_NAME + " text primary key, " +
+            KEY_LAST_ID + " integer not null, " +
+            KEY_END_ID + " integer not null);";
+
+    /**
+     * One step of the upgrade, bringing the schema up to its version.
+     */
+    public static abstract class Migration {
+
+        private final int version;
+
+        protected Migration(final int version) {
+            this.version = version;
+        }
+
+        public int getVersion() {
+            return version;
+        }
+
+        protected abstract void migrate(SQLiteDatabase database);
+    }
+
+    /**
+     * Copies joke table rows with IDs in a range into another table. The statement
+     * takes the ID to copy after and the last ID to copy as arguments.
+     */
+    private static class Backfill {
+
+        private final String name;
+        private final String copyStatement;
+
+        private Backfill(final String name, final String copyStatement) {
+            this.name = name;
+            this.copyStatement = copyStatement;
+        }
+    }
+
+    private static final Backfill SEARCH_BACKFILL = new Backfill(JokeSearchTable.TABLE_NAME,
+            JokeSearchTable.POPULATE_RANGE);
+
+    private static final Backfill COUNT_BACKFILL = new Backfill(JokeCountTable.TABLE_NAME,
+            JokeCountTable.POPULATE_RANGE);
+
+    private static final List<Backfill> BACKFILLS = Arrays.asList(SEARCH_BACKFILL, COUNT_BACKFILL);
+
+    /**
+     * Every upgrade step, in version order.
+     */
+    private static final List<Migration> MIGRATIONS = Arrays.asList(
+
+            // Covering index for the rating filters.
+            new Migration(2) {
+                @Override
+                protected void migrate(SQLiteDatabase database) {
+                    database.execSQL(JokeTable.RATING_INDEX_CREATE);
+                }
+            },
+
+            // Full-text search. Existing jokes are indexed by a backfill.
+            new Migration(3) {
+                @Override
+                protected void migrate(SQLiteDatabase database) {
+                    JokeSearchTable.onCreate(database);
+                    registerBackfill(database, SEARCH_BACKFILL);
+                }
+            },
+
+            // Per-rating counts. Existing jokes are counted by a backfill.
+            new Migration(4) {
+                @Override
+                protected void migrate(SQLiteDatabase database) {
+                    onCreate(database);
+                    JokeCountTable.onCreate(database);
+                    registerBackfill(database, COUNT_BACKFILL);
+                }
+            },
+
+            // Import checkpoints, written in the same transaction as the imported jokes.
+            new Migration(5) {
+                @Override
+                protected void migrate(SQLiteDatabase database) {
+                    JokeImportTable.onCreate(database);
+                }
+            }
+    );
+
+    /**
+     * Creates the table recording backfill progress, if it does not exist yet.
+     *
+     * @param database
+     *          The database to initialize.
+     */
+    public static void onCreate(final SQLiteDatabase database) {
+        database.execSQL(DATABASE_CREATE);
+    }
+
+    /**
+     * Upgrades the database by running every step after the old version,
+     * up to and including the new version, in order.
+     *
+     * @param database
+     *          The database to upgrade.
+     * @param oldVersion
+     *          The old version of the database.
+     * @param newVersion
+     *          The new version of the database.
+     */
+    public static void onUpgrade(final SQLiteDatabase database, int oldVersion, int newVersion) {
+        for (final Migration migration : MIGRATIONS) {
+            if (migration.getVersion() <= oldVersion || migration.getVersion() > newVersion) {
+                continue;
+            }
+
+            final long start = System.nanoTime();
+
+            database.beginTransaction();
+            try {
+                migration.migrate(database);
+                database.setTransactionSuccessful();
+            } finally {
+                database.endTransaction();
+            }
+
+            Log.i(TAG, "Migrated to version " + migration.getVersion() + " in " +
+                    (System.nanoTime() - start) / 1000000 + " ms");
+        }
+    }
+
+    /**
+     * Runs every unfinished backfill to completion, one chunk at a time.
+     * Blocks, so it must be run on a background thread.
+     *
+     * @param database
+     *          The open joke database.
+     */
+    public static void runBackfills(final SQLiteDatabase database) {
+        if (0 == DatabaseUtils.queryNumEntries(database, "sqlite_master",
+                "type = 'table' and name = ?", new String[] {TABLE_NAME})) {
+            return;
+        }
+
+        for (final Backfill backfill : BACKFILLS) {
+            while (copyChunk(database, backfill)) {
+                // Each chunk commits on its own, letting other writers in between.
+            }
+        }
+    }
+
+    /**
+     * Records a backfill of every joke that is in the joke table now.
+     * Triggers must already be keeping the target up to date for new rows.
+     */
+    private static void registerBackfill(final SQLiteDatabase database, final Backfill backfill) {
+        onCreate(database);
+
+        final long endId = DatabaseUtils.longForQuery(database,
+                "select ifnull(max(" + JokeTable.KEY_ID + "), 0) from " + JokeTable.TABLE_NAME, null);
+
+        database.execSQL("insert or replace into " + TABLE_NAME + " (" + KEY_NAME + ", " + KEY_LAST_ID + ", " + KEY_END_ID + ")" +
+                " values (?, 0, ?)", new Object[] {backfill.name, endId});
+    }
+
+    /**
+     * Copies the next chunk of a backfill and records its progress in the same transaction,
+     * removing the backfill once it is done.
+     *
+     * @return
+     *          True if there may be more chunks to copy.
+     */
+    private static boolean copyChunk(final SQLiteDatabase database, final Backfill backfill) {
+        database.beginTransaction();
+        try {
+            final Cursor progress = database.query(TABLE_NAME, new String[] {KEY_LAST_ID, KEY_END_ID},
+                    KEY_NAME + " = ?", new String[] {backfill.name}, null, null, null);
+
+            final long lastId;
+            final long endId;
+            try {
+                if (!progress.moveToFirst()) {
+                    return false;
+                }
+                lastId = progress.getLong(0);
+                endId = progress.getLong(1);
+            } finally {
+                progress.close();
+            }
+
+            // The ID of the last row in this chunk, or the end of the backfill if fewer rows are left.
+            final long chunkEndId = Math.min(endId, DatabaseUtils.longForQuery(database,
+                    "select ifnull(max(" + JokeTable.KEY_ID + "), ?) from" +
+                    " (select " + JokeTable.KEY_ID + " from " + JokeTable.TABLE_NAME +
+                    " where " + JokeTable.KEY_ID + " > ? order by " + JokeTable.KEY_ID + " limit " + BACKFILL_CHUNK_SIZE + ")",
+                    new String[] {Long.toString(endId), Long.toString(lastId)}));
+
+            database.execSQL(backfill.copyStatement, new Object[] {lastId, chunkEndId});
+
+            final boolean done = chunkEndId >= endId;
+            if (done) {
+                database.delete(TABLE_NAME, KEY_NAME + " = ?", new String[] {backfill.name});
+                Log.i(TAG, "Backfill of " + backfill.name + " finished");
+            } else {
+                database.execSQL("update " + TABLE_NAME + " set " + KEY_LAST_ID + " = ? where " + KEY_NAME + " = ?",
+                        new Object[] {chunkEndId, backfill.name});
+            }
+
+            database.setTransactionSuccessful();
+            return !done;
+        } finally {
+            database.endTransaction();
+        }
+    }
+}
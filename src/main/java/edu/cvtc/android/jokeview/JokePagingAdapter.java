@@ -0,0 +1,153 @@
+package edu.cvtc.android.jokeview;
+
+import android.content.ContentResolver;
+import android.content.Context;
+import android.database.Cursor;
+import android.os.AsyncTask;
+import android.view.View;
+import android.view.ViewGroup;
+
+/**
+ * JokeCursorAdapter that loads the joke list one page at a time.
+ *
+ * The Cursor handed to this Adapter is the first page of a filter. As the ListView
+ * asks for rows near the end of what has been loaded, the next page is queried in
+ * the background using the ID of the last loaded joke as the key, and appended to
+ * the list once it arrives.
+ */
+public class JokePagingAdapter extends JokeCursorAdapter {
+
+    /**
+     * How many rows before the end of the loaded pages the next page is requested.
+     */
+    private static final int PREFETCH_DISTANCE = 10;
+
+    /**
+     * Page filter for Cursors that hold every row there is, such as search results.
+     */
+    public static final int NO_PAGES = -1;
+
+    private static final String[] PROJECTION = {JokeTable.KEY_ID, JokeTable.KEY_TEXT, JokeTable.KEY_RATING};
+
+    private final ContentResolver contentResolver;
+    private final int pageSize;
+
+    /**
+     * The filter of the Cursor being shown, and the filter of the next Cursor to be swapped in.
+     */
+    private int filter;
+    private int pendingFilter;
+
+    /**
+     * Page loading state for the Cursor being shown.
+     */
+    private boolean lastPageLoaded = true;
+    private PageTask pageTask;
+
+    public JokePagingAdapter(final Context context, final int pageSize) {
+        super(context, null, 0);
+
+        this.contentResolver = context.getContentResolver();
+        this.pageSize = pageSize;
+    }
+
+    /**
+     * Sets the filter used to load the pages following the next Cursor swapped into this Adapter,
+     * or NO_PAGES if that Cursor is complete. The Cursor currently shown keeps paging
+     * with its own filter until then.
+     */
+    public void setPageFilter(final int filter) {
+        pendingFilter = filter;
+    }
+
+    @Override
+    public Cursor swapCursor(final Cursor newCursor) {
+        if (null != pageTask) {
+            pageTask.cancel(false);
+            pageTask = null;
+        }
+
+        filter = pendingFilter;
+        lastPageLoaded = NO_PAGES == filter || null == newCursor || newCursor.getCount() < pageSize;
+
+        return super.swapCursor(newCursor);
+    }
+
+    @Override
+    public View getView(int position, View convertView, ViewGroup parent) {
+        final View view = super.getView(position, convertView, parent);
+
+        if (position >= getCount() - PREFETCH_DISTANCE) {
+            loadNextPage();
+        }
+
+        return view;
+    }
+
+    private void loadNextPage() {
+        final JokeListCursor cursor = (JokeListCursor) getCursor();
+
+        if (lastPageLoaded || null != pageTask || null == cursor) {
+            return;
+        }
+
+        pageTask = new PageTask(cursor);
+        pageTask.execute();
+    }
+
+    /**
+     * Queries the page after the last loaded row, and appends it to the list
+     * if the list is still showing the same Cursor.
+     */
+    private class PageTask extends AsyncTask<Void, Void, Cursor> {
+
+        private final JokeListCursor listCursor;
+        private final int pageFilter;
+        private final long afterId;
+
+        private PageTask(final JokeListCursor listCursor) {
+            this.listCursor = listCursor;
+            this.pageFilter = filter;
+            this.afterId = listCursor.getLastSourceId();
+        }
+
+        @Override
+        protected Cursor doInBackground(Void... params) {
+            final Cursor page = contentResolver.query(JokeContentProvider.getPageUri(pageFilter, afterId, pageSize),
+                    PROJECTION, null, null, null);
+
+            if (null != page) {
+                // Fill the CursorWindow here rather than on the UI thread.
+                page.getCount();
+            }
+
+            return page;
+        }
+
+        @Override
+        protected void onPostExecute(Cursor page) {
+            if (pageTask != this || listCursor != getCursor()) {
+                onCancelled(page);
+                return;
+            }
+
+            pageTask = null;
+
+            if (null == page) {
+                return;
+            }
+
+            lastPageLoaded = page.getCount() < pageSize;
+            listCursor.addPage(page);
+
+            notifyDataSetChanged();
+        }
+
+        @Override
+        protected void onCancelled(Cursor page) {
+            if (null != page) {
+                page.close();
+            }
+        }
+    }
+}
@@ -0,0 +1,123 @@
+package edu.cvtc.android.jokeview;
+
+import android.os.Bundle;
+
+import java.io.PrintWriter;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Latency histograms and counters for the entry points of JokeContentProvider,
+ * kept for the life of the provider so field builds can report where time goes.
+ *
+ * Every entry point records its latency under one of the operation names. The provider
+ * returns them from call with JokeContentProvider.METHOD_METRICS, and prints them
+ * when it is dumped, e.g. by "adb shell dumpsys activity provider JokeContentProvider".
+ */
+public class JokeProviderMetrics {
+
+    public static final String QUERY = "query";
+    public static final String INSERT = "insert";
+    public static final String UPDATE = "update";
+    public static final String DELETE = "delete";
+    public static final String BULK_INSERT = "bulk_insert";
+    public static final String APPLY_BATCH = "apply_batch";
+
+    public static final String[] OPERATIONS = {QUERY, INSERT, UPDATE, DELETE, BULK_INSERT, APPLY_BATCH};
+
+    /**
+     * Keys of the call result. Each operation has a key for each of its statistics,
+     * made of the operation name and one of the suffixes, e.g. "query_p99_us".
+     */
+    public static final String SUFFIX_COUNT = "_count";
+    public static final String SUFFIX_MEAN = "_mean_us";
+    public static final String SUFFIX_P50 = "_p50_us";
+    public static final String SUFFIX_P99 = "_p99_us";
+    public static final String SUFFIX_MAX = "_max_us";
+
+    public static final String KEY_ROWS_RETURNED = "rows_returned";
+    public static final String KEY_ROWS_WRITTEN = "rows_written";
+    public static final String KEY_NOTIFY_COUNT = "notify_count";
+
+    private final JokeLatencyHistogram[] latencies = new JokeLatencyHistogram[OPERATIONS.length];
+
+    private final AtomicLong rowsReturned = new AtomicLong();
+    private final AtomicLong rowsWritten = new AtomicLong();
+    private final AtomicLong notifyCount = new AtomicLong();
+
+    public JokeProviderMetrics() {
+        for (int i = 0; i < latencies.length; i++) {
+            latencies[i] = new JokeLatencyHistogram();
+        }
+    }
+
+    /**
+     * Records the latency of an operation that started at a System.nanoTime.
+     *
+     * @param operation
+     *          One of the operation names.
+     * @param startNanos
+     *          The System.nanoTime when the operation started.
+     */
+    public void record(final String operation, final long startNanos) {
+        getLatency(operation).record(System.nanoTime() - startNanos);
+    }
+
+    public void addRowsReturned(final int rows) {
+        rowsReturned.addAndGet(rows);
+    }
+
+    public void addRowsWritten(final int rows) {
+        rowsWritten.addAndGet(rows);
+    }
+
+    public void countNotify() {
+        notifyCount.incrementAndGet();
+    }
+
+    public JokeLatencyHistogram getLatency(final String operation) {
+        for (int i = 0; i < OPERATIONS.length; i++) {
+            if (OPERATIONS[i].equals(operation)) {
+                return latencies[i];
+            }
+        }
+        throw new IllegalArgumentException("Unknown operation: " + operation);
+    }
+
+    /**
+     * Adds every histogram and counter to a call result.
+     */
+    public void writeTo(final Bundle bundle) {
+        for (int i = 0; i < OPERATIONS.length; i++) {
+            final JokeLatencyHistogram latency = latencies[i];
+
+            bundle.putLong(OPERATIONS[i] + SUFFIX_COUNT, latency.getCount());
+            bundle.putLong(OPERATIONS[i] + SUFFIX_MEAN, latency.getMeanMicros());
+            bundle.putLong(OPERATIONS[i] + SUFFIX_P50, latency.getPercentileMicros(50));
+            bundle.putLong(OPERATIONS[i] + SUFFIX_P99, latency.getPercentileMicros(99));
+            bundle.putLong(OPERATIONS[i] + SUFFIX_MAX, latency.getMaxMicros());
+        }
+
+        bundle.putLong(KEY_ROWS_RETURNED, rowsReturned.get());
+        bundle.putLong(KEY_ROWS_WRITTEN, rowsWritten.get());
+        bundle.putLong(KEY_NOTIFY_COUNT, notifyCount.get());
+    }
+
+    /**
+     * Prints every histogram and counter, one operation per line.
+     */
+    public void dump(final PrintWriter writer) {
+        writer.printf("%-12s %8s %10s %10s %10s %10s%n", "operation", "count", "mean us", "p50 us", "p99 us", "max us");
+
+        for (int i = 0; i < OPERATIONS.length; i++) {
+            final JokeLatencyHistogram latency = latencies[i];
+
+            writer.printf("%-12s %8d %10d %10d %10d %10d%n", OPERATIONS[i], latency.getCount(),
+                    latency.getMeanMicros(), latency.getPercentileMicros(50),
+                    latency.getPercentileMicros(99), latency.getMaxMicros());
+        }
+
+        writer.println(KEY_ROWS_RETURNED + ": " + rowsReturned.get());
+        writer.println(KEY_ROWS_WRITTEN + ": " + rowsWritten.get());
+        writer.println(KEY_NOTIFY_COUNT + ": " + notifyCount.get());
+    }
+}
@@ -0,0 +1,285 @@
+package edu.cvtc.android.jokeview;
+
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+
+import java.util.Arrays;
+
+/**
+ * In-memory index of which jokes have which rating, kept by JokeContentProvider
+ * so it can answer filter and count questions without going to the database.
+ *
+ * Each rating has a JokeIdBitmap of the IDs of the jokes with that rating. The index is
+ * loaded from the (rating, _id) index of the joke table, and the provider then applies
+ * its own writes to it once they have committed. Writes made inside a transaction are
+ * collected in a Changes and applied after the commit, so a reader never gets a page range
+ * covering rows it cannot see yet. When the provider can't tell what a write did to the
+ * table, it invalidates the index and it has to be loaded again.
+ *
+ * Loading reads the whole table, so it is meant to be run on a background thread while
+ * the provider answers queries without the index. It only reads, without a transaction,
+ * so writes carry on while it runs: the writes applied during the load are recorded and
+ * replayed over what it read once it is done. Each write sets or removes the rating of
+ * one joke, so replaying one that the load already read changes nothing.
+ *
+ * Every method is thread-safe, since the provider is called on many threads.
+ */
+public class JokeRatingIndex {
+
+    private static final String LOAD_QUERY = "select " + JokeTable.KEY_ID + ", " + JokeTable.KEY_RATING +
+            " from " + JokeTable.TABLE_NAME;
+
+    /**
+     * IDs of the jokes with each rating, indexed by rating.
+     */
+    private JokeIdBitmap[] ratings = newRatings();
+
+    private boolean loaded;
+
+    /**
+     * The writes applied since the running load started, or null if no load is running.
+     * Invalidating the index during a load marks these changes invalid, so the load is thrown away.
+     */
+    private Changes changesDuringLoad;
+
+    /**
+     * Index changes in the order they were made, held back until they can be applied:
+     * those of a transaction that has not committed yet, or those applied during a load.
+     */
+    public static class Changes {
+
+        private static final int REMOVE = -1;
+
+        private long[] ids = new long[16];
+        private int[] ratings = new int[16];
+        private int size;
+        private boolean invalidate;
+
+        public void put(final long id, final int rating) {
+            add(id, rating);
+        }
+
+        public void remove(final long id) {
+            add(id, REMOVE);
+        }
+
+        public void invalidate() {
+            invalidate = true;
+        }
+
+        private void add(final long id, final int rating) {
+            if (size == ids.length) {
+                ids = Arrays.copyOf(ids, 2 * size);
+                ratings = Arrays.copyOf(ratings, 2 * size);
+            }
+            ids[size] = id;
+            ratings[size] = rating;
+            size++;
+        }
+    }
+
+    public synchronized boolean isLoaded() {
+        return loaded;
+    }
+
+    /**
+     * Claims the load of the index for the caller, who must then call load.
+     *
+     * @return
+     *          False if the index is already loaded or being loaded.
+     */
+    public synchronized boolean startLoading() {
+        if (loaded || null != changesDuringLoad) {
+            return false;
+        }
+
+        changesDuringLoad = new Changes();
+        return true;
+    }
+
+    /**
+     * Reads the index from the database, after startLoading. The rows are read through
+     * the readable database, which in WAL mode is a reader connection, and outside of any
+     * transaction, so the load never holds up a write. If the index is invalidated while
+     * this runs, what it read is thrown away and the index stays unloaded.
+     */
+    public void load(final SQLiteDatabase database) {
+        final JokeIdBitmap[] loadedRatings = newRatings();
+        boolean read = false;
+
+        try {
+            final Cursor cursor = database.rawQuery(LOAD_QUERY, null);
+            try {
+                while (cursor.moveToNext()) {
+                    final int rating = cursor.getInt(1);
+                    if (isRating(rating)) {
+                        loadedRatings[rating].add(cursor.getLong(0));
+                    }
+                }
+            } finally {
+                cursor.close();
+            }
+            read = true;
+        } finally {
+            synchronized (this) {
+                final Changes changes = changesDuringLoad;
+                changesDuringLoad = null;
+
+                if (read && !changes.invalidate) {
+                    ratings = loadedRatings;
+                    loaded = true;
+
+                    // In the order they were applied, so the last write to each joke wins.
+                    for (int i = 0; i < changes.size; i++) {
+                        if (Changes.REMOVE == changes.ratings[i]) {
+                            remove(changes.ids[i]);
+                        } else {
+                            put(changes.ids[i], changes.ratings[i]);
+                        }
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Drops the index, and any load running, so it has to be loaded again.
+     */
+    public synchronized void invalidate() {
+        loaded = false;
+        clear();
+
+        if (null != changesDuringLoad) {
+            changesDuringLoad.invalidate();
+        }
+    }
+
+    /**
+     * Records the rating of a joke that was inserted or rated. Ignored while the
+     * index is not loaded, since loading reads the table, but kept for the load
+     * to replay while one is running.
+     */
+    public synchronized void put(final long id, final int rating) {
+        if (!loaded) {
+            if (null != changesDuringLoad) {
+                changesDuringLoad.put(id, rating);
+            }
+            return;
+        }
+
+        for (int r = 0; r < ratings.length; r++) {
+            if (r == rating) {
+                ratings[r].add(id);
+            } else {
+                ratings[r].remove(id);
+            }
+        }
+    }
+
+    /**
+     * Applies the changes of a transaction that has committed.
+     */
+    public synchronized void apply(final Changes changes) {
+        if (changes.invalidate) {
+            invalidate();
+            return;
+        }
+
+        for (int i = 0; i < changes.size; i++) {
+            if (Changes.REMOVE == changes.ratings[i]) {
+                remove(changes.ids[i]);
+            } else {
+                put(changes.ids[i], changes.ratings[i]);
+            }
+        }
+    }
+
+    /**
+     * Removes a deleted joke. Ignored while the index is not loaded,
+     * but kept for the load to replay while one is running.
+     */
+    public synchronized void remove(final long id) {
+        if (!loaded) {
+            if (null != changesDuringLoad) {
+                changesDuringLoad.remove(id);
+            }
+            return;
+        }
+
+        for (final JokeIdBitmap ids : ratings) {
+            ids.remove(id);
+        }
+    }
+
+    /**
+     * Returns the number of jokes with a rating, or of all jokes for Joke.SHOW_ALL.
+     * The index must be loaded.
+     */
+    public synchronized int getCount(final int filter) {
+        if (Joke.SHOW_ALL == filter) {
+            return ratings[Joke.UNRATED].cardinality() + ratings[Joke.LIKE].cardinality()
+                    + ratings[Joke.DISLIKE].cardinality();
+        }
+        return isRating(filter) ? ratings[filter].cardinality() : 0;
+    }
+
+    /**
+     * Finds the range of IDs holding the next page of a filter: the first ID after afterId
+     * and the last ID of the page, or null if there are no jokes after afterId.
+     * The index must be loaded.
+     *
+     * @param filter
+     *          The rating to filter by, or Joke.SHOW_ALL.
+     * @param afterId
+     *          The ID of the last joke of the previous page, or 0 for the first page.
+     * @param limit
+     *          The maximum number of jokes in the page.
+     */
+    public synchronized long[] getPageRange(final int filter, final long afterId, final int limit) {
+        long first = -1;
+        long last = afterId;
+
+        for (int i = 0; i < limit; i++) {
+            final long next = nextAfter(filter, last);
+            if (-1 == next) {
+                break;
+            }
+
+            if (-1 == first) {
+                first = next;
+            }
+            last = next;
+        }
+
+        return -1 != first ? new long[] {first, last} : null;
+    }
+
+    private long nextAfter(final int filter, final long id) {
+        if (Joke.SHOW_ALL != filter) {
+            return isRating(filter) ? ratings[filter].nextAfter(id) : -1;
+        }
+
+        long next = -1;
+        for (final JokeIdBitmap ids : ratings) {
+            final long candidate = ids.nextAfter(id);
+            if (-1 != candidate && (-1 == next || candidate < next)) {
+                next = candidate;
+            }
+        }
+        return next;
+    }
+
+    private static JokeIdBitmap[] newRatings() {
+        return new JokeIdBitmap[] {new JokeIdBitmap(), new JokeIdBitmap(), new JokeIdBitmap()};
+    }
+
+    private void clear() {
+        for (final JokeIdBitmap ids : ratings) {
+            ids.clear();
+        }
+    }
+
+    private static boolean isRating(final int rating) {
+        return Joke.UNRATED == rating || Joke.LIKE == rating || Joke.DISLIKE == rating;
+    }
+}
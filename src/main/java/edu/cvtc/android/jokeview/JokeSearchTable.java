@@ -0,0 +1,132 @@
+package edu.cvtc.android.jokeview;
+
+import android.database.sqlite.SQLiteDatabase;
+
+/**
+ * Class that manages the full-text search table for joke text.
+ *
+ * The search table is an FTS4 shadow of the joke table: each row's docid is the ID
+ * of a joke, and triggers on the joke table keep it in sync on insert, delete and
+ * text update, so nothing outside the database has to maintain it.
+ */
+public class JokeSearchTable {
+
+    public static final String TABLE_NAME = "joke_search";
+
+    /**
+     * Column names of the search table. The docid column is built into FTS tables.
+     */
+    public static final String KEY_DOCID = "docid";
+    public static final String KEY_TEXT = "text";
+
+    /**
+     * The most results a search returns.
+     */
+    public static final int SEARCH_LIMIT = 100;
+
+    /**
+     * SQL statement to use when creating the search table.
+     */
+    public static final String DATABASE_CREATE = "create virtual table " + TABLE_NAME +
+            " using fts4 (" + KEY_TEXT + ");";
+
+    /**
+     * Triggers that mirror changes to the joke table into the search table.
+     */
+    public static final String TRIGGER_INSERT = "create trigger if not exists " + TABLE_NAME + "_insert" +
+            " after insert on " + JokeTable.TABLE_NAME + " begin" +
+            " insert into " + TABLE_NAME + " (" + KEY_DOCID + ", " + KEY_TEXT + ")" +
+            " values (new." + JokeTable.KEY_ID + ", new." + JokeTable.KEY_TEXT + ");" +
+            " end;";
+
+    public static final String TRIGGER_DELETE = "create trigger if not exists " + TABLE_NAME + "_delete" +
+            " after delete on " + JokeTable.TABLE_NAME + " begin" +
+            " delete from " + TABLE_NAME + " where " + KEY_DOCID + " = old." + JokeTable.KEY_ID + ";" +
+            " end;";
+
+    public static final String TRIGGER_UPDATE = "create trigger if not exists " + TABLE_NAME + "_update" +
+            " after update of " + JokeTable.KEY_TEXT + " on " + JokeTable.TABLE_NAME + " begin" +
+            " update " + TABLE_NAME + " set " + KEY_TEXT + " = new." + JokeTable.KEY_TEXT +
+            " where " + KEY_DOCID + " = old." + JokeTable.KEY_ID + ";" +
+            " end;";
+
+    /**
+     * SQL statement that indexes the jokes already in the joke table with IDs in a range,
+     * used to backfill the search table in chunks. Takes the ID to start after
+     * and the last ID to index as arguments.
+     */
+    public static final String POPULATE_RANGE = "insert into " + TABLE_NAME + " (" + KEY_DOCID + ", " + KEY_TEXT + ")" +
+            " select " + JokeTable.KEY_ID + ", " + JokeTable.KEY_TEXT + " from " + JokeTable.TABLE_NAME +
+            " where " + JokeTable.KEY_ID + " > ? and " + JokeTable.KEY_ID + " <= ?;";
+
+    /**
+     * Search query returning the joke table columns in JokeTable order. Takes the MATCH
+     * expression and the row limit as arguments. Results with more hits rank first,
+     * then shorter jokes, since a hit in a short joke is more likely to be what was meant.
+     *
+     * offsets() lists four integers separated by spaces for every hit, so the number
+     * of hits is the number of spaces plus one, divided by four. Only the first
+     * JokeStore.MAX_RANKED_MATCHES matches are ranked.
+     */
+    public static final String SEARCH_QUERY = "select " +
+            JokeTable.TABLE_NAME + "." + JokeTable.KEY_ID + ", " +
+            JokeTable.TABLE_NAME + "." + JokeTable.KEY_TEXT + ", " +
+            JokeTable.TABLE_NAME + "." + JokeTable.KEY_RATING +
+            " from " + JokeTable.TABLE_NAME + " join" +
+            " (select " + KEY_DOCID + ", offsets(" + TABLE_NAME + ") as hit_offsets" +
+            " from " + TABLE_NAME + " where " + TABLE_NAME + " match ?" +
+            " limit " + JokeStore.MAX_RANKED_MATCHES + ") as matches" +
+            " on " + JokeTable.TABLE_NAME + "." + JokeTable.KEY_ID + " = matches." + KEY_DOCID +
+            " order by (length(matches.hit_offsets) - length(replace(matches.hit_offsets, ' ', '')) + 1) / 4 desc," +
+            " length(" + JokeTable.TABLE_NAME + "." + JokeTable.KEY_TEXT + ")" +
+            " limit ?";
+
+    /**
+     * Initializes the search table.
+     *
+     * @param database
+     *          The database to initialize.
+     */
+    public static void onCreate(final SQLiteDatabase database) {
+        database.execSQL(DATABASE_CREATE);
+        database.execSQL(TRIGGER_INSERT);
+        database.execSQL(TRIGGER_DELETE);
+        database.execSQL(TRIGGER_UPDATE);
+    }
+
+    /**
+     * Turns text typed by the user into an FTS MATCH expression where every word
+     * must match as a prefix, e.g. "chick cro" becomes "chick* cro*". Words shorter
+     * than JokeStore.MIN_PREFIX_LENGTH must match a whole word, e.g. "a cow" becomes "a cow*".
+     * Punctuation is dropped so user input can never form FTS query syntax.
+     *
+     * @param text
+     *          The text to search for.
+     * @return
+     *          The MATCH expression, or null if the text contains no words.
+     */
+    public static String toMatchQuery(final String text) {
+        final StringBuilder match = new StringBuilder();
+        int wordLength = 0;
+
+        for (int i = 0; i <= text.length(); i++) {
+            final char c = i < text.length() ? text.charAt(i) : ' ';
+
+            if (Character.isLetterOrDigit(c)) {
+                if (0 == wordLength && match.length() > 0) {
+                    match.append(' ');
+                }
+                // Lower case keeps words like OR and NEAR from being read as operators.
+                match.append(Character.toLowerCase(c));
+                wordLength++;
+            } else if (wordLength > 0) {
+                if (wordLength >= JokeStore.MIN_PREFIX_LENGTH) {
+                    match.append('*');
+                }
+                wordLength = 0;
+            }
+        }
+
+        return match.length() > 0 ? match.toString() : null;
+    }
+}
@@ -0,0 +1,143 @@
+package edu.cvtc.android.jokeview;
+
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteException;
+
+import java.io.PrintWriter;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.Locale;
+
+/**
+ * Ring buffer of the last few queries JokeContentProvider ran that took longer than
+ * a threshold, each with its arguments, row count and EXPLAIN QUERY PLAN output,
+ * so a query that scans the whole table can be seen without attaching a profiler.
+ *
+ * The plan is only asked for once a query has turned out to be slow,
+ * so fast queries pay nothing but a clock read.
+ * The provider only keeps the log in debug builds.
+ */
+public class JokeSlowQueryLog {
+
+    public static final int DEFAULT_CAPACITY = 32;
+    public static final long DEFAULT_THRESHOLD_MILLIS = 16;
+
+    private final Entry[] entries;
+    private final long thresholdNanos;
+
+    /**
+     * Index the next entry is written to, and the number of entries ever written.
+     */
+    private int next;
+    private long recorded;
+
+    private static class Entry {
+
+        private final long time;
+        private final String sql;
+        private final String[] args;
+        private final int rows;
+        private final long nanos;
+        private final String plan;
+
+        private Entry(final String sql, final String[] args, final int rows, final long nanos, final String plan) {
+            this.time = System.currentTimeMillis();
+            this.sql = sql;
+            this.args = args;
+            this.rows = rows;
+            this.nanos = nanos;
+            this.plan = plan;
+        }
+
+        @Override
+        public String toString() {
+            return new SimpleDateFormat("HH:mm:ss.SSS", Locale.US).format(new Date(time)) +
+                    " " + nanos / 1000000 + " ms, " + rows + " rows: " + sql +
+                    (null != args ? " " + Arrays.toString(args) : "") + "\n" + plan;
+        }
+    }
+
+    public JokeSlowQueryLog(final int capacity, final long thresholdMillis) {
+        entries = new Entry[capacity];
+        thresholdNanos = thresholdMillis * 1000000;
+    }
+
+    public boolean isSlow(final long nanos) {
+        return nanos >= thresholdNanos;
+    }
+
+    /**
+     * Adds a slow query to the log, overwriting the oldest one if the log is full.
+     *
+     * @param database
+     *          The database the query ran on, used to explain it.
+     * @param sql
+     *          The query.
+     * @param args
+     *          The arguments bound to the query, or null.
+     * @param rows
+     *          The number of rows the query returned.
+     * @param nanos
+     *          How long the query took.
+     */
+    public void record(final SQLiteDatabase database, final String sql, final String[] args,
+                       final int rows, final long nanos) {
+        final Entry entry = new Entry(sql, null != args ? args.clone() : null, rows, nanos, explain(database, sql, args));
+
+        synchronized (this) {
+            entries[next] = entry;
+            next = (next + 1) % entries.length;
+            recorded++;
+        }
+    }
+
+    /**
+     * Returns the logged queries, oldest first, each as text with its plan on the lines after it.
+     */
+    public synchronized ArrayList<String> getEntries() {
+        final ArrayList<String> list = new ArrayList<>(entries.length);
+
+        for (int i = 0; i < entries.length; i++) {
+            final Entry entry = entries[(next + i) % entries.length];
+            if (null != entry) {
+                list.add(entry.toString());
+            }
+        }
+
+        return list;
+    }
+
+    public synchronized void dump(final PrintWriter writer) {
+        writer.println("slow queries (over " + thresholdNanos / 1000000 + " ms): " + recorded);
+
+        for (final String entry : getEntries()) {
+            writer.println(entry);
+        }
+    }
+
+    /**
+     * Returns the detail column of every EXPLAIN QUERY PLAN row, one per line.
+     */
+    private static String explain(final SQLiteDatabase database, final String sql, final String[] args) {
+        final StringBuilder plan = new StringBuilder();
+
+        try {
+            final Cursor cursor = database.rawQuery("explain query plan " + sql, args);
+            try {
+                final int detail = cursor.getColumnCount() - 1;
+                while (cursor.moveToNext()) {
+                    plan.append("  ").append(cursor.getString(detail)).append('\n');
+                }
+            } finally {
+                cursor.close();
+            }
+        } catch (SQLiteException e) {
+            plan.append("  (no plan: ").append(e.getMessage()).append(")\n");
+        }
+
+        return plan.toString();
+    }
+}
@@ -0,0 +1,137 @@
+package edu.cvtc.android.jokeview;
+
+import android.content.ContentValues;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Compiled SQLiteStatements for the joke table writes JokeContentProvider makes over
+ * and over, so each is compiled once and then only bound and executed.
+ *
+ * Statements hold their bound arguments, so the cache must only be used by one
+ * thread at a time; JokeContentProvider uses it, through SqliteJokeStore, while holding its write lock.
+ * Counts of statements compiled and executed are kept to show how well the cache works.
+ */
+public class JokeStatementCache {
+
+    private static final String DELETE_STATEMENT = "delete from " + JokeTable.TABLE_NAME +
+            " where " + JokeTable.KEY_ID + " = ?";
+
+    private static final Set<String> UPDATABLE_COLUMNS = new TreeSet<>(Arrays.asList(JokeTable.KEY_TEXT, JokeTable.KEY_RATING));
+
+    private final SQLiteDatabase database;
+
+    /**
+     * Statements by SQL. Updates are compiled per set of updated columns,
+     * of which the provider only ever sees a few.
+     */
+    private final Map<String, SQLiteStatement> statements = new HashMap<>();
+
+    private final AtomicLong compileCount = new AtomicLong();
+    private final AtomicLong executeCount = new AtomicLong();
+
+    public JokeStatementCache(final SQLiteDatabase database) {
+        this.database = database;
+    }
+
+    /**
+     * Inserts a joke.
+     *
+     * @return
+     *          The ID of the new joke.
+     */
+    public long insert(final String text, final int rating) {
+        final SQLiteStatement statement = getStatement(JokeTable.INSERT_STATEMENT);
+
+        statement.bindString(1, text);
+        statement.bindLong(2, rating);
+
+        executeCount.incrementAndGet();
+        return statement.executeInsert();
+    }
+
+    /**
+     * Updates the columns in values of the joke with an ID.
+     *
+     * @return
+     *          The number of rows updated.
+     */
+    public int update(final long id, final ContentValues values) {
+        final Set<String> columns = new TreeSet<>(values.keySet());
+
+        if (columns.isEmpty() || !UPDATABLE_COLUMNS.containsAll(columns)) {
+            throw new IllegalArgumentException("Unknown columns in update: " + columns);
+        }
+
+        final SQLiteStatement statement = getStatement(getUpdateSql(columns));
+
+        int index = 1;
+        for (final String column : columns) {
+            DatabaseUtils.bindObjectToProgram(statement, index++, values.get(column));
+        }
+        statement.bindLong(index, id);
+
+        executeCount.incrementAndGet();
+        return statement.executeUpdateDelete();
+    }
+
+    /**
+     * Deletes the joke with an ID.
+     *
+     * @return
+     *          The number of rows deleted.
+     */
+    public int delete(final long id) {
+        final SQLiteStatement statement = getStatement(DELETE_STATEMENT);
+
+        statement.bindLong(1, id);
+
+        executeCount.incrementAndGet();
+        return statement.executeUpdateDelete();
+    }
+
+    public long getCompileCount() {
+        return compileCount.get();
+    }
+
+    public long getExecuteCount() {
+        return executeCount.get();
+    }
+
+    private SQLiteStatement getStatement(final String sql) {
+        SQLiteStatement statement = statements.get(sql);
+
+        if (null == statement) {
+            statement = database.compileStatement(sql);
+            statements.put(sql, statement);
+            compileCount.incrementAndGet();
+        } else {
+            statement.clearBindings();
+        }
+
+        return statement;
+    }
+
+    private static String getUpdateSql(final Set<String> columns) {
+        final StringBuilder sql = new StringBuilder("update ").append(JokeTable.TABLE_NAME).append(" set ");
+
+        boolean first = true;
+        for (final String column : columns) {
+            if (!first) {
+                sql.append(", ");
+            }
+            sql.append(column).append(" = ?");
+            first = false;
+        }
+
+        return sql.append(" where ").append(JokeTable.KEY_ID).append(" = ?").toString();
+    }
+}
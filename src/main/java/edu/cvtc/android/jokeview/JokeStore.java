@@ -0,0 +1,99 @@
+package edu.cvtc.android.jokeview;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * Storage for jokes, independent of where they are kept.
+ *
+ * This interface, Joke and the JokeStore implementations other than SqliteJokeStore
+ * only use plain Java, so the storage logic can be run and measured on a JVM
+ * without Android. JokeContentProvider reads and writes through a SqliteJokeStore.
+ *
+ * Jokes returned by a store are copies; changing them does not change the store.
+ */
+public interface JokeStore extends Closeable {
+
+    /**
+     * The most matching jokes a search ranks. Ranking reads the hits of every match, so
+     * a common word would otherwise rank most of the table. Matches are found in ID order,
+     * so past this many only the oldest jokes are ranked. JokeSearchTable.SEARCH_QUERY
+     * caps its matches here too.
+     */
+    int MAX_RANKED_MATCHES = 1000;
+
+    /**
+     * The shortest word matched as a prefix. Shorter words only match whole words,
+     * since a one or two letter prefix expands to a large part of the vocabulary.
+     */
+    int MIN_PREFIX_LENGTH = 3;
+
+    /**
+     * Adds a joke.
+     *
+     * @return
+     *          The ID of the new joke, or -1 if it could not be added.
+     */
+    long insert(String text, int rating);
+
+    /**
+     * Sets the rating of a joke.
+     *
+     * @return
+     *          True if the joke was found.
+     */
+    boolean updateRating(long id, int rating);
+
+    /**
+     * Sets the same rating on many jokes.
+     *
+     * @param ids
+     *          The IDs of the jokes, each given once.
+     * @return
+     *          The number of jokes found.
+     */
+    int updateRatings(long[] ids, int rating);
+
+    /**
+     * Replaces the text of a joke.
+     *
+     * @return
+     *          True if the joke was found.
+     */
+    boolean updateText(long id, String text);
+
+    /**
+     * Removes a joke.
+     *
+     * @return
+     *          True if the joke was found.
+     */
+    boolean delete(long id);
+
+    /**
+     * Returns a page of jokes in ID order.
+     *
+     * @param filter
+     *          The rating to filter by, or Joke.SHOW_ALL.
+     * @param afterId
+     *          The ID of the last joke of the previous page, or 0 for the first page.
+     * @param limit
+     *          The maximum number of jokes in the page, or a negative number for no limit.
+     */
+    List<Joke> queryPage(int filter, long afterId, int limit);
+
+    /**
+     * Returns the jokes matching every word of the text as a word prefix,
+     * best matches first, up to a limit, or every match for a negative limit.
+     */
+    List<Joke> search(String text, int limit);
+
+    /**
+     * Returns the number of jokes with a rating, or of all jokes for Joke.SHOW_ALL.
+     */
+    int count(int filter);
+
+    @Override
+    void close() throws IOException;
+}
@@ -33,9 +33,19 @@ public class JokeTable {
             KEY_RATING + " integer not null);";
 
     /**
-     * SQL statement used for upgrading the database.
+     * SQL statement for inserting a joke, to be compiled once and bound per row.
+     * Takes the text and the rating as arguments.
      */
-    public static final String DATABASE_DROP = "drop table if exists " + TABLE_NAME;
+    public static final String INSERT_STATEMENT = "insert into " + TABLE_NAME +
+            " (" + KEY_TEXT + ", " + KEY_RATING + ") values (?, ?);";
+
+    /**
+     * Index on rating used by the filter queries. Including the ID makes it a covering
+     * index for filtered ID lookups and returns each rating's rows already in ID order.
+     */
+    public static final String RATING_INDEX_NAME = "joke_rating_index";
+    public static final String RATING_INDEX_CREATE = "create index if not exists " + RATING_INDEX_NAME +
+            " on " + TABLE_NAME + " (" + KEY_RATING + ", " + KEY_ID + ");";
 
     /**
      * Initializes the database.
@@ -45,21 +55,7 @@ public class JokeTable {
      */
     public static void onCreate(final SQLiteDatabase database) {
         database.execSQL(DATABASE_CREATE);
-    }
-
-    /**
-     * Upgrades the database to a new version.
-     *
-     * @param database
-     *          The database to upgrade.
-     * @param oldVersion
-     *          The old version of the database.
-     * @param newVersion
-     *          The new version of the database.
-     */
-    public static void onUpgrade(final SQLiteDatabase database, int oldVersion, int newVersion) {
-        database.execSQL(DATABASE_DROP);
-        onCreate(database);
+        database.execSQL(RATING_INDEX_CREATE);
     }
 
 }
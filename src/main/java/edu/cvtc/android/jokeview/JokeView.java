@@ -1,35 +1,97 @@
 package edu.cvtc.android.jokeview;
 
 import android.content.Context;
-import android.util.Log;
-import android.view.LayoutInflater;
-import android.widget.LinearLayout;
-import android.widget.RadioButton;
-import android.widget.RadioGroup;
-import android.widget.TextView;
+import android.database.CharArrayBuffer;
+import android.database.Cursor;
+import android.graphics.Canvas;
+import android.graphics.Paint;
+import android.graphics.Rect;
+import android.graphics.drawable.Drawable;
+import android.os.Build;
+import android.os.Bundle;
+import android.support.v4.content.ContextCompat;
+import android.support.v4.view.AccessibilityDelegateCompat;
+import android.support.v4.view.ViewCompat;
+import android.support.v4.view.accessibility.AccessibilityNodeInfoCompat;
+import android.text.StaticLayout;
+import android.view.KeyEvent;
+import android.view.MotionEvent;
+import android.view.View;
 
 /**
+ * A single View that draws a joke's text and its LIKE/DISLIKE glyphs itself,
+ * rather than inflating a layout of a TextView and a RadioGroup of two RadioButtons.
+ *
+ * The text is drawn with a StaticLayout from the shared JokeLayoutCache, so a joke is
+ * only measured again when its text or width changes. When a new joke's text
+ * is as tall as the last one, the View is only redrawn instead of laid out again.
+ * Taps on the glyphs are handled here; every other touch is left to the ListView
+ * so long clicks still reach it.
+ *
+ * Without a touch screen, the glyphs are reached with the D-pad while the row is
+ * selected in the list, and accessibility services are offered a like and a dislike
+ * action and told the joke's rating along with its text.
+ *
  * Created by gandrews7 on 11/15/16.
  */
-public class JokeView extends LinearLayout implements RadioGroup.OnCheckedChangeListener {
+public class JokeView extends View {
 
     /**
-     * Displays the joke text.
+     * Padding around the text and around the rating glyphs, in dp.
      */
-    private TextView jokeTextView;
+    private static final int TEXT_PADDING_DP = 10;
+    private static final int GLYPH_PADDING_DP = 5;
+
+    private static final int[] CHECKED_STATE = {android.R.attr.state_checked};
+    private static final int[] UNCHECKED_STATE = {};
+
+    /**
+     * Draws the joke text, laid out by the shared layout cache.
+     */
+    private final JokeLayoutCache layoutCache;
+    private StaticLayout textLayout;
+    private int textLayoutWidth = -1;
+
+    /**
+     * Draws the rating glyphs to LIKE/DISLIKE Jokes, stacked on the right.
+     */
+    private final Drawable likeGlyph;
+    private final Drawable dislikeGlyph;
+    private final int textPadding;
+    private final int glyphPadding;
+
+    /**
+     * The glyph a touch started on, so the rating only changes if the touch also ends there.
+     */
+    private Drawable pressedGlyph;
 
     /**
-     * Displays the rating radio group to LIKE/DISLIKE Jokes.
+     * The glyph picked with the D-pad while this row is selected, outlined when drawn.
      */
-    private RadioGroup ratingRadioGroup;
-    private RadioButton likeButton;
-    private RadioButton dislikeButton;
+    private Drawable focusedGlyph;
+    private final Paint focusPaint = new Paint();
+    private final Rect focusBounds = new Rect();
 
     /**
      * Model for this View, containing joke information.
      */
     private Joke joke;
 
+    /**
+     * Joke refilled in place each time this View is bound to a Cursor row, and the buffer
+     * the row's text is copied into, so binding a row allocates nothing. The text is
+     * only turned into a String when someone asks for the Joke.
+     */
+    private final Joke cursorJoke = new Joke(0, null, Joke.UNRATED);
+    private final CharArrayBuffer textBuffer = new CharArrayBuffer(128);
+    private final TextBufferSequence textBufferSequence = new TextBufferSequence(textBuffer);
+    private boolean cursorJokeTextStale;
+
+    /**
+     * The text being shown, either the joke's own text or the text buffer.
+     */
+    private CharSequence text = "";
+
     /**
      * Defines what happens when a Joke is changed.
      */
@@ -43,76 +105,399 @@ public class JokeView extends LinearLayout implements RadioGroup.OnCheckedChange
     }
 
     public JokeView(Context context, Joke joke) {
+        this(context);
+
+        setJoke(joke);
+    }
+
+    public JokeView(Context context) {
         super(context);
 
-        final LayoutInflater inflater = (LayoutInflater) context.getSystemService(Context.LAYOUT_INFLATER_SERVICE);
-        inflater.inflate(R.layout.joke_view, this, true);
+        final float density = getResources().getDisplayMetrics().density;
+        textPadding = Math.round(TEXT_PADDING_DP * density);
+        glyphPadding = Math.round(GLYPH_PADDING_DP * density);
 
-        jokeTextView = (TextView) findViewById(R.id.jokeTextView);
-        ratingRadioGroup = (RadioGroup) findViewById(R.id.ratingRadioGroup);
-        likeButton = (RadioButton) findViewById(R.id.likeButton);
-        dislikeButton = (RadioButton) findViewById(R.id.dislikeButton);
+        layoutCache = JokeLayoutCache.getInstance(context);
 
-        ratingRadioGroup.setOnCheckedChangeListener(this);
+        likeGlyph = ContextCompat.getDrawable(context, R.drawable.like).mutate();
+        dislikeGlyph = ContextCompat.getDrawable(context, R.drawable.dislike).mutate();
+        likeGlyph.setBounds(0, 0, likeGlyph.getIntrinsicWidth(), likeGlyph.getIntrinsicHeight());
+        dislikeGlyph.setBounds(0, 0, dislikeGlyph.getIntrinsicWidth(), dislikeGlyph.getIntrinsicHeight());
 
-        setJoke(joke);
+        focusPaint.setStyle(Paint.Style.STROKE);
+        focusPaint.setStrokeWidth(Math.max(1, Math.round(2 * density)));
+        focusPaint.setColor(ContextCompat.getColor(context, R.color.colorAccent));
+
+        ViewCompat.setAccessibilityDelegate(this, new RatingAccessibilityDelegate());
     }
 
     public Joke getJoke() {
+        if (joke == cursorJoke && cursorJokeTextStale) {
+            cursorJoke.setText(textBufferSequence.toString());
+            cursorJokeTextStale = false;
+        }
         return joke;
     }
 
     public void setJoke(final Joke joke) {
 
         this.joke = joke;
+        focusedGlyph = null;
 
-        jokeTextView.setText(joke.getText());
+        setText(joke.getText());
+        showRating(joke.getRating());
+    }
 
-        switch (joke.getRating()) {
-            case Joke.LIKE:
-                likeButton.setChecked(true);
-                break;
-            case Joke.DISLIKE:
-                dislikeButton.setChecked(true);
-                break;
-            default:
-                break;
-        }
+    /**
+     * Binds this View to the joke at the cursor's current position, refilling
+     * this View's own Joke and text buffer instead of creating new ones.
+     *
+     * @param cursor
+     *          A Cursor with the columns defined in JokeTable.
+     */
+    public void setJoke(final Cursor cursor) {
 
-        requestLayout();
+        cursor.copyStringToBuffer(JokeTable.INDEX_TEXT, textBuffer);
+
+        cursorJoke.setId(cursor.getLong(JokeTable.INDEX_ID));
+        cursorJoke.setRating(cursor.getInt(JokeTable.INDEX_RATING));
+        cursorJokeTextStale = true;
+
+        this.joke = cursorJoke;
+        focusedGlyph = null;
+
+        setText(textBufferSequence);
+        showRating(cursorJoke.getRating());
     }
 
     public void setOnJokeChangeListener(OnJokeChangeListener onJokeChangeListener) {
         this.onJokeChangeListener = onJokeChangeListener;
     }
 
+    /**
+     * Lays out new text at the current width. A full layout pass is only requested
+     * when the text's height differs from the height of the text it replaces.
+     */
+    private void setText(final CharSequence text) {
+        this.text = null != text ? text : "";
+
+        if (textLayoutWidth < 0) {
+            requestLayout();
+            return;
+        }
+
+        final int oldHeight = null != textLayout ? textLayout.getHeight() : -1;
+        textLayout = createTextLayout(textLayoutWidth);
+
+        if (textLayout.getHeight() != oldHeight) {
+            requestLayout();
+        }
+        invalidate();
+    }
+
+    private StaticLayout createTextLayout(final int width) {
+        return layoutCache.getLayout(null != joke ? joke.getId() : 0, text, width);
+    }
+
+    /**
+     * Checks the glyph for a rating. Recycled Views may still show the rating
+     * of the joke they were last bound to, so an unrated joke clears both glyphs.
+     */
+    private void showRating(final int rating) {
+        likeGlyph.setState(Joke.LIKE == rating ? CHECKED_STATE : UNCHECKED_STATE);
+        dislikeGlyph.setState(Joke.DISLIKE == rating ? CHECKED_STATE : UNCHECKED_STATE);
+
+        invalidate();
+    }
+
+    private int getGlyphColumnWidth() {
+        return Math.max(likeGlyph.getIntrinsicWidth(), dislikeGlyph.getIntrinsicWidth()) + 2 * glyphPadding;
+    }
+
+    @Override
+    protected void onMeasure(int widthMeasureSpec, int heightMeasureSpec) {
+
+        final int width = MeasureSpec.getMode(widthMeasureSpec) == MeasureSpec.UNSPECIFIED
+                ? getResources().getDisplayMetrics().widthPixels
+                : MeasureSpec.getSize(widthMeasureSpec);
+
+        final int textWidth = Math.max(0, width - getGlyphColumnWidth() - 2 * textPadding);
+        if (textWidth != textLayoutWidth || null == textLayout) {
+            textLayoutWidth = textWidth;
+            layoutCache.setTextWidth(textWidth);
+            textLayout = createTextLayout(textWidth);
+        }
+
+        final int glyphHeight = likeGlyph.getIntrinsicHeight() + dislikeGlyph.getIntrinsicHeight() + 2 * glyphPadding;
+        final int height = Math.max(textLayout.getHeight() + 2 * textPadding, glyphHeight);
+
+        setMeasuredDimension(width, resolveSize(height, heightMeasureSpec));
+    }
+
     @Override
-    public void onCheckedChanged(RadioGroup radioGroup, int checkedID) {
-
-        Log.d("joke_view", "Checked ID: " + checkedID);
-
-        switch (checkedID) {
-            case R.id.likeButton:
-                likeButton.setChecked(true);
-                joke.setRating(Joke.LIKE);
-                notifyOnJokeChangeListener();
-                break;
-            case R.id.dislikeButton:
-                dislikeButton.setChecked(true);
-                joke.setRating(Joke.DISLIKE);
-                notifyOnJokeChangeListener();
-                break;
+    protected void onLayout(boolean changed, int left, int top, int right, int bottom) {
+
+        final int glyphLeft = right - left - glyphPadding - likeGlyph.getIntrinsicWidth();
+        likeGlyph.setBounds(glyphLeft, glyphPadding,
+                glyphLeft + likeGlyph.getIntrinsicWidth(), glyphPadding + likeGlyph.getIntrinsicHeight());
+
+        final int dislikeLeft = right - left - glyphPadding - dislikeGlyph.getIntrinsicWidth();
+        dislikeGlyph.setBounds(dislikeLeft, likeGlyph.getBounds().bottom,
+                dislikeLeft + dislikeGlyph.getIntrinsicWidth(), likeGlyph.getBounds().bottom + dislikeGlyph.getIntrinsicHeight());
+    }
+
+    @Override
+    protected void onDraw(Canvas canvas) {
+
+        if (null != textLayout) {
+            canvas.save();
+            canvas.translate(textPadding, textPadding);
+            textLayout.draw(canvas);
+            canvas.restore();
+        }
+
+        likeGlyph.draw(canvas);
+        dislikeGlyph.draw(canvas);
+
+        if (null != focusedGlyph) {
+            focusBounds.set(focusedGlyph.getBounds());
+            focusBounds.inset(-glyphPadding / 2, -glyphPadding / 2);
+            canvas.drawRect(focusBounds, focusPaint);
+        }
+    }
+
+    /**
+     * Handles taps on the glyphs. Touches starting anywhere else are not consumed,
+     * so the ListView keeps handling clicks and long clicks on the row.
+     */
+    @Override
+    public boolean onTouchEvent(MotionEvent event) {
+
+        final int x = (int) event.getX();
+        final int y = (int) event.getY();
+
+        switch (event.getActionMasked()) {
+            case MotionEvent.ACTION_DOWN:
+                pressedGlyph = findGlyph(x, y);
+                return null != pressedGlyph;
+            case MotionEvent.ACTION_UP:
+                final boolean clicked = null != pressedGlyph && pressedGlyph == findGlyph(x, y);
+                if (clicked) {
+                    performClick();
+                }
+                pressedGlyph = null;
+                return clicked;
+            case MotionEvent.ACTION_CANCEL:
+                pressedGlyph = null;
+                return false;
             default:
-                ratingRadioGroup.clearCheck();
-                joke.setRating(Joke.UNRATED);
-                notifyOnJokeChangeListener();
-                break;
+                return null != pressedGlyph;
         }
     }
 
+    /**
+     * Rates the joke with the glyph that was tapped, or the one picked with the D-pad.
+     * A click on neither changes nothing, nor does a click on the glyph that is already
+     * checked, as in a RadioGroup. Accessibility services rate through the like and
+     * dislike actions instead.
+     */
+    @Override
+    public boolean performClick() {
+        super.performClick();
+
+        final Drawable glyph = null != pressedGlyph ? pressedGlyph : focusedGlyph;
+
+        if (null != glyph) {
+            rate(glyph == likeGlyph ? Joke.LIKE : Joke.DISLIKE);
+        }
+        return true;
+    }
+
+    /**
+     * Picks a glyph with the D-pad: right moves from the text to the like glyph, down and
+     * up move between the glyphs, and left moves back to the text. Center or enter rates
+     * the joke with the picked glyph. Keys that would leave the glyphs are not consumed,
+     * so they still move the list's selection. The row is never focused itself, since
+     * a focusable row keeps the ListView from handling clicks and long clicks on it,
+     * so the list passes keys on to its selected row.
+     */
+    @Override
+    public boolean onKeyDown(int keyCode, KeyEvent event) {
+        switch (keyCode) {
+            case KeyEvent.KEYCODE_DPAD_RIGHT:
+                return null == focusedGlyph && focusGlyph(likeGlyph);
+            case KeyEvent.KEYCODE_DPAD_LEFT:
+                return null != focusedGlyph && focusGlyph(null);
+            case KeyEvent.KEYCODE_DPAD_DOWN:
+                return likeGlyph == focusedGlyph && focusGlyph(dislikeGlyph);
+            case KeyEvent.KEYCODE_DPAD_UP:
+                return dislikeGlyph == focusedGlyph && focusGlyph(likeGlyph);
+            case KeyEvent.KEYCODE_DPAD_CENTER:
+            case KeyEvent.KEYCODE_ENTER:
+            case KeyEvent.KEYCODE_NUMPAD_ENTER:
+                return null != focusedGlyph;
+            default:
+                return super.onKeyDown(keyCode, event);
+        }
+    }
+
+    @Override
+    public boolean onKeyUp(int keyCode, KeyEvent event) {
+        switch (keyCode) {
+            case KeyEvent.KEYCODE_DPAD_CENTER:
+            case KeyEvent.KEYCODE_ENTER:
+            case KeyEvent.KEYCODE_NUMPAD_ENTER:
+                if (null != focusedGlyph) {
+                    performClick();
+                    return true;
+                }
+                return false;
+            default:
+                return super.onKeyUp(keyCode, event);
+        }
+    }
+
+    /**
+     * Forgets the picked glyph when the list's selection leaves this row.
+     */
+    @Override
+    public void setSelected(boolean selected) {
+        super.setSelected(selected);
+
+        if (!selected && null != focusedGlyph) {
+            focusGlyph(null);
+        }
+    }
+
+    /**
+     * @return
+     *          Always true, so key handlers can return it.
+     */
+    private boolean focusGlyph(final Drawable glyph) {
+        focusedGlyph = glyph;
+        invalidate();
+        return true;
+    }
+
+    /**
+     * Rates the joke and tells the listener, unless it already has the rating.
+     */
+    private void rate(final int rating) {
+        if (null == joke || joke.getRating() == rating) {
+            return;
+        }
+
+        joke.setRating(rating);
+        showRating(rating);
+        notifyOnJokeChangeListener();
+
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN) {
+            announceForAccessibility(getRatingDescription(rating));
+        }
+    }
+
+    private String getRatingDescription(final int rating) {
+        switch (rating) {
+            case Joke.LIKE:
+                return getResources().getString(R.string.rating_liked);
+            case Joke.DISLIKE:
+                return getResources().getString(R.string.rating_disliked);
+            default:
+                return getResources().getString(R.string.rating_unrated);
+        }
+    }
+
+    /**
+     * Returns the glyph under a point, using the whole padded glyph column
+     * as the touch target since the glyphs themselves are small.
+     */
+    private Drawable findGlyph(final int x, final int y) {
+        if (x < getWidth() - getGlyphColumnWidth()) {
+            return null;
+        }
+
+        if (y < likeGlyph.getBounds().bottom) {
+            return likeGlyph;
+        }
+
+        return y < dislikeGlyph.getBounds().bottom + glyphPadding ? dislikeGlyph : null;
+    }
+
     private void notifyOnJokeChangeListener() {
         if (null != onJokeChangeListener) {
-            onJokeChangeListener.onJokeChanged(this, joke);
+            onJokeChangeListener.onJokeChanged(this, getJoke());
+        }
+    }
+
+    /**
+     * Describes the row as its joke's text followed by its rating, and offers
+     * the glyphs as a like and a dislike action, the way the RadioButtons
+     * this View replaced were offered.
+     */
+    private class RatingAccessibilityDelegate extends AccessibilityDelegateCompat {
+
+        @Override
+        public void onInitializeAccessibilityNodeInfo(View host, AccessibilityNodeInfoCompat info) {
+            super.onInitializeAccessibilityNodeInfo(host, info);
+
+            if (null == joke) {
+                return;
+            }
+
+            // The text may be the reused buffer, so the description gets its own copy.
+            info.setContentDescription(getResources().getString(R.string.joke_description,
+                    text.toString(), getRatingDescription(joke.getRating())));
+
+            info.addAction(new AccessibilityNodeInfoCompat.AccessibilityActionCompat(
+                    R.id.action_like, getResources().getString(R.string.like_menuitem)));
+            info.addAction(new AccessibilityNodeInfoCompat.AccessibilityActionCompat(
+                    R.id.action_dislike, getResources().getString(R.string.dislike_menuitem)));
+        }
+
+        @Override
+        public boolean performAccessibilityAction(View host, int action, Bundle args) {
+            if (R.id.action_like == action) {
+                rate(Joke.LIKE);
+                return true;
+            }
+            if (R.id.action_dislike == action) {
+                rate(Joke.DISLIKE);
+                return true;
+            }
+            return super.performAccessibilityAction(host, action, args);
+        }
+    }
+
+    /**
+     * CharSequence view of a CharArrayBuffer, so text copied out of a Cursor
+     * can be laid out without being turned into a String.
+     */
+    private static class TextBufferSequence implements CharSequence {
+
+        private final CharArrayBuffer buffer;
+
+        private TextBufferSequence(final CharArrayBuffer buffer) {
+            this.buffer = buffer;
+        }
+
+        @Override
+        public int length() {
+            return buffer.sizeCopied;
+        }
+
+        @Override
+        public char charAt(int index) {
+            return buffer.data[index];
+        }
+
+        @Override
+        public CharSequence subSequence(int start, int end) {
+            return new String(buffer.data, start, end - start);
+        }
+
+        @Override
+        public String toString() {
+            return new String(buffer.data, 0, buffer.sizeCopied);
         }
     }
 }
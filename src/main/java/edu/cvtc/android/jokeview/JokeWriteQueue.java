@@ -0,0 +1,540 @@
+package edu.cvtc.android.jokeview;
+
+import android.content.ContentProviderOperation;
+import android.content.ContentProviderResult;
+import android.content.ContentResolver;
+import android.content.ContentValues;
+import android.content.OperationApplicationException;
+import android.net.Uri;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.RemoteException;
+import android.os.SystemClock;
+import android.util.Log;
+import android.util.SparseArray;
+
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Single-writer queue that takes Joke inserts, updates and deletes off the UI thread.
+ *
+ * Writes are collected until none have been queued for a short window, or until
+ * the first of them has waited for MAX_BATCH_DELAY_MILLIS, and are then committed to the
+ * JokeContentProvider as one batch, which the provider applies in a single transaction.
+ * Repeated writes to the same joke within a batch are merged, so flipping a rating
+ * back and forth only writes the last rating, and rating changes to different jokes
+ * are written as one update per rating.
+ *
+ * Jokes that have not been inserted yet (ID of 0) are tracked by instance until
+ * their insert commits, at which point their ID is set and any writes made
+ * in the meantime are queued against that ID. Every other joke's ID is captured
+ * when the write is queued, since a JokeView refills its Joke when it is rebound.
+ */
+public class JokeWriteQueue {
+
+    private static final String TAG = "joke_write_queue";
+
+    /**
+     * How long the queue waits for more writes before committing, and the longest
+     * a write waits while more keep being queued.
+     */
+    private static final long BATCH_WINDOW_MILLIS = 250;
+    private static final long MAX_BATCH_DELAY_MILLIS = 1000;
+
+    /**
+     * Most jokes rated by a single update, which stays under SQLite's limit of bound arguments.
+     */
+    private static final int MAX_IDS_PER_UPDATE = 500;
+
+    /**
+     * Types of pending writes.
+     */
+    private static final int INSERT = 0;
+    private static final int UPDATE = 1;
+    private static final int DELETE = 2;
+
+    /**
+     * Interface definition for a callback run on the UI thread once a write is committed.
+     */
+    public static interface OnJokeWrittenListener {
+        public void onJokeWritten(Joke joke, boolean success);
+    }
+
+    /**
+     * Interface definition for instrumentation of the queue. Methods are called
+     * on the thread that caused the event, and must return quickly.
+     */
+    public static interface Monitor {
+        public void onQueueDepthChanged(int depth);
+        public void onBatchCommitted(int batchSize, long commitMillis);
+        public void onBatchFailed(int batchSize, Exception cause);
+    }
+
+    /**
+     * A write waiting to be committed, along with everyone waiting on it.
+     */
+    private static class PendingWrite {
+        private final Joke joke;
+        private long id;
+        private int type;
+        private final ContentValues values = new ContentValues();
+        private final List<OnJokeWrittenListener> listeners = new ArrayList<>(1);
+
+        private PendingWrite(final Joke joke, final int type) {
+            this.joke = joke;
+            this.id = joke.getId();
+            this.type = type;
+        }
+    }
+
+    private final ContentResolver contentResolver;
+
+    private final ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor();
+    private final Handler mainHandler = new Handler(Looper.getMainLooper());
+
+    /**
+     * Guards the pending writes. Never held while committing.
+     */
+    private final Object lock = new Object();
+
+    /**
+     * Pending writes for jokes that already have an ID.
+     */
+    private final Map<Long, PendingWrite> pendingById = new LinkedHashMap<>();
+
+    /**
+     * Pending writes for jokes that have not been inserted yet. Joke.equals compares
+     * text, so these are kept by instance.
+     */
+    private final Map<Joke, PendingWrite> pendingByJoke = new IdentityHashMap<>();
+
+    /**
+     * The scheduled commit and the time it may be pushed back to, or null if none is scheduled.
+     */
+    private ScheduledFuture<?> scheduledCommit;
+    private long batchDeadline;
+
+    /**
+     * Set by shutdown. Writes queued after it fail, and writes re-queued by the final
+     * commits are drained by the commit that re-queued them instead of being scheduled.
+     */
+    private boolean shutdown;
+
+    private Monitor monitor;
+
+    private final Runnable commitRunnable = new Runnable() {
+        @Override
+        public void run() {
+            commit();
+        }
+    };
+
+    public JokeWriteQueue(final ContentResolver contentResolver) {
+        this.contentResolver = contentResolver;
+    }
+
+    public void setMonitor(final Monitor monitor) {
+        this.monitor = monitor;
+    }
+
+    /**
+     * Queues a new joke for insertion. Its ID is set once the insert commits.
+     */
+    public void insert(final Joke joke, final OnJokeWrittenListener listener) {
+        synchronized (lock) {
+            final PendingWrite write = new PendingWrite(joke, INSERT);
+            write.values.put(JokeTable.KEY_TEXT, joke.getText());
+            write.values.put(JokeTable.KEY_RATING, joke.getRating());
+
+            if (rejectAfterShutdown(write, listener)) {
+                return;
+            }
+            addListener(write, listener);
+
+            pendingByJoke.put(joke, write);
+
+            onEnqueued();
+        }
+    }
+
+    /**
+     * Queues the joke's current rating to be written. Only the rating
+     * of a joke can change after it has been added.
+     */
+    public void update(final Joke joke, final OnJokeWrittenListener listener) {
+        synchronized (lock) {
+            PendingWrite write = getPendingWrite(joke);
+
+            if (null == write) {
+                write = new PendingWrite(joke, UPDATE);
+
+                if (rejectAfterShutdown(write, listener)) {
+                    return;
+                }
+                putPendingWrite(write);
+            }
+
+            if (DELETE != write.type) {
+                write.values.put(JokeTable.KEY_RATING, joke.getRating());
+            }
+            addListener(write, listener);
+
+            onEnqueued();
+        }
+    }
+
+    /**
+     * Queues a joke for deletion, replacing any other write pending for it.
+     */
+    public void delete(final Joke joke, final OnJokeWrittenListener listener) {
+        synchronized (lock) {
+            PendingWrite write = getPendingWrite(joke);
+
+            if (null != write && INSERT == write.type) {
+                // Never written, so there is nothing to delete.
+                pendingByJoke.remove(joke);
+                addListener(write, listener);
+                dispatch(write, true);
+                onDepthChanged();
+                return;
+            }
+
+            if (null == write) {
+                write = new PendingWrite(joke, DELETE);
+
+                if (rejectAfterShutdown(write, listener)) {
+                    return;
+                }
+                putPendingWrite(write);
+            }
+
+            write.type = DELETE;
+            write.values.clear();
+            addListener(write, listener);
+
+            onEnqueued();
+        }
+    }
+
+    /**
+     * Commits pending writes now instead of waiting for the batch window to close.
+     * Does nothing after shutdown, which has already committed them.
+     */
+    public void flush() {
+        if (!executor.isShutdown()) {
+            executor.execute(commitRunnable);
+        }
+    }
+
+    /**
+     * Commits pending writes and stops the writer thread once they are done. Writes
+     * waiting on an insert in flight are committed as soon as the insert is, and
+     * writes queued after this call fail.
+     */
+    public void shutdown() {
+        synchronized (lock) {
+            if (shutdown) {
+                return;
+            }
+            shutdown = true;
+        }
+        flush();
+        executor.shutdown();
+    }
+
+    public int getQueueDepth() {
+        synchronized (lock) {
+            return pendingById.size() + pendingByJoke.size();
+        }
+    }
+
+    private PendingWrite getPendingWrite(final Joke joke) {
+        if (0 == joke.getId() || pendingByJoke.containsKey(joke)) {
+            return pendingByJoke.get(joke);
+        }
+        return pendingById.get(joke.getId());
+    }
+
+    private void putPendingWrite(final PendingWrite write) {
+        if (0 == write.id) {
+            pendingByJoke.put(write.joke, write);
+        } else {
+            pendingById.put(write.id, write);
+        }
+    }
+
+    /**
+     * Fails a write that is not already pending if the queue has been shut down,
+     * since no commit would ever take it. Must be called while holding the lock.
+     *
+     * @return
+     *          True if the write was failed.
+     */
+    private boolean rejectAfterShutdown(final PendingWrite write, final OnJokeWrittenListener listener) {
+        if (!shutdown) {
+            return false;
+        }
+
+        Log.w(TAG, "Joke write queued after shutdown");
+        addListener(write, listener);
+        dispatch(write, false);
+        return true;
+    }
+
+    private void addListener(final PendingWrite write, final OnJokeWrittenListener listener) {
+        if (null != listener) {
+            write.listeners.add(listener);
+        }
+    }
+
+    /**
+     * Schedules the commit a window after this write, but no later than the deadline
+     * set by the first write of the batch. After shutdown the only writes enqueued are
+     * those re-queued by a commit, which drains them itself, so nothing is scheduled.
+     * Must be called while holding the lock.
+     */
+    private void onEnqueued() {
+        onDepthChanged();
+
+        if (shutdown) {
+            return;
+        }
+
+        final long now = SystemClock.uptimeMillis();
+
+        if (null == scheduledCommit) {
+            batchDeadline = now + MAX_BATCH_DELAY_MILLIS;
+        } else {
+            scheduledCommit.cancel(false);
+        }
+
+        final long delay = Math.max(0, Math.min(BATCH_WINDOW_MILLIS, batchDeadline - now));
+        scheduledCommit = executor.schedule(commitRunnable, delay, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Must be called while holding the lock.
+     */
+    private void onDepthChanged() {
+        if (null != monitor) {
+            monitor.onQueueDepthChanged(pendingById.size() + pendingByJoke.size());
+        }
+    }
+
+    /**
+     * Commits batches until none are left to commit now. Before shutdown that is a single
+     * batch; after it, writes re-queued by a batch's inserts are committed by the next
+     * batch straight away, since the executor no longer takes new commits.
+     * Runs on the writer thread only.
+     */
+    private void commit() {
+        boolean more;
+        do {
+            more = commitBatch();
+        } while (more);
+    }
+
+    /**
+     * Takes every write that can be committed now and commits them in one batch.
+     * Runs on the writer thread only.
+     *
+     * @return
+     *          True if the queue has been shut down and writes were re-queued by this batch.
+     */
+    private boolean commitBatch() {
+        final List<PendingWrite> batch = new ArrayList<>();
+
+        synchronized (lock) {
+            scheduledCommit = null;
+
+            batch.addAll(pendingById.values());
+            pendingById.clear();
+
+            // Writes to jokes that are still waiting on their insert stay queued.
+            final Iterator<PendingWrite> iterator = pendingByJoke.values().iterator();
+            while (iterator.hasNext()) {
+                final PendingWrite write = iterator.next();
+                if (INSERT == write.type) {
+                    batch.add(write);
+                    iterator.remove();
+                }
+            }
+
+            onDepthChanged();
+        }
+
+        if (batch.isEmpty()) {
+            return false;
+        }
+
+        final int[] operationIndexes = new int[batch.size()];
+        int[] operationSizes = null;
+
+        final long start = System.nanoTime();
+
+        ContentProviderResult[] results = null;
+        Exception failure = null;
+        try {
+            // Built here so a write that can't be turned into an operation fails the batch.
+            final ArrayList<ContentProviderOperation> operations = toOperations(batch, operationIndexes);
+
+            operationSizes = new int[operations.size()];
+            for (final int index : operationIndexes) {
+                operationSizes[index]++;
+            }
+
+            results = contentResolver.applyBatch(JokeContentProvider.AUTHORITY, operations);
+        } catch (RemoteException | OperationApplicationException | RuntimeException e) {
+            Log.e(TAG, "Failed to commit " + batch.size() + " joke writes", e);
+            failure = e;
+        }
+
+        final long commitMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+
+        synchronized (lock) {
+            for (int i = 0; i < batch.size(); i++) {
+                final PendingWrite write = batch.get(i);
+                final int index = operationIndexes[i];
+                final ContentProviderResult result = null != results ? results[index] : null;
+                final boolean success = null != result && isSuccessful(write, result, operationSizes[index]);
+
+                if (INSERT == write.type) {
+                    onInsertCommitted(write, success ? result.uri : null);
+                }
+
+                dispatch(write, success);
+            }
+
+            if (null != monitor && null != failure) {
+                monitor.onBatchFailed(batch.size(), failure);
+            } else if (null != monitor) {
+                monitor.onBatchCommitted(batch.size(), commitMillis);
+            }
+
+            return shutdown && !pendingById.isEmpty();
+        }
+    }
+
+    /**
+     * Sets the ID of a newly inserted joke and re-queues any writes
+     * made to it while the insert was in flight. Must be called while holding the lock.
+     */
+    private void onInsertCommitted(final PendingWrite write, final Uri uri) {
+        final PendingWrite waiting = pendingByJoke.remove(write.joke);
+
+        if (null == uri) {
+            if (null != waiting) {
+                dispatch(waiting, false);
+                onDepthChanged();
+            }
+            return;
+        }
+
+        write.id = Long.parseLong(uri.getLastPathSegment());
+        write.joke.setId(write.id);
+
+        if (null != waiting) {
+            waiting.id = write.id;
+            pendingById.put(waiting.id, waiting);
+            onEnqueued();
+        }
+    }
+
+    /**
+     * A rating update is shared by every joke given that rating, so it only counts as
+     * successful if it changed a row for each of them. The provider can't say which
+     * jokes were missing, so they all fail together.
+     *
+     * @param operationSize
+     *          The number of writes carried by the write's operation.
+     */
+    private static boolean isSuccessful(final PendingWrite write, final ContentProviderResult result,
+                                        final int operationSize) {
+        return INSERT == write.type ? null != result.uri : null != result.count && result.count == operationSize;
+    }
+
+    /**
+     * Turns a batch of writes into provider operations. Inserts and deletes get an
+     * operation each, while updates are grouped into one update per rating.
+     *
+     * @param operationIndexes
+     *          Filled with the index of the operation carrying each write.
+     */
+    private static ArrayList<ContentProviderOperation> toOperations(final List<PendingWrite> batch,
+                                                                    final int[] operationIndexes) {
+        final ArrayList<ContentProviderOperation> operations = new ArrayList<>();
+        final SparseArray<List<Integer>> updatesByRating = new SparseArray<>(3);
+
+        for (int i = 0; i < batch.size(); i++) {
+            final PendingWrite write = batch.get(i);
+            final Uri uri = Uri.parse(JokeContentProvider.CONTENT_URI + "/joke/" + write.id);
+
+            switch (write.type) {
+                case INSERT:
+                    operationIndexes[i] = operations.size();
+                    operations.add(ContentProviderOperation.newInsert(uri).withValues(write.values).build());
+                    break;
+                case UPDATE:
+                    final int rating = write.values.getAsInteger(JokeTable.KEY_RATING);
+                    List<Integer> updates = updatesByRating.get(rating);
+                    if (null == updates) {
+                        updates = new ArrayList<>();
+                        updatesByRating.put(rating, updates);
+                    }
+                    updates.add(i);
+                    break;
+                default:
+                    operationIndexes[i] = operations.size();
+                    operations.add(ContentProviderOperation.newDelete(uri).build());
+                    break;
+            }
+        }
+
+        for (int r = 0; r < updatesByRating.size(); r++) {
+            final int rating = updatesByRating.keyAt(r);
+            final List<Integer> updates = updatesByRating.valueAt(r);
+
+            for (int start = 0; start < updates.size(); start += MAX_IDS_PER_UPDATE) {
+                final int end = Math.min(updates.size(), start + MAX_IDS_PER_UPDATE);
+                final String[] ids = new String[end - start];
+
+                for (int u = start; u < end; u++) {
+                    final int i = updates.get(u);
+                    ids[u - start] = Long.toString(batch.get(i).id);
+                    operationIndexes[i] = operations.size();
+                }
+
+                operations.add(ContentProviderOperation.newUpdate(JokeContentProvider.getRatingUri(rating))
+                        .withValue(JokeTable.KEY_RATING, rating)
+                        .withSelection(null, ids)
+                        .build());
+            }
+        }
+
+        return operations;
+    }
+
+    private void dispatch(final PendingWrite write, final boolean success) {
+        if (write.listeners.isEmpty()) {
+            return;
+        }
+
+        mainHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                for (final OnJokeWrittenListener listener : write.listeners) {
+                    listener.onJokeWritten(write.joke, success);
+                }
+            }
+        });
+    }
+}
@@ -1,16 +1,23 @@
 package edu.cvtc.android.jokeview;
 
-import android.content.ContentValues;
 import android.content.Context;
+import android.content.Intent;
 import android.content.SharedPreferences;
+import android.content.res.AssetFileDescriptor;
 import android.database.Cursor;
 import android.net.Uri;
+import android.os.AsyncTask;
 import android.support.v4.app.LoaderManager;
 import android.support.v4.content.CursorLoader;
 import android.support.v4.content.Loader;
+import android.support.v4.view.MenuItemCompat;
 import android.support.v7.app.AppCompatActivity;
 import android.os.Bundle;
 import android.support.v7.view.ActionMode;
+import android.support.v7.widget.SearchView;
+import android.text.Editable;
+import android.text.TextWatcher;
+import android.util.Log;
 import android.view.KeyEvent;
 import android.view.Menu;
 import android.view.MenuInflater;
@@ -21,6 +28,10 @@ import android.widget.AdapterView;
 import android.widget.Button;
 import android.widget.EditText;
 import android.widget.ListView;
+import android.widget.Toast;
+
+import java.io.File;
+import java.io.IOException;
 
 import java.util.ArrayList;
 import java.util.List;
@@ -30,7 +41,17 @@ public class MainActivity extends AppCompatActivity implements LoaderManager.Loa
     private List<Joke> jokeList = new ArrayList<>();
     private List<Joke> filteredJokeList = new ArrayList<>();
 
-    private JokeCursorAdapter jokeCursorAdapter;
+    private JokePagingAdapter jokeCursorAdapter;
+
+    /**
+     * Commits joke inserts, updates and deletes off the UI thread.
+     */
+    private JokeWriteQueue jokeWriteQueue;
+
+    /**
+     * Saves the text being typed into jokeEditText off the UI thread.
+     */
+    private JokeDraftStore draftStore;
 
     private Button addJokeButton;
     private EditText jokeEditText;
@@ -42,6 +63,18 @@ public class MainActivity extends AppCompatActivity implements LoaderManager.Loa
     private Menu filterMenu;
     private int filter;
 
+    /**
+     * The joke counts last read for each filter, or null before the first read,
+     * and the read in progress, if any.
+     */
+    private int[] filterCounts;
+    private CountsTask countsTask;
+
+    /**
+     * Text typed into the search box, or null when not searching.
+     */
+    private String searchQuery;
+
     /**
      * Reference variable for the ListView item selected via the LongClick event.
      */
@@ -53,11 +86,27 @@ public class MainActivity extends AppCompatActivity implements LoaderManager.Loa
     private static final String SAVED_TEXT_KEY = "jokeText";
     private static final String SAVED_FILTER_KEY = "filter";
 
+    /**
+     * Name of the file the draft of jokeEditText is kept in.
+     */
+    private static final String DRAFT_FILE_NAME = "joke_draft";
+
     /**
      * ID for the CursorLoader to initialize and restart in LoaderManager to load the Cursor.
      */
     private static final int LOADER_ID = 1;
 
+    /**
+     * Request code for picking a joke file to import, and where import checkpoints are kept.
+     */
+    private static final int REQUEST_IMPORT = 1;
+    private static final String IMPORT_PREFERENCES = "joke_import";
+
+    /**
+     * The import running in the background, if any.
+     */
+    private ImportTask importTask;
+
     /**
      * ActionMode and Callback for Action Bar Menu behavior that will run
      * when a user Long Clicks on a ListView item.
@@ -81,7 +130,7 @@ public class MainActivity extends AppCompatActivity implements LoaderManager.Loa
         public boolean onActionItemClicked(ActionMode mode, MenuItem item) {
             switch (item.getItemId()) {
                 case R.id.menu_remove:
-                    removeJoke(MainActivity.this.selectedView.getJoke());
+                    removeJoke(MainActivity.this.selectedView);
                     mode.finish();
                     break;
                 default:
@@ -96,16 +145,22 @@ public class MainActivity extends AppCompatActivity implements LoaderManager.Loa
         }
     };
 
-    private void removeJoke(final Joke joke) {
-        final Uri uri = Uri.parse(JokeContentProvider.CONTENT_URI + "/joke/" + joke.getId());
-        getContentResolver().delete(uri, null, null);
-        fillData();
+    private void removeJoke(final JokeView view) {
+        jokeWriteQueue.delete(view.getJoke(), null);
+
+        final int position = jokeListView.getPositionForView(view);
+        if (ListView.INVALID_POSITION != position) {
+            jokeCursorAdapter.removeJoke(position);
+        }
     }
 
     @Override
     protected void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
 
+        jokeWriteQueue = new JokeWriteQueue(getContentResolver());
+        draftStore = new JokeDraftStore(new File(getFilesDir(), DRAFT_FILE_NAME));
+
         initializeLayout();
 
         initializeEventListeners();
@@ -116,13 +171,27 @@ public class MainActivity extends AppCompatActivity implements LoaderManager.Loa
         getSupportLoaderManager().initLoader(LOADER_ID, null, this);
 
         /**
-         * Shared Preferences - Check for saved text to restore.
-         * If there is not text, populate jokeEditText with
-         * the empty String "".
+         * Restore the draft of jokeEditText. A draft saved to Shared Preferences
+         * by an older version is moved into the draft store the first time. The old
+         * key is only removed once the draft store has written the draft, so a draft
+         * is never lost to the app being stopped in between.
          */
-        final SharedPreferences preferences = getPreferences(MODE_PRIVATE);
+        String savedText = draftStore.load();
+
+        if (null == savedText) {
+            final SharedPreferences preferences = getPreferences(MODE_PRIVATE);
 
-        final String savedText = preferences.getString(SAVED_TEXT_KEY, "");
+            savedText = preferences.getString(SAVED_TEXT_KEY, "");
+
+            if (preferences.contains(SAVED_TEXT_KEY)) {
+                draftStore.save(savedText, new Runnable() {
+                    @Override
+                    public void run() {
+                        preferences.edit().remove(SAVED_TEXT_KEY).apply();
+                    }
+                });
+            }
+        }
 
         jokeEditText.setText(savedText);
 
@@ -138,10 +207,30 @@ public class MainActivity extends AppCompatActivity implements LoaderManager.Loa
         super.onPause();
 
         /**
-         * Shared Preferences - Save the text from jokeEditText
+         * Don't leave writes waiting on the batch window if we are going away.
+         */
+        jokeWriteQueue.flush();
+
+        /**
+         * The draft is saved as it is typed; write out the last of it without waiting.
          */
-        final SharedPreferences preferences = getPreferences(MODE_PRIVATE);
-        preferences.edit().putString(SAVED_TEXT_KEY, jokeEditText.getText().toString()).commit();
+        draftStore.flush();
+    }
+
+    @Override
+    protected void onDestroy() {
+        super.onDestroy();
+
+        jokeWriteQueue.shutdown();
+        draftStore.shutdown();
+
+        if (null != importTask) {
+            importTask.stop();
+        }
+
+        if (null != countsTask) {
+            countsTask.cancel(false);
+        }
     }
 
     /**
@@ -178,10 +267,15 @@ public class MainActivity extends AppCompatActivity implements LoaderManager.Loa
         jokeListView.setClickable(true);
         jokeListView.setLongClickable(true);
 
-        jokeCursorAdapter = new JokeCursorAdapter(this, null, 0);
+        jokeCursorAdapter = new JokePagingAdapter(this, JokeContentProvider.DEFAULT_PAGE_SIZE);
         jokeCursorAdapter.setOnJokeChangeListener(this);
 
+        if (JokeFrameMonitor.isEnabled()) {
+            jokeCursorAdapter.setFrameMonitor(new JokeFrameMonitor());
+        }
+
         jokeListView.setAdapter(jokeCursorAdapter);
+        jokeListView.setOnScrollListener(jokeCursorAdapter);
     }
 
     /**
@@ -195,9 +289,60 @@ public class MainActivity extends AppCompatActivity implements LoaderManager.Loa
         final MenuInflater inflater = getMenuInflater();
         inflater.inflate(R.menu.menu_filter, filterMenu);
 
+        initializeSearchView(filterMenu.findItem(R.id.menu_search));
+
         return true;
     }
 
+    /**
+     * Searches as the user types, and goes back to the filtered list
+     * when the search box is closed.
+     */
+    private void initializeSearchView(final MenuItem searchItem) {
+        final SearchView searchView = (SearchView) MenuItemCompat.getActionView(searchItem);
+
+        searchView.setQueryHint(getResources().getString(R.string.search_hint));
+
+        searchView.setOnQueryTextListener(new SearchView.OnQueryTextListener() {
+            @Override
+            public boolean onQueryTextSubmit(String query) {
+                search(query);
+                return true;
+            }
+
+            @Override
+            public boolean onQueryTextChange(String newText) {
+                search(newText);
+                return true;
+            }
+        });
+
+        MenuItemCompat.setOnActionExpandListener(searchItem, new MenuItemCompat.OnActionExpandListener() {
+            @Override
+            public boolean onMenuItemActionExpand(MenuItem item) {
+                return true;
+            }
+
+            @Override
+            public boolean onMenuItemActionCollapse(MenuItem item) {
+                search(null);
+                return true;
+            }
+        });
+    }
+
+    private void search(final String text) {
+        final String query = null != text && !text.trim().isEmpty() ? text.trim() : null;
+
+        if (null == query ? null == searchQuery : query.equals(searchQuery)) {
+            return;
+        }
+
+        searchQuery = query;
+
+        fillData();
+    }
+
     @Override
     public boolean onPrepareOptionsMenu(Menu menu) {
 
@@ -212,6 +357,10 @@ public class MainActivity extends AppCompatActivity implements LoaderManager.Loa
     public boolean onOptionsItemSelected(MenuItem item) {
 
         switch (item.getItemId()) {
+            case R.id.menu_filter:
+                // Called just before the filter submenu opens.
+                showFilterCounts();
+                return super.onOptionsItemSelected(item);
             case R.id.submenu_like:
                 filter(Joke.LIKE);
                 return true;
@@ -224,12 +373,123 @@ public class MainActivity extends AppCompatActivity implements LoaderManager.Loa
             case R.id.submenu_show_all:
                 filter(Joke.SHOW_ALL);
                 return true;
+            case R.id.menu_import:
+                pickImportFile();
+                return true;
+            case R.id.menu_export:
+                shareExport();
+                return true;
             default:
                 return super.onOptionsItemSelected(item);
         }
 
     }
 
+    /**
+     * Lets the user pick a JSON-lines or CSV file of jokes to import.
+     */
+    private void pickImportFile() {
+        final Intent intent = new Intent(Intent.ACTION_GET_CONTENT);
+        intent.setType("*/*");
+        intent.addCategory(Intent.CATEGORY_OPENABLE);
+
+        startActivityForResult(intent, REQUEST_IMPORT);
+    }
+
+    /**
+     * Hands the joke library to another app as JSON lines, streamed straight out of the database.
+     */
+    private void shareExport() {
+        final Intent intent = new Intent(Intent.ACTION_SEND);
+        intent.setType(JokeExporter.MIME_TYPE_JSON_LINES);
+        intent.putExtra(Intent.EXTRA_STREAM, JokeContentProvider.getExportUri(JokeExporter.FORMAT_JSON_LINES));
+        intent.addFlags(Intent.FLAG_GRANT_READ_URI_PERMISSION);
+
+        startActivity(Intent.createChooser(intent, getString(R.string.export_menuitem)));
+    }
+
+    @Override
+    protected void onActivityResult(int requestCode, int resultCode, Intent data) {
+        super.onActivityResult(requestCode, resultCode, data);
+
+        if (REQUEST_IMPORT == requestCode && RESULT_OK == resultCode && null != data && null == importTask) {
+            final Uri source = data.getData();
+            final String type = getContentResolver().getType(source);
+
+            final int format = (null != type && type.contains("csv")) || source.toString().endsWith(".csv")
+                    ? JokeImporter.FORMAT_CSV : JokeImporter.FORMAT_JSON_LINES;
+
+            importTask = new ImportTask(source, format);
+            importTask.execute();
+        }
+    }
+
+    /**
+     * Runs a JokeImporter in the background, showing its progress in the action bar.
+     * An import interrupted by leaving the app resumes from its checkpoint when
+     * the same file is imported again.
+     */
+    private class ImportTask extends AsyncTask<Void, Long, Long> implements JokeImporter.OnProgressListener {
+
+        private final Uri source;
+        private final int format;
+        private final JokeImporter importer;
+
+        private ImportTask(final Uri source, final int format) {
+            this.source = source;
+            this.format = format;
+            this.importer = new JokeImporter(getContentResolver(), getSharedPreferences(IMPORT_PREFERENCES, MODE_PRIVATE));
+        }
+
+        private void stop() {
+            importer.cancel();
+            cancel(false);
+        }
+
+        @Override
+        protected Long doInBackground(Void... params) {
+            try {
+                return importer.importJokes(source, format, this);
+            } catch (IOException | RuntimeException e) {
+                Log.e("joke_import", "Failed to import " + source, e);
+                return null;
+            }
+        }
+
+        @Override
+        public void onProgress(long bytesRead, long totalBytes, long jokesImported) {
+            publishProgress(bytesRead, totalBytes, jokesImported);
+        }
+
+        @Override
+        protected void onProgressUpdate(Long... progress) {
+            if (null == getSupportActionBar()) {
+                return;
+            }
+
+            if (AssetFileDescriptor.UNKNOWN_LENGTH != progress[1] && progress[1] > 0) {
+                getSupportActionBar().setSubtitle(getString(R.string.import_progress, (int) (100 * progress[0] / progress[1])));
+            } else {
+                getSupportActionBar().setSubtitle(getString(R.string.import_progress_count, progress[2]));
+            }
+        }
+
+        @Override
+        protected void onPostExecute(Long jokesImported) {
+            importTask = null;
+
+            if (null != getSupportActionBar()) {
+                getSupportActionBar().setSubtitle(null);
+            }
+
+            if (null != jokesImported) {
+                Toast.makeText(MainActivity.this, getString(R.string.import_complete, jokesImported), Toast.LENGTH_SHORT).show();
+            } else {
+                Toast.makeText(MainActivity.this, R.string.import_failed, Toast.LENGTH_SHORT).show();
+            }
+        }
+    }
+
     private void filter(int filterType) {
 
         filter = filterType;
@@ -245,6 +505,73 @@ public class MainActivity extends AppCompatActivity implements LoaderManager.Loa
         }
     }
 
+    /**
+     * Shows the number of jokes next to each filter. The counts last read are shown
+     * straight away and read again in the background, since the filter menu opens on
+     * the UI thread and the provider may be busy with a write.
+     */
+    private void showFilterCounts() {
+        applyFilterCounts();
+        refreshFilterCounts();
+    }
+
+    /**
+     * Reads the joke counts in the background unless a read is already running. The counts
+     * are read again every time the list loads, so they are usually current when the menu opens.
+     */
+    private void refreshFilterCounts() {
+        if (null == countsTask) {
+            countsTask = new CountsTask();
+            // Not the default serial executor, which an import may be holding.
+            countsTask.executeOnExecutor(AsyncTask.THREAD_POOL_EXECUTOR);
+        }
+    }
+
+    private void applyFilterCounts() {
+        if (null == filterMenu || null == filterCounts) {
+            return;
+        }
+
+        setFilterCount(R.id.submenu_like, R.string.like_menuitem, filterCounts[Joke.LIKE]);
+        setFilterCount(R.id.submenu_dislike, R.string.dislike_menuitem, filterCounts[Joke.DISLIKE]);
+        setFilterCount(R.id.submenu_unrated, R.string.unrated_menuitem, filterCounts[Joke.UNRATED]);
+        setFilterCount(R.id.submenu_show_all, R.string.show_all_menuitem, filterCounts[Joke.SHOW_ALL]);
+    }
+
+    /**
+     * Reads the joke counts from the provider, which keeps them in a table of their own,
+     * so reading them does not count the joke table.
+     */
+    private class CountsTask extends AsyncTask<Void, Void, int[]> {
+
+        @Override
+        protected int[] doInBackground(Void... params) {
+            final Bundle result = getContentResolver().call(JokeContentProvider.CONTENT_URI,
+                    JokeContentProvider.METHOD_COUNTS, null, null);
+
+            return null != result ? result.getIntArray(JokeContentProvider.EXTRA_COUNTS) : null;
+        }
+
+        @Override
+        protected void onPostExecute(int[] counts) {
+            countsTask = null;
+
+            if (null != counts) {
+                filterCounts = counts;
+                applyFilterCounts();
+            }
+        }
+    }
+
+    private void setFilterCount(final int itemId, final int titleId, final int count) {
+        final MenuItem item = filterMenu.findItem(itemId);
+
+        if (null != item) {
+            item.setTitle(getResources().getString(R.string.filter_count_menuitem,
+                    getResources().getString(titleId), count));
+        }
+    }
+
     private String getMenuTitleText() {
         switch (filter) {
             case Joke.LIKE:
@@ -284,6 +611,33 @@ public class MainActivity extends AppCompatActivity implements LoaderManager.Loa
             }
         });
 
+        jokeEditText.addTextChangedListener(new TextWatcher() {
+            @Override
+            public void beforeTextChanged(CharSequence s, int start, int count, int after) {
+            }
+
+            @Override
+            public void onTextChanged(CharSequence s, int start, int before, int count) {
+            }
+
+            @Override
+            public void afterTextChanged(Editable s) {
+                draftStore.setText(s.toString());
+            }
+        });
+
+        /**
+         * Rows are never focused, so keys go to the list first. The selected row gets the
+         * first look at them, so the D-pad can reach its rating glyphs.
+         */
+        jokeListView.setOnKeyListener(new View.OnKeyListener() {
+            @Override
+            public boolean onKey(View view, int keyCode, KeyEvent keyEvent) {
+                final View selectedRow = jokeListView.getSelectedView();
+                return selectedRow instanceof JokeView && selectedRow.dispatchKeyEvent(keyEvent);
+            }
+        });
+
         jokeListView.setOnItemLongClickListener(new AdapterView.OnItemLongClickListener() {
             @Override
             public boolean onItemLongClick(AdapterView<?> parent, View view, int position, long id) {
@@ -317,13 +671,18 @@ public class MainActivity extends AppCompatActivity implements LoaderManager.Loa
     }
 
     private void addJoke(final Joke joke) {
-        Uri uri = Uri.parse(JokeContentProvider.CONTENT_URI + "/joke/" + joke.getId());
-        uri = getContentResolver().insert(uri, setUpContentValues(joke));
+        jokeWriteQueue.insert(joke, null);
 
-        final int id = Integer.parseInt(uri.getLastPathSegment());
-        joke.setId(id);
+        if (null == searchQuery && isShownByFilter(joke)) {
+            jokeCursorAdapter.addJoke(joke);
+        }
+    }
 
-        fillData();
+    /**
+     * Whether a joke belongs in the list under the current filter.
+     */
+    private boolean isShownByFilter(final Joke joke) {
+        return Joke.SHOW_ALL == filter || joke.getRating() == filter;
     }
 
 
@@ -336,7 +695,18 @@ public class MainActivity extends AppCompatActivity implements LoaderManager.Loa
 
         final String[] projection = {JokeTable.KEY_ID, JokeTable.KEY_TEXT, JokeTable.KEY_RATING };
 
-        final Uri uri = Uri.parse(JokeContentProvider.CONTENT_URI + "/filter/" + filter);
+        /**
+         * Only the first page of a filter is loaded here; the adapter loads the rest
+         * as the list scrolls. Search results are already limited, so they come in one go.
+         */
+        final Uri uri;
+        if (null != searchQuery) {
+            uri = JokeContentProvider.getSearchUri(searchQuery);
+            jokeCursorAdapter.setPageFilter(JokePagingAdapter.NO_PAGES);
+        } else {
+            uri = JokeContentProvider.getPageUri(filter, 0, JokeContentProvider.DEFAULT_PAGE_SIZE);
+            jokeCursorAdapter.setPageFilter(filter);
+        }
 
         final CursorLoader cursorLoader = new CursorLoader(this, uri, projection, null, null, null);
 
@@ -347,6 +717,8 @@ public class MainActivity extends AppCompatActivity implements LoaderManager.Loa
     public void onLoadFinished(Loader<Cursor> loader, Cursor data) {
         jokeCursorAdapter.swapCursor(data);
         jokeCursorAdapter.setOnJokeChangeListener(this);
+
+        refreshFilterCounts();
     }
 
     @Override
@@ -354,32 +726,31 @@ public class MainActivity extends AppCompatActivity implements LoaderManager.Loa
         jokeCursorAdapter.swapCursor(null);
     }
 
-    /**
-     * Set up the ContentValues for inserting and updating Jokes.
-     */
-    private ContentValues setUpContentValues(final Joke joke) {
-        final ContentValues contentValues = new ContentValues();
-
-        contentValues.put(JokeTable.KEY_TEXT, joke.getText());
-        contentValues.put(JokeTable.KEY_RATING, joke.getRating());
-
-        return contentValues;
-    }
-
     @Override
     public void onJokeChanged(JokeView view, Joke joke) {
 
-        final Uri uri = Uri.parse(JokeContentProvider.CONTENT_URI + "/joke/" + joke.getId());
+        jokeWriteQueue.update(joke, null);
 
-        getContentResolver().update(uri, setUpContentValues(joke), null, null);
+        // Patch only the changed row; the rest of the loaded data is still valid
+        final int position = jokeListView.getPositionForView(view);
+        if (ListView.INVALID_POSITION == position) {
+            return;
+        }
 
-        // Restart the loader and bind the data to our ListView
-        fillData();
+        // Search results are not filtered by rating
+        if (null != searchQuery || isShownByFilter(joke)) {
+            jokeCursorAdapter.setJokeRating(position, joke.getRating());
+        } else {
+            jokeCursorAdapter.removeJoke(position);
+        }
     }
 
+    /**
+     * Restarts the loader for the current filter. The adapter keeps its views
+     * and the ListView keeps its scroll position while the new Cursor loads.
+     */
     private void fillData() {
         getSupportLoaderManager().restartLoader(LOADER_ID, null, this);
-        jokeListView.setAdapter(jokeCursorAdapter);
     }
 }
 
@@ -0,0 +1,240 @@
+package edu.cvtc.android.jokeview;
+
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * JokeStore kept in the joke database, which JokeContentProvider reads and writes through.
+ *
+ * Writes use the compiled statements of a JokeStatementCache, so they must be made by
+ * one thread at a time; the provider makes them while holding its write lock, which
+ * also lets it wrap many of them in one of this store's transactions. Reads go through
+ * the readable database and may be made from any thread. Besides the JokeStore methods,
+ * reads are offered as cursors, for the provider to hand on without making Jokes of them,
+ * and reads slower than the slow query log's threshold are logged, if there is a log.
+ */
+public class SqliteJokeStore implements JokeStore {
+
+    private static final String PAGE_QUERY = "select " + JokeTable.KEY_ID + ", " + JokeTable.KEY_TEXT + ", " +
+            JokeTable.KEY_RATING + " from " + JokeTable.TABLE_NAME +
+            " where " + JokeTable.KEY_ID + " > ? order by " + JokeTable.KEY_ID + " limit ?";
+
+    /**
+     * Page of the jokes with one rating, which the (rating, _id) index answers in ID order.
+     * Takes the rating, the ID to start after and the row limit as arguments.
+     */
+    static final String FILTER_PAGE_QUERY = "select " + JokeTable.KEY_ID + ", " + JokeTable.KEY_TEXT + ", " +
+            JokeTable.KEY_RATING + " from " + JokeTable.TABLE_NAME +
+            " where " + JokeTable.KEY_RATING + " = ? and " + JokeTable.KEY_ID + " > ?" +
+            " order by " + JokeTable.KEY_ID + " limit ?";
+
+    /**
+     * Most IDs bound to one statement by updateRatings, which stays under SQLite's
+     * limit of bound arguments.
+     */
+    private static final int MAX_IDS_PER_STATEMENT = 500;
+
+    private final JokeDatabaseHelper databaseHelper;
+    private final JokeStatementCache statements;
+
+    private volatile JokeSlowQueryLog slowQueries;
+
+    public SqliteJokeStore(final JokeDatabaseHelper databaseHelper) {
+        this.databaseHelper = databaseHelper;
+        this.statements = new JokeStatementCache(databaseHelper.getWritableDatabase());
+    }
+
+    @Override
+    public long insert(final String text, final int rating) {
+        return statements.insert(text, rating);
+    }
+
+    @Override
+    public boolean updateRating(final long id, final int rating) {
+        final ContentValues values = new ContentValues(1);
+        values.put(JokeTable.KEY_RATING, rating);
+        return update(id, values);
+    }
+
+    /**
+     * Sets the rating of many jokes with one statement for every MAX_IDS_PER_STATEMENT
+     * of them, rather than one per joke. Should be made inside a transaction, so the
+     * statements commit together.
+     */
+    @Override
+    public int updateRatings(final long[] ids, final int rating) {
+        final SQLiteDatabase database = databaseHelper.getWritableDatabase();
+
+        final ContentValues values = new ContentValues(1);
+        values.put(JokeTable.KEY_RATING, rating);
+
+        int rowsUpdated = 0;
+        for (int start = 0; start < ids.length; start += MAX_IDS_PER_STATEMENT) {
+            final String[] args = new String[Math.min(MAX_IDS_PER_STATEMENT, ids.length - start)];
+            for (int i = 0; i < args.length; i++) {
+                args[i] = Long.toString(ids[start + i]);
+            }
+
+            rowsUpdated += database.update(JokeTable.TABLE_NAME, values, getIdSelection(args.length), args);
+        }
+        return rowsUpdated;
+    }
+
+    @Override
+    public boolean updateText(final long id, final String text) {
+        final ContentValues values = new ContentValues(1);
+        values.put(JokeTable.KEY_TEXT, text);
+        return update(id, values);
+    }
+
+    /**
+     * Updates any of the text and rating of a joke with one statement.
+     *
+     * @return
+     *          True if the joke was found.
+     */
+    public boolean update(final long id, final ContentValues values) {
+        return statements.update(id, values) > 0;
+    }
+
+    @Override
+    public boolean delete(final long id) {
+        return statements.delete(id) > 0;
+    }
+
+    @Override
+    public List<Joke> queryPage(final int filter, final long afterId, final int limit) {
+        return toJokes(queryPageCursor(filter, afterId, limit));
+    }
+
+    /**
+     * Returns a page of jokes in ID order, like queryPage, as a cursor over the joke
+     * table columns in JokeTable order.
+     */
+    public Cursor queryPageCursor(final int filter, final long afterId, final int limit) {
+        if (Joke.SHOW_ALL == filter) {
+            return query(PAGE_QUERY, new String[] {"" + afterId, "" + limit});
+        }
+        return query(FILTER_PAGE_QUERY, new String[] {"" + filter, "" + afterId, "" + limit});
+    }
+
+    @Override
+    public List<Joke> search(final String text, final int limit) {
+        final Cursor cursor = searchCursor(text, limit);
+        return null != cursor ? toJokes(cursor) : Collections.<Joke>emptyList();
+    }
+
+    /**
+     * Searches like search, returning a cursor over the joke table columns in JokeTable order.
+     *
+     * @return
+     *          The matching jokes, best matches first, or null if the text has no words to match.
+     */
+    public Cursor searchCursor(final String text, final int limit) {
+        final String match = JokeSearchTable.toMatchQuery(text);
+
+        if (null == match) {
+            return null;
+        }
+        return query(JokeSearchTable.SEARCH_QUERY, new String[] {match, "" + limit});
+    }
+
+    /**
+     * Runs a query through the readable database, which in WAL mode runs it on a reader
+     * connection. If there is a slow query log, the query is run here by counting its rows,
+     * so the time covers reading them, and it is logged if it was slow.
+     */
+    public Cursor query(final String sql, final String[] args) {
+        final SQLiteDatabase database = databaseHelper.getReadableDatabase();
+        final JokeSlowQueryLog log = slowQueries;
+
+        final long start = System.nanoTime();
+        final Cursor cursor = database.rawQuery(sql, args);
+
+        if (null != log) {
+            final int rows = cursor.getCount();
+            final long nanos = System.nanoTime() - start;
+
+            if (log.isSlow(nanos)) {
+                log.record(database, sql, args, rows, nanos);
+            }
+        }
+
+        return cursor;
+    }
+
+    @Override
+    public int count(final int filter) {
+        final int[] counts = JokeCountTable.getCounts(databaseHelper.getReadableDatabase());
+        return filter >= 0 && filter < counts.length ? counts[filter] : 0;
+    }
+
+    /**
+     * Leaves the database open, since it belongs to the JokeDatabaseHelper.
+     */
+    @Override
+    public void close() {
+    }
+
+    /**
+     * Begins a transaction on the joke database, which the writes made before it ends
+     * commit or roll back with. Transactions nest like SQLiteDatabase's.
+     */
+    public void beginTransaction() {
+        databaseHelper.getWritableDatabase().beginTransaction();
+    }
+
+    public void setTransactionSuccessful() {
+        databaseHelper.getWritableDatabase().setTransactionSuccessful();
+    }
+
+    public void endTransaction() {
+        databaseHelper.getWritableDatabase().endTransaction();
+    }
+
+    public JokeStatementCache getStatements() {
+        return statements;
+    }
+
+    /**
+     * Sets the log slow reads are added to, or null to stop logging them.
+     */
+    public void setSlowQueryLog(final JokeSlowQueryLog slowQueries) {
+        this.slowQueries = slowQueries;
+    }
+
+    /**
+     * Returns a selection matching the joke IDs bound to count arguments.
+     */
+    private static String getIdSelection(final int count) {
+        final StringBuilder selection = new StringBuilder(JokeTable.KEY_ID.length() + 6 + 2 * count);
+        selection.append(JokeTable.KEY_ID).append(" in (");
+
+        for (int i = 0; i < count; i++) {
+            selection.append(0 == i ? "?" : ",?");
+        }
+
+        return selection.append(')').toString();
+    }
+
+    /**
+     * Reads and closes a cursor over the joke table columns in JokeTable order.
+     */
+    private static List<Joke> toJokes(final Cursor cursor) {
+        try {
+            final List<Joke> jokes = new ArrayList<>(cursor.getCount());
+            while (cursor.moveToNext()) {
+                jokes.add(new Joke(cursor.getLong(JokeTable.INDEX_ID), cursor.getString(JokeTable.INDEX_TEXT),
+                        cursor.getInt(JokeTable.INDEX_RATING)));
+            }
+            return jokes;
+        } finally {
+            cursor.close();
+        }
+    }
+}
@@ -0,0 +1,855 @@
+package edu.cvtc.android.jokeview;
+
+import android.content.ContentProviderOperation;
+import android.content.ContentResolver;
+import android.content.ContentValues;
+import android.content.Context;
+import android.content.OperationApplicationException;
+import android.database.CharArrayBuffer;
+import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.MatrixCursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.drawable.Drawable;
+import android.net.Uri;
+import android.os.RemoteException;
+import android.view.View;
+import android.view.ViewGroup;
+import android.widget.LinearLayout;
+import android.widget.ListView;
+import android.widget.RadioButton;
+import android.widget.RadioGroup;
+import android.widget.TextView;
+
+import org.junit.After;
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.Robolectric;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Config;
+
+import com.almworks.sqlite4java.SQLiteConnection;
+import com.almworks.sqlite4java.SQLiteException;
+import com.almworks.sqlite4java.SQLiteStatement;
+import com.sun.management.ThreadMXBean;
+
+import java.io.File;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Locale;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Benchmarks of the Android side of the joke storage and list, which JokeStoreBenchmark
+ * can't reach from a plain JVM. They run under Robolectric, so SQLite is the desktop
+ * build Robolectric ships and every call into it goes through Robolectric's shadows.
+ * The numbers are for comparing the two sides of each benchmark with each other,
+ * not for reading off what a device would do.
+ *
+ * Each benchmark prints a table of its latencies and checks what it measured. Some build
+ * tables of up to a million rows, so they only run when the jokeview.benchmarks system
+ * property is true, which build.gradle sets for a test run started with -Pbenchmarks.
+ * The checks of how the provider behaves, rather than how fast it is, are in
+ * JokeContentProviderTest and run with every test run.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(constants = BuildConfig.class, sdk = 23)
+public class JokeBenchmarkTest {
+
+    private static final String BENCHMARKS_PROPERTY = "jokeview.benchmarks";
+
+    private static final int WARMUP_OPERATIONS = 500;
+    private static final int OPERATIONS = 5000;
+
+    /**
+     * Jokes shown on one screen of the list, as in JokeStoreBenchmark.
+     */
+    private static final int PAGE_SIZE = 50;
+
+    /**
+     * IDs of the rating buttons in the row JokeView used to inflate.
+     */
+    private static final int OLD_LIKE_ID = 1;
+    private static final int OLD_DISLIKE_ID = 2;
+
+    /**
+     * Rows per page when a whole table is loaded into a JokeListCursor.
+     */
+    private static final int LIST_PAGE_SIZE = 1000;
+
+    /**
+     * The joke table rows after an ID, in ID order, up to a limit.
+     */
+    private static final String PAGE_QUERY = "select " + JokeTable.KEY_ID + ", " + JokeTable.KEY_TEXT + ", " +
+            JokeTable.KEY_RATING + " from " + JokeTable.TABLE_NAME +
+            " where " + JokeTable.KEY_ID + " > ? order by " + JokeTable.KEY_ID + " limit ?";
+
+    private Context context;
+    private JokeDatabaseHelper databaseHelper;
+    private LatencyRecorder latencies;
+
+    private final Random random = new Random(42);
+
+    @Before
+    public void setUp() {
+        Assume.assumeTrue(Boolean.getBoolean(BENCHMARKS_PROPERTY));
+
+        context = RuntimeEnvironment.application;
+        databaseHelper = new JokeDatabaseHelper(context, JokeDatabaseHelper.DATABASE_NAME, null,
+                JokeDatabaseHelper.DATABASE_VERSION);
+        latencies = new LatencyRecorder("benchmark");
+    }
+
+    @After
+    public void tearDown() {
+        // Skipped benchmarks never set up.
+        if (null == latencies) {
+            return;
+        }
+
+        System.out.println(latencies.report());
+
+        databaseHelper.close();
+        context.deleteDatabase(JokeDatabaseHelper.DATABASE_NAME);
+    }
+
+    /**
+     * Single-row inserts, rating updates and deletes through SqliteJokeStore's compiled
+     * statements, against the same writes made the way the provider made them before,
+     * with SQLiteDatabase building the SQL and the joke ID written into it.
+     */
+    @Test
+    public void compiledStatements() {
+        final SQLiteDatabase database = databaseHelper.getWritableDatabase();
+        final SqliteJokeStore store = new SqliteJokeStore(databaseHelper);
+
+        for (int pass = 0; pass < 2; pass++) {
+            final boolean measured = 1 == pass;
+            final int operations = measured ? OPERATIONS : WARMUP_OPERATIONS;
+
+            final long[] cachedIds = new long[operations];
+            final long[] uncachedIds = new long[operations];
+
+            for (int i = 0; i < operations; i++) {
+                final String text = newText();
+
+                long start = System.nanoTime();
+                cachedIds[i] = store.insert(text, Joke.UNRATED);
+                record(measured, "insert compiled", start);
+
+                final ContentValues values = new ContentValues(2);
+                values.put(JokeTable.KEY_TEXT, text);
+                values.put(JokeTable.KEY_RATING, Joke.UNRATED);
+
+                start = System.nanoTime();
+                uncachedIds[i] = database.insert(JokeTable.TABLE_NAME, null, values);
+                record(measured, "insert built", start);
+            }
+
+            for (int i = 0; i < operations; i++) {
+                final int rating = random.nextInt(3);
+
+                long start = System.nanoTime();
+                store.updateRating(cachedIds[i], rating);
+                record(measured, "update compiled", start);
+
+                final ContentValues values = new ContentValues(1);
+                values.put(JokeTable.KEY_RATING, rating);
+
+                start = System.nanoTime();
+                database.update(JokeTable.TABLE_NAME, values, JokeTable.KEY_ID + "=" + uncachedIds[i], null);
+                record(measured, "update built", start);
+            }
+
+            for (int i = 0; i < operations; i++) {
+                long start = System.nanoTime();
+                store.delete(cachedIds[i]);
+                record(measured, "delete compiled", start);
+
+                start = System.nanoTime();
+                database.delete(JokeTable.TABLE_NAME, JokeTable.KEY_ID + "=" + uncachedIds[i], null);
+                record(measured, "delete built", start);
+            }
+        }
+
+        assertEquals(3 * (WARMUP_OPERATIONS + OPERATIONS), store.getStatements().getExecuteCount());
+    }
+
+    /**
+     * Reads pages of rows out of a joke table cursor the two ways the list has bound them:
+     * into a new Joke per row, as bindView did, and into one Joke and text buffer refilled
+     * in place, as JokeView.setJoke(Cursor) does. Both read the same cursor, already
+     * filled by the query, so the difference is only the cost of materializing the rows.
+     */
+    @Test
+    public void materializeRows() {
+        final int jokes = 10000;
+        insertJokes(jokes);
+
+        final SQLiteDatabase database = databaseHelper.getReadableDatabase();
+
+        final Joke reusedJoke = new Joke(0, null, Joke.UNRATED);
+        final CharArrayBuffer textBuffer = new CharArrayBuffer(128);
+        long checksum = 0;
+
+        for (int pass = 0; pass < 2; pass++) {
+            final boolean measured = 1 == pass;
+            final int pages = measured ? OPERATIONS / 5 : WARMUP_OPERATIONS;
+
+            for (int page = 0; page < pages; page++) {
+                final Cursor cursor = database.rawQuery(PAGE_QUERY,
+                        new String[] {"" + random.nextInt(jokes - PAGE_SIZE), "" + PAGE_SIZE});
+                try {
+                    assertEquals(PAGE_SIZE, cursor.getCount());
+
+                    long start = System.nanoTime();
+                    for (int i = 0; i < PAGE_SIZE; i++) {
+                        cursor.moveToPosition(i);
+                        final Joke joke = new Joke(cursor.getLong(JokeTable.INDEX_ID),
+                                cursor.getString(JokeTable.INDEX_TEXT), cursor.getInt(JokeTable.INDEX_RATING));
+                        checksum += joke.getText().length();
+                    }
+                    record(measured, "materialize new Joke", start);
+
+                    start = System.nanoTime();
+                    for (int i = 0; i < PAGE_SIZE; i++) {
+                        cursor.moveToPosition(i);
+                        cursor.copyStringToBuffer(JokeTable.INDEX_TEXT, textBuffer);
+                        reusedJoke.setId(cursor.getLong(JokeTable.INDEX_ID));
+                        reusedJoke.setRating(cursor.getInt(JokeTable.INDEX_RATING));
+                        checksum -= textBuffer.sizeCopied;
+                    }
+                    record(measured, "materialize reused Joke", start);
+                } finally {
+                    cursor.close();
+                }
+            }
+        }
+
+        // Both ways read the same text.
+        assertEquals(0, checksum);
+    }
+
+    /**
+     * Reads pages of jokes on one connection while another connection keeps committing
+     * batches of inserts, once with the database in WAL mode and once with the rollback
+     * journal it used before, and prints the read latencies of each.
+     *
+     * Robolectric runs every SQLiteDatabase connection to a file on one native connection
+     * and one thread, so readers can never overlap writers through it. This benchmark goes
+     * under it instead, to the sqlite4java connections Robolectric's SQLite is built on,
+     * opening one per thread the way the reader and writer connections of SQLiteDatabase
+     * are on a device. It measures SQLite's locking in each journal mode, not the cost of
+     * SQLiteDatabase's connection pool.
+     */
+    @Test
+    public void readsDuringWrites() throws SQLiteException, InterruptedException {
+        // Opening a database through Robolectric loads SQLite's native library.
+        databaseHelper.getWritableDatabase();
+
+        for (final boolean wal : new boolean[] {false, true}) {
+            final String name = "contention_benchmark.db";
+            final File file = context.getDatabasePath(name);
+            file.getParentFile().mkdirs();
+
+            try {
+                readDuringWrites(file, wal);
+            } finally {
+                context.deleteDatabase(name);
+            }
+        }
+    }
+
+    private void readDuringWrites(final File file, final boolean wal) throws SQLiteException, InterruptedException {
+        final String mode = wal ? "WAL" : "rollback journal";
+        final int seedJokes = 10000;
+        final int reads = 2000;
+        final int batchSize = 500;
+        final long busyTimeoutMillis = 10000;
+
+        final SQLiteConnection reader = new SQLiteConnection(file).open(true);
+        try {
+            reader.setBusyTimeout(busyTimeoutMillis);
+            reader.exec("pragma journal_mode = " + (wal ? "wal" : "delete"));
+            reader.exec(JokeTable.DATABASE_CREATE);
+            reader.exec(JokeTable.RATING_INDEX_CREATE);
+
+            final SQLiteStatement seed = reader.prepare(JokeTable.INSERT_STATEMENT);
+            reader.exec("begin");
+            for (int i = 0; i < seedJokes; i++) {
+                seed.bind(1, newText()).bind(2, random.nextInt(3)).step();
+                seed.reset();
+            }
+            reader.exec("commit");
+            seed.dispose();
+
+            final AtomicBoolean reading = new AtomicBoolean(true);
+            final AtomicInteger batches = new AtomicInteger();
+            final AtomicReference<SQLiteException> writeFailure = new AtomicReference<>();
+
+            final Thread writer = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        final SQLiteConnection connection = new SQLiteConnection(file).open(false);
+                        try {
+                            connection.setBusyTimeout(busyTimeoutMillis);
+                            final SQLiteStatement insert = connection.prepare(JokeTable.INSERT_STATEMENT);
+
+                            while (reading.get()) {
+                                connection.exec("begin immediate");
+                                for (int i = 0; i < batchSize; i++) {
+                                    insert.bind(1, "Concurrent joke " + i + " about a chicken crossing the road.")
+                                            .bind(2, i % 3).step();
+                                    insert.reset();
+                                }
+                                connection.exec("commit");
+                                batches.incrementAndGet();
+                            }
+
+                            insert.dispose();
+                        } finally {
+                            connection.dispose();
+                        }
+                    } catch (SQLiteException e) {
+                        writeFailure.set(e);
+                    }
+                }
+            }, "joke_benchmark_writer");
+
+            final SQLiteStatement page = reader.prepare("select " + JokeTable.KEY_ID + ", " + JokeTable.KEY_TEXT +
+                    ", " + JokeTable.KEY_RATING + " from " + JokeTable.TABLE_NAME +
+                    " where " + JokeTable.KEY_RATING + " = ? and " + JokeTable.KEY_ID + " > ?" +
+                    " order by " + JokeTable.KEY_ID + " limit " + PAGE_SIZE);
+
+            writer.start();
+            try {
+                for (int i = 0; i < reads; i++) {
+                    final long start = System.nanoTime();
+
+                    page.bind(1, random.nextInt(3)).bind(2, random.nextInt(seedJokes - 1000));
+                    int rows = 0;
+                    while (page.step()) {
+                        page.columnLong(JokeTable.INDEX_ID);
+                        page.columnString(JokeTable.INDEX_TEXT);
+                        rows++;
+                    }
+                    // Resetting ends the read transaction, which in rollback journal mode lets the writer commit.
+                    page.reset();
+
+                    latencies.record("page read, " + mode, System.nanoTime() - start);
+                    assertTrue(rows > 0);
+                }
+            } finally {
+                reading.set(false);
+                writer.join();
+                page.dispose();
+            }
+
+            if (null != writeFailure.get()) {
+                throw writeFailure.get();
+            }
+
+            System.out.println(mode + ": " + batches.get() + " batches of " + batchSize +
+                    " inserts committed during " + reads + " reads");
+            assertTrue(batches.get() > 0);
+        } finally {
+            reader.dispose();
+        }
+    }
+
+    /**
+     * Binds a JokeView to every row of a set of pages the two ways the list has bound rows:
+     * refilling the View's own Joke and text buffer from the cursor, as bindView does now,
+     * and handing it a new Joke made from the row, as bindView did before. The bytes each
+     * allocates are counted by the JVM for the test thread, which includes whatever
+     * Robolectric's shadows allocate on the way. The pages are few enough for all their
+     * text layouts to stay cached, so neither way builds layouts once warmed up.
+     *
+     * Binding from the cursor must allocate less per row than the characters of one joke's
+     * text take, so it can't be turning the text into a String or a new char array.
+     */
+    @Test
+    public void bindAllocations() {
+        // Every joke's text is longer than this, and a char is two bytes.
+        final int maxBytesPerCursorBind = 64;
+
+        final ThreadMXBean threads = (ThreadMXBean) ManagementFactory.getThreadMXBean();
+        Assume.assumeTrue(threads.isThreadAllocatedMemorySupported() && threads.isThreadAllocatedMemoryEnabled());
+
+        final int pages = 20;
+        insertJokes(pages * PAGE_SIZE);
+
+        final SQLiteDatabase database = databaseHelper.getReadableDatabase();
+        final long threadId = Thread.currentThread().getId();
+
+        final JokeView view = new JokeView(context);
+        view.measure(View.MeasureSpec.makeMeasureSpec(480, View.MeasureSpec.EXACTLY),
+                View.MeasureSpec.makeMeasureSpec(0, View.MeasureSpec.UNSPECIFIED));
+
+        long cursorBytes = 0;
+        long jokeBytes = 0;
+        int binds = 0;
+
+        for (int pass = 0; pass < 2; pass++) {
+            final boolean measured = 1 == pass;
+
+            for (int page = 0; page < pages; page++) {
+                final Cursor cursor = database.rawQuery(PAGE_QUERY,
+                        new String[] {"" + page * PAGE_SIZE, "" + PAGE_SIZE});
+                try {
+                    // Counting fills the cursor's window, so neither way pays for the query.
+                    assertEquals(PAGE_SIZE, cursor.getCount());
+
+                    long allocated = threads.getThreadAllocatedBytes(threadId);
+                    long start = System.nanoTime();
+                    for (int i = 0; i < PAGE_SIZE; i++) {
+                        cursor.moveToPosition(i);
+                        view.setJoke(cursor);
+                    }
+                    record(measured, "bind page from cursor", start);
+                    allocated = threads.getThreadAllocatedBytes(threadId) - allocated;
+                    cursorBytes += measured ? allocated : 0;
+
+                    allocated = threads.getThreadAllocatedBytes(threadId);
+                    start = System.nanoTime();
+                    for (int i = 0; i < PAGE_SIZE; i++) {
+                        cursor.moveToPosition(i);
+                        view.setJoke(new Joke(cursor.getLong(JokeTable.INDEX_ID),
+                                cursor.getString(JokeTable.INDEX_TEXT), cursor.getInt(JokeTable.INDEX_RATING)));
+                    }
+                    record(measured, "bind page new Joke", start);
+                    allocated = threads.getThreadAllocatedBytes(threadId) - allocated;
+                    jokeBytes += measured ? allocated : 0;
+
+                    binds += measured ? PAGE_SIZE : 0;
+                } finally {
+                    cursor.close();
+                }
+            }
+        }
+
+        assertTrue(String.format(Locale.US, "bytes allocated per bind: from cursor %d, new Joke %d",
+                cursorBytes / binds, jokeBytes / binds), cursorBytes / binds < maxBytesPerCursorBind);
+    }
+
+    /**
+     * Binds, measures, lays out and draws a row for each of a run of jokes, once with
+     * JokeView and once with the row JokeView used to inflate: a LinearLayout holding
+     * a TextView and a RadioGroup of two RadioButtons, built here in code the way the
+     * removed joke_view layout declared it. Each row is bound to the next joke and goes
+     * through a full measure, layout and draw, as a recycled row does when it scrolls
+     * into view with text of a new height.
+     */
+    @Test
+    public void rowMeasureLayoutDraw() {
+        final JokeView jokeView = new JokeView(context);
+
+        final LinearLayout oldRow = newOldJokeRow();
+        final TextView oldText = (TextView) oldRow.getChildAt(0);
+        final RadioGroup oldRating = (RadioGroup) oldRow.getChildAt(1);
+
+        final Canvas canvas = new Canvas(Bitmap.createBitmap(480, 800, Bitmap.Config.ARGB_8888));
+        final int widthSpec = View.MeasureSpec.makeMeasureSpec(480, View.MeasureSpec.EXACTLY);
+        final int heightSpec = View.MeasureSpec.makeMeasureSpec(0, View.MeasureSpec.UNSPECIFIED);
+
+        for (int pass = 0; pass < 2; pass++) {
+            final boolean measured = 1 == pass;
+            final int rows = measured ? OPERATIONS : WARMUP_OPERATIONS;
+
+            for (int i = 0; i < rows; i++) {
+                final Joke joke = new Joke(i + 1, newText(), random.nextInt(3));
+
+                long start = System.nanoTime();
+                jokeView.setJoke(joke);
+                jokeView.measure(widthSpec, heightSpec);
+                jokeView.layout(0, 0, jokeView.getMeasuredWidth(), jokeView.getMeasuredHeight());
+                jokeView.draw(canvas);
+                record(measured, "row JokeView", start);
+
+                start = System.nanoTime();
+                oldText.setText(joke.getText());
+                if (Joke.UNRATED == joke.getRating()) {
+                    oldRating.clearCheck();
+                } else {
+                    oldRating.check(Joke.LIKE == joke.getRating() ? OLD_LIKE_ID : OLD_DISLIKE_ID);
+                }
+                oldRow.measure(widthSpec, heightSpec);
+                oldRow.layout(0, 0, oldRow.getMeasuredWidth(), oldRow.getMeasuredHeight());
+                oldRow.draw(canvas);
+                record(measured, "row LinearLayout", start);
+            }
+        }
+
+        assertTrue(jokeView.getMeasuredHeight() > 0);
+        assertTrue(oldRow.getMeasuredHeight() > 0);
+    }
+
+    /**
+     * Builds the row JokeView inflated before it drew itself.
+     */
+    private LinearLayout newOldJokeRow() {
+        final float density = context.getResources().getDisplayMetrics().density;
+
+        final LinearLayout row = new LinearLayout(context);
+
+        final TextView text = new TextView(context);
+        final int textPadding = Math.round(10 * density);
+        text.setPadding(textPadding, textPadding, textPadding, textPadding);
+        row.addView(text, new LinearLayout.LayoutParams(0, ViewGroup.LayoutParams.WRAP_CONTENT, 100));
+
+        final RadioGroup rating = new RadioGroup(context);
+        final int ratingPadding = Math.round(5 * density);
+        rating.setPadding(ratingPadding, ratingPadding, ratingPadding, ratingPadding);
+        rating.addView(newOldRatingButton(OLD_LIKE_ID, R.drawable.like));
+        rating.addView(newOldRatingButton(OLD_DISLIKE_ID, R.drawable.dislike));
+        row.addView(rating, new LinearLayout.LayoutParams(ViewGroup.LayoutParams.WRAP_CONTENT,
+                ViewGroup.LayoutParams.WRAP_CONTENT, 0));
+
+        return row;
+    }
+
+    private RadioButton newOldRatingButton(final int id, final int background) {
+        final RadioButton button = new RadioButton(context);
+        button.setId(id);
+        button.setBackgroundResource(background);
+        button.setButtonDrawable((Drawable) null);
+        button.setFocusable(false);
+        return button;
+    }
+
+    /**
+     * Edits a list holding every row of the joke table, at three table sizes, the way
+     * MainActivity does: by patching the row in a JokeListCursor, then reading it back as
+     * binding would. For comparison, the table is also read again in full, which is what
+     * every edit used to cost when it restarted the loader. The patch times should stay
+     * flat as the table grows, while the reload times grow with it.
+     */
+    @Test
+    public void perEditCostByTableSize() {
+        final SQLiteDatabase database = databaseHelper.getReadableDatabase();
+        final int edits = 1000;
+        final int reloads = 10;
+
+        int jokes = 0;
+        for (final int size : new int[] {1000, 10000, 100000}) {
+            insertJokes(size - jokes);
+            jokes = size;
+
+            final Cursor firstPage = database.rawQuery(PAGE_QUERY, new String[] {"0", "" + LIST_PAGE_SIZE});
+            final JokeListCursor list = new JokeListCursor(firstPage);
+            try {
+                while (list.getCount() < size) {
+                    list.addPage(database.rawQuery(PAGE_QUERY,
+                            new String[] {"" + list.getLastSourceId(), "" + LIST_PAGE_SIZE}));
+                }
+                assertEquals(size, list.getCount());
+
+                for (int i = 0; i < edits; i++) {
+                    final int position = random.nextInt(list.getCount());
+                    final int rating = random.nextInt(3);
+
+                    long start = System.nanoTime();
+                    list.setRating(position, rating);
+                    list.moveToPosition(position);
+                    assertEquals(rating, list.getInt(JokeTable.INDEX_RATING));
+                    latencies.record("patch rating, " + size + " rows", System.nanoTime() - start);
+
+                    start = System.nanoTime();
+                    list.remove(random.nextInt(list.getCount()));
+                    list.add(new Joke(newText()));
+                    list.moveToLast();
+                    latencies.record("patch remove+add, " + size + " rows", System.nanoTime() - start);
+                }
+
+                // Every removal was matched by an addition.
+                assertEquals(size, list.getCount());
+            } finally {
+                list.close();
+                firstPage.close();
+            }
+
+            for (int i = 0; i < reloads; i++) {
+                final long start = System.nanoTime();
+                final Cursor cursor = database.rawQuery(PAGE_QUERY, new String[] {"0", "-1"});
+                try {
+                    assertEquals(size, cursor.getCount());
+                } finally {
+                    cursor.close();
+                }
+                latencies.record("reload, " + size + " rows", System.nanoTime() - start);
+            }
+        }
+    }
+
+    /**
+     * Pages through the liked jokes of a million-row joke table with the provider's page
+     * query, once through the (rating, _id) index and once with the index ruled out by
+     * NOT INDEXED, which leaves SQLite to scan the table in ID order for matching rows.
+     * Most jokes are unrated and one in a hundred is liked, as in a library that has been
+     * imported and only partly rated. The table is built in its own database with a single
+     * insert, without the triggers the app's tables have, so only the query is compared.
+     */
+    @Test
+    public void filterQueryIndexedAndNot() {
+        final int jokes = 1000000;
+        final int pages = 200;
+
+        final String name = "rating_index_benchmark.db";
+        final File file = context.getDatabasePath(name);
+        file.getParentFile().mkdirs();
+
+        final SQLiteDatabase database = SQLiteDatabase.openOrCreateDatabase(file, null);
+        try {
+            JokeTable.onCreate(database);
+            database.execSQL("insert into " + JokeTable.TABLE_NAME +
+                    " (" + JokeTable.KEY_TEXT + ", " + JokeTable.KEY_RATING + ")" +
+                    " with recursive n(i) as (select 1 union all select i + 1 from n where i < " + jokes + ")" +
+                    " select 'Benchmark joke ' || i || ' about a chicken crossing the road.'," +
+                    " case when 0 = i % 100 then " + Joke.LIKE + " else " + Joke.UNRATED + " end from n");
+            assertEquals(jokes, DatabaseUtils.queryNumEntries(database, JokeTable.TABLE_NAME));
+
+            final String columns = "select " + JokeTable.KEY_ID + ", " + JokeTable.KEY_TEXT + ", " +
+                    JokeTable.KEY_RATING + " from " + JokeTable.TABLE_NAME;
+            final String where = " where " + JokeTable.KEY_RATING + " = " + Joke.LIKE +
+                    " and " + JokeTable.KEY_ID + " > ? order by " + JokeTable.KEY_ID + " limit " + PAGE_SIZE;
+            final String indexed = columns + where;
+            final String notIndexed = columns + " not indexed" + where;
+
+            assertTrue(getQueryPlan(database, indexed).contains(JokeTable.RATING_INDEX_NAME));
+            assertFalse(getQueryPlan(database, notIndexed).contains(JokeTable.RATING_INDEX_NAME));
+
+            for (int pass = 0; pass < 2; pass++) {
+                final boolean measured = 1 == pass;
+
+                for (int page = 0; page < (measured ? pages : pages / 10); page++) {
+                    // Any page but the last few, which are short.
+                    final String afterId = "" + random.nextInt(jokes - 100 * PAGE_SIZE);
+
+                    long start = System.nanoTime();
+                    final long indexedLastId = readPage(database, indexed, afterId);
+                    record(measured, "filter page indexed", start);
+
+                    start = System.nanoTime();
+                    final long scannedLastId = readPage(database, notIndexed, afterId);
+                    record(measured, "filter page not indexed", start);
+
+                    assertEquals(indexedLastId, scannedLastId);
+                }
+            }
+        } finally {
+            database.close();
+            context.deleteDatabase(name);
+        }
+    }
+
+    /**
+     * Reads every row of a page.
+     *
+     * @return
+     *          The ID of the last joke in the page.
+     */
+    private static long readPage(final SQLiteDatabase database, final String sql, final String afterId) {
+        final Cursor cursor = database.rawQuery(sql, new String[] {afterId});
+        try {
+            assertEquals(PAGE_SIZE, cursor.getCount());
+
+            long lastId = 0;
+            while (cursor.moveToNext()) {
+                lastId = cursor.getLong(JokeTable.INDEX_ID);
+                cursor.getString(JokeTable.INDEX_TEXT);
+            }
+            return lastId;
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /**
+     * Returns the details of SQLite's plan for a query, one step per line.
+     */
+    private static String getQueryPlan(final SQLiteDatabase database, final String sql) {
+        final Cursor cursor = database.rawQuery("explain query plan " + sql, new String[] {"0"});
+        try {
+            final StringBuilder plan = new StringBuilder();
+            while (cursor.moveToNext()) {
+                plan.append(cursor.getString(cursor.getColumnCount() - 1)).append('\n');
+            }
+            return plan.toString();
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /**
+     * Scrolls a ListView of JokeCursorAdapter rows from top to bottom a row at a time,
+     * timing every getView, and checks that no more JokeViews were created than fit on
+     * the screen at once: every other row must have been bound to a recycled View.
+     * The rows are a page of jokes followed by jokes added to the list and not inserted yet,
+     * so both ways a row is bound are scrolled through.
+     */
+    @Test
+    public void listScrollInflations() {
+        final int jokes = 2000;
+        final int addedJokes = 200;
+
+        final MatrixCursor page = new MatrixCursor(
+                new String[] {JokeTable.KEY_ID, JokeTable.KEY_TEXT, JokeTable.KEY_RATING}, jokes);
+        for (int i = 0; i < jokes; i++) {
+            page.addRow(new Object[] {i + 1, newText(), random.nextInt(3)});
+        }
+
+        final int[] inflations = new int[1];
+        final JokeCursorAdapter adapter = new JokeCursorAdapter(context, null, 0) {
+            @Override
+            public View getView(int position, View convertView, ViewGroup parent) {
+                final long start = System.nanoTime();
+                final View view = super.getView(position, convertView, parent);
+
+                if (null == convertView) {
+                    inflations[0]++;
+                    latencies.record("getView inflated", System.nanoTime() - start);
+                } else {
+                    latencies.record("getView recycled", System.nanoTime() - start);
+                }
+                return view;
+            }
+        };
+        adapter.swapCursor(page);
+        for (int i = 0; i < addedJokes; i++) {
+            adapter.addJoke(new Joke(newText()));
+        }
+
+        final ListView listView = new ListView(context);
+        listView.setAdapter(adapter);
+
+        int visibleRows = 0;
+        for (int position = 0; position < adapter.getCount(); position++) {
+            listView.setSelectionFromTop(position, 0);
+            listView.measure(View.MeasureSpec.makeMeasureSpec(480, View.MeasureSpec.EXACTLY),
+                    View.MeasureSpec.makeMeasureSpec(800, View.MeasureSpec.EXACTLY));
+            listView.layout(0, 0, 480, 800);
+
+            visibleRows = Math.max(visibleRows, listView.getChildCount());
+        }
+
+        System.out.println("rows visible " + visibleRows + ", JokeViews created " + inflations[0]);
+
+        assertEquals(jokes + addedJokes, adapter.getCount());
+        assertTrue(visibleRows > 0);
+        // One more than fit on screen, for the row measured before the first layout.
+        assertTrue(inflations[0] <= visibleRows + 1);
+
+        adapter.swapCursor(null);
+        page.close();
+    }
+
+    /**
+     * Inserts the same number of jokes through the provider three ways: one insert per joke,
+     * each its own transaction with its own change notification, as before bulkInsert and
+     * applyBatch existed, then batches through bulkInsert and through applyBatch, each batch
+     * one transaction. The applyBatch batches also rate a joke up and one down, as the write
+     * queue's batches do. Prints the rows per second of each.
+     */
+    @Test
+    public void batchInsertThroughput() throws RemoteException, OperationApplicationException {
+        Robolectric.setupContentProvider(JokeContentProvider.class, JokeContentProvider.AUTHORITY);
+        final ContentResolver resolver = context.getContentResolver();
+
+        final int rows = OPERATIONS;
+        final int batchSize = 500;
+        final Uri jokeUri = Uri.parse(JokeContentProvider.CONTENT_URI + "/joke/0");
+
+        long start = System.nanoTime();
+        for (int i = 0; i < rows; i++) {
+            final long rowStart = System.nanoTime();
+            resolver.insert(jokeUri, newJokeValues());
+            latencies.record("insert per row", System.nanoTime() - rowStart);
+        }
+        final long singleNanos = System.nanoTime() - start;
+
+        start = System.nanoTime();
+        for (int batch = 0; batch < rows / batchSize; batch++) {
+            final ContentValues[] values = new ContentValues[batchSize];
+            for (int i = 0; i < batchSize; i++) {
+                values[i] = newJokeValues();
+            }
+
+            final long batchStart = System.nanoTime();
+            assertEquals(batchSize, resolver.bulkInsert(JokeContentProvider.CONTENT_URI, values));
+            latencies.record("bulkInsert per batch", System.nanoTime() - batchStart);
+        }
+        final long bulkNanos = System.nanoTime() - start;
+
+        start = System.nanoTime();
+        for (int batch = 0; batch < rows / batchSize; batch++) {
+            final ArrayList<ContentProviderOperation> operations = new ArrayList<>(batchSize + 2);
+            for (int i = 0; i < batchSize; i++) {
+                operations.add(ContentProviderOperation.newInsert(jokeUri).withValues(newJokeValues()).build());
+            }
+            for (final int rating : new int[] {Joke.LIKE, Joke.DISLIKE}) {
+                operations.add(ContentProviderOperation.newUpdate(JokeContentProvider.getRatingUri(rating))
+                        .withValue(JokeTable.KEY_RATING, rating)
+                        .withSelection(null, new String[] {"" + (1 + random.nextInt(rows))})
+                        .build());
+            }
+
+            final long batchStart = System.nanoTime();
+            assertEquals(batchSize + 2, resolver.applyBatch(JokeContentProvider.AUTHORITY, operations).length);
+            latencies.record("applyBatch per batch", System.nanoTime() - batchStart);
+        }
+        final long batchNanos = System.nanoTime() - start;
+
+        System.out.println(String.format(Locale.US, "rows/s insert %.0f, bulkInsert %.0f, applyBatch %.0f",
+                rows / (singleNanos / 1e9), rows / (bulkNanos / 1e9), rows / (batchNanos / 1e9)));
+    }
+
+    private ContentValues newJokeValues() {
+        final ContentValues values = new ContentValues(2);
+        values.put(JokeTable.KEY_TEXT, newText());
+        values.put(JokeTable.KEY_RATING, random.nextInt(3));
+        return values;
+    }
+
+    /**
+     * Inserts jokes in one transaction, not measured.
+     */
+    private void insertJokes(final int count) {
+        final SQLiteDatabase database = databaseHelper.getWritableDatabase();
+        final SqliteJokeStore store = new SqliteJokeStore(databaseHelper);
+
+        database.beginTransaction();
+        try {
+            for (int i = 0; i < count; i++) {
+                store.insert(newText(), random.nextInt(3));
+            }
+            database.setTransactionSuccessful();
+        } finally {
+            database.endTransaction();
+        }
+    }
+
+    private void record(final boolean measured, final String name, final long start) {
+        final long nanos = System.nanoTime() - start;
+
+        if (measured) {
+            latencies.record(name, nanos);
+        }
+    }
+
+    private String newText() {
+        return "Benchmark joke " + random.nextInt() + " about a chicken crossing the road.";
+    }
+}
@@ -0,0 +1,260 @@
+package edu.cvtc.android.jokeview;
+
+import android.content.ContentResolver;
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.net.Uri;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.Robolectric;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Config;
+
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Load test driving JokeContentProvider through its URIs on the JVM, using the SQLite
+ * that Robolectric runs in place of the device's.
+ *
+ * Each test runs one workload and prints the p50 and p99 latency of every URI pattern it
+ * used, so a change that slows a provider path shows up in the test output. The workloads
+ * also check that the provider ends up with the jokes they wrote.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(constants = BuildConfig.class, sdk = 23)
+public class JokeContentProviderLoadTest {
+
+    private static final int SEED_JOKES = 2000;
+
+    private static final String[] WORDS = {"chicken", "road", "cross", "knock", "doctor", "walks", "bar",
+            "duck", "orange", "banana", "pun", "programmer", "bulb", "cow", "fish", "dad", "cat"};
+
+    private ContentResolver resolver;
+    private LatencyRecorder latencies;
+    private final Random random = new Random(42);
+
+    @Before
+    public void setUp() {
+        Robolectric.setupContentProvider(JokeContentProvider.class, JokeContentProvider.AUTHORITY);
+
+        resolver = RuntimeEnvironment.application.getContentResolver();
+        latencies = new LatencyRecorder("URI pattern");
+
+        bulkInsert(SEED_JOKES);
+    }
+
+    @After
+    public void tearDown() {
+        System.out.println(latencies.report());
+    }
+
+    /**
+     * Scrolls through every filter a page at a time, as the list does,
+     * rating the odd joke on the way and searching now and then.
+     */
+    @Test
+    public void readHeavyScrolling() {
+        int rated = 0;
+
+        for (int pass = 0; pass < 5; pass++) {
+            for (final int filter : new int[] {Joke.SHOW_ALL, Joke.UNRATED, Joke.LIKE, Joke.DISLIKE}) {
+                long afterId = 0;
+
+                while (true) {
+                    final long lastId = queryPage(filter, afterId);
+                    if (-1 == lastId) {
+                        break;
+                    }
+                    afterId = lastId;
+
+                    if (0 == random.nextInt(10)) {
+                        updateRating(1 + random.nextInt(SEED_JOKES), Joke.LIKE);
+                        rated++;
+                    }
+                    if (0 == random.nextInt(20)) {
+                        search(WORDS[random.nextInt(WORDS.length)].substring(0, 3));
+                    }
+                }
+            }
+        }
+
+        assertTrue(rated > 0);
+        assertEquals(SEED_JOKES, countPage(Joke.SHOW_ALL));
+    }
+
+    /**
+     * Rates jokes in quick bursts, one at a time and many at once through the rating URI,
+     * the way the write queue sends them, with some inserts and deletes mixed in.
+     */
+    @Test
+    public void writeHeavyRatingBursts() {
+        int inserted = 0;
+        int deleted = 0;
+
+        for (int burst = 0; burst < 100; burst++) {
+            for (int i = 0; i < 20; i++) {
+                updateRating(1 + random.nextInt(SEED_JOKES), random.nextInt(3));
+            }
+
+            final String[] ids = new String[20];
+            for (int i = 0; i < ids.length; i++) {
+                ids[i] = "" + (1 + random.nextInt(SEED_JOKES));
+            }
+            rateMany(random.nextInt(3), ids);
+
+            insert();
+            inserted++;
+
+            if (delete(1 + random.nextInt(SEED_JOKES))) {
+                deleted++;
+            }
+
+            queryPage(Joke.LIKE, 0);
+        }
+
+        assertEquals(SEED_JOKES + inserted - deleted, countPage(Joke.SHOW_ALL));
+        assertEquals(countPage(Joke.SHOW_ALL),
+                countPage(Joke.UNRATED) + countPage(Joke.LIKE) + countPage(Joke.DISLIKE));
+    }
+
+    /**
+     * Imports jokes in large batches while the first page is read between them.
+     */
+    @Test
+    public void bulkImports() {
+        for (int batch = 0; batch < 20; batch++) {
+            bulkInsert(500);
+            queryPage(Joke.SHOW_ALL, 0);
+            queryPage(Joke.UNRATED, 0);
+        }
+
+        assertEquals(SEED_JOKES + 20 * 500, countPage(Joke.SHOW_ALL));
+    }
+
+    /**
+     * Reads a page and every row in it, as binding the list does.
+     *
+     * @return
+     *          The ID of the last joke in the page, or -1 if the page is empty.
+     */
+    private long queryPage(final int filter, final long afterId) {
+        final long start = System.nanoTime();
+        final Cursor cursor = resolver.query(JokeContentProvider.getPageUri(filter, afterId,
+                JokeContentProvider.DEFAULT_PAGE_SIZE), null, null, null, null);
+
+        long lastId = -1;
+        try {
+            while (cursor.moveToNext()) {
+                lastId = cursor.getLong(JokeTable.INDEX_ID);
+                cursor.getString(JokeTable.INDEX_TEXT);
+                cursor.getInt(JokeTable.INDEX_RATING);
+            }
+        } finally {
+            cursor.close();
+        }
+
+        latencies.record("query filter/#/after/#", System.nanoTime() - start);
+        return lastId;
+    }
+
+    private void search(final String text) {
+        final long start = System.nanoTime();
+        final Cursor cursor = resolver.query(JokeContentProvider.getSearchUri(text), null, null, null, null);
+
+        try {
+            while (cursor.moveToNext()) {
+                cursor.getString(JokeTable.INDEX_TEXT);
+            }
+        } finally {
+            cursor.close();
+        }
+
+        latencies.record("query search/*", System.nanoTime() - start);
+    }
+
+    private void insert() {
+        final long start = System.nanoTime();
+        resolver.insert(getJokeUri(0), newJoke());
+        latencies.record("insert joke/#", System.nanoTime() - start);
+    }
+
+    private void updateRating(final long id, final int rating) {
+        final ContentValues values = new ContentValues(1);
+        values.put(JokeTable.KEY_RATING, rating);
+
+        final long start = System.nanoTime();
+        resolver.update(getJokeUri(id), values, null, null);
+        latencies.record("update joke/#", System.nanoTime() - start);
+    }
+
+    private void rateMany(final int rating, final String[] ids) {
+        final long start = System.nanoTime();
+        resolver.update(JokeContentProvider.getRatingUri(rating), new ContentValues(), null, ids);
+        latencies.record("update rating/#", System.nanoTime() - start);
+    }
+
+    private boolean delete(final long id) {
+        final long start = System.nanoTime();
+        final int rows = resolver.delete(getJokeUri(id), null, null);
+        latencies.record("delete joke/#", System.nanoTime() - start);
+        return rows > 0;
+    }
+
+    private void bulkInsert(final int count) {
+        final ContentValues[] jokes = new ContentValues[count];
+        for (int i = 0; i < count; i++) {
+            jokes[i] = newJoke();
+        }
+
+        final long start = System.nanoTime();
+        resolver.bulkInsert(JokeContentProvider.CONTENT_URI, jokes);
+        latencies.record("bulkInsert joke_table", System.nanoTime() - start);
+    }
+
+    /**
+     * Counts the jokes matching a filter by paging through all of them. Not timed.
+     */
+    private int countPage(final int filter) {
+        int count = 0;
+        long afterId = 0;
+
+        while (true) {
+            final Cursor cursor = resolver.query(JokeContentProvider.getPageUri(filter, afterId, 1000),
+                    null, null, null, null);
+            try {
+                if (!cursor.moveToLast()) {
+                    return count;
+                }
+                count += cursor.getCount();
+                afterId = cursor.getLong(JokeTable.INDEX_ID);
+            } finally {
+                cursor.close();
+            }
+        }
+    }
+
+    private ContentValues newJoke() {
+        final StringBuilder text = new StringBuilder();
+        final int words = 6 + random.nextInt(14);
+
+        for (int i = 0; i < words; i++) {
+            text.append(0 == i ? "" : " ").append(WORDS[random.nextInt(WORDS.length)]);
+        }
+
+        final ContentValues values = new ContentValues(2);
+        values.put(JokeTable.KEY_TEXT, text.append('.').toString());
+        values.put(JokeTable.KEY_RATING, random.nextInt(3));
+        return values;
+    }
+
+    private static Uri getJokeUri(final long id) {
+        return Uri.parse(JokeContentProvider.CONTENT_URI + "/joke/" + id);
+    }
+}
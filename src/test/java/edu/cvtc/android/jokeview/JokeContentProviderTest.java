@@ -0,0 +1,196 @@
+package edu.cvtc.android.jokeview;
+
+import android.content.ContentProviderOperation;
+import android.content.ContentResolver;
+import android.content.ContentValues;
+import android.content.Context;
+import android.content.OperationApplicationException;
+import android.database.Cursor;
+import android.net.Uri;
+import android.os.Bundle;
+import android.os.RemoteException;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.Robolectric;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Config;
+
+import java.util.ArrayList;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks how JokeContentProvider and SqliteJokeStore write and read, using the SQLite
+ * that Robolectric runs in place of the device's: which URIs a write notifies, that
+ * writes reuse their compiled statements, that filter pages are read through the
+ * rating index and that the in-memory rating index loads without losing writes.
+ * How fast they do it is left to JokeBenchmarkTest.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(constants = BuildConfig.class, sdk = 23)
+public class JokeContentProviderTest {
+
+    private static final int JOKES = 100;
+
+    private Context context;
+    private ContentResolver resolver;
+    private JokeDatabaseHelper databaseHelper;
+
+    @Before
+    public void setUp() {
+        Robolectric.setupContentProvider(JokeContentProvider.class, JokeContentProvider.AUTHORITY);
+
+        context = RuntimeEnvironment.application;
+        resolver = context.getContentResolver();
+        databaseHelper = new JokeDatabaseHelper(context, JokeDatabaseHelper.DATABASE_NAME, null,
+                JokeDatabaseHelper.DATABASE_VERSION);
+    }
+
+    @After
+    public void tearDown() {
+        databaseHelper.close();
+        context.deleteDatabase(JokeDatabaseHelper.DATABASE_NAME);
+    }
+
+    /**
+     * Each single insert notifies once, and a bulkInsert notifies the table URI once.
+     * A batch notifies each URI it changed once, but never the table URI in their place,
+     * which would reload the list from its first page.
+     */
+    @Test
+    public void batchesNotifyEachChangedUriOnce() throws RemoteException, OperationApplicationException {
+        final Uri jokeUri = Uri.parse(JokeContentProvider.CONTENT_URI + "/joke/0");
+
+        long notifies = getNotifyCount();
+        for (int i = 0; i < JOKES; i++) {
+            resolver.insert(jokeUri, newJokeValues(i));
+        }
+        assertEquals(JOKES, getNotifyCount() - notifies);
+
+        final ContentValues[] values = new ContentValues[JOKES];
+        for (int i = 0; i < JOKES; i++) {
+            values[i] = newJokeValues(i);
+        }
+
+        notifies = getNotifyCount();
+        assertEquals(JOKES, resolver.bulkInsert(JokeContentProvider.CONTENT_URI, values));
+        assertEquals(1, getNotifyCount() - notifies);
+
+        final ArrayList<ContentProviderOperation> operations = new ArrayList<>(JOKES + 2);
+        for (int i = 0; i < JOKES; i++) {
+            operations.add(ContentProviderOperation.newInsert(jokeUri).withValues(newJokeValues(i)).build());
+        }
+        // Rates jokes 1 and 2, inserted above.
+        for (final int rating : new int[] {Joke.LIKE, Joke.DISLIKE}) {
+            operations.add(ContentProviderOperation.newUpdate(JokeContentProvider.getRatingUri(rating))
+                    .withValue(JokeTable.KEY_RATING, rating)
+                    .withSelection(null, new String[] {"" + rating})
+                    .build());
+        }
+
+        notifies = getNotifyCount();
+        assertEquals(JOKES + 2, resolver.applyBatch(JokeContentProvider.AUTHORITY, operations).length);
+        // The insert URI and the two rating URIs.
+        assertEquals(3, getNotifyCount() - notifies);
+    }
+
+    /**
+     * Inserts, rating updates and deletes each compile one statement, however many are made.
+     */
+    @Test
+    public void writesReuseCompiledStatements() {
+        final SqliteJokeStore store = new SqliteJokeStore(databaseHelper);
+
+        final long[] ids = new long[JOKES];
+        for (int i = 0; i < JOKES; i++) {
+            ids[i] = store.insert("Joke number " + i + ".", Joke.UNRATED);
+        }
+        for (final long id : ids) {
+            assertTrue(store.updateRating(id, Joke.LIKE));
+        }
+        for (final long id : ids) {
+            assertTrue(store.delete(id));
+        }
+
+        assertEquals(3, store.getStatements().getCompileCount());
+        assertEquals(3 * JOKES, store.getStatements().getExecuteCount());
+    }
+
+    @Test
+    public void filterPagesUseRatingIndex() {
+        final Cursor cursor = databaseHelper.getReadableDatabase().rawQuery(
+                "explain query plan " + SqliteJokeStore.FILTER_PAGE_QUERY,
+                new String[] {"" + Joke.LIKE, "0", "" + JokeContentProvider.DEFAULT_PAGE_SIZE});
+        try {
+            final StringBuilder plan = new StringBuilder();
+            while (cursor.moveToNext()) {
+                plan.append(cursor.getString(cursor.getColumnCount() - 1)).append('\n');
+            }
+            assertTrue(plan.toString(), plan.toString().contains(JokeTable.RATING_INDEX_NAME));
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /**
+     * Writes applied while the rating index loads are replayed over what the load read,
+     * whether the load read them already or not.
+     */
+    @Test
+    public void ratingIndexKeepsWritesMadeWhileLoading() {
+        final SqliteJokeStore store = new SqliteJokeStore(databaseHelper);
+        final long rated = store.insert("Joke rated during the load.", Joke.LIKE);
+        final long deleted = store.insert("Joke deleted during the load.", Joke.UNRATED);
+
+        final JokeRatingIndex index = new JokeRatingIndex();
+        assertTrue(index.startLoading());
+        assertFalse(index.startLoading());
+
+        store.updateRating(rated, Joke.DISLIKE);
+        index.put(rated, Joke.DISLIKE);
+        store.delete(deleted);
+        index.remove(deleted);
+        // A joke inserted after the load has read the table.
+        index.put(deleted + 1, Joke.LIKE);
+
+        index.load(databaseHelper.getReadableDatabase());
+
+        assertTrue(index.isLoaded());
+        assertEquals(0, index.getCount(Joke.UNRATED));
+        assertEquals(1, index.getCount(Joke.LIKE));
+        assertEquals(1, index.getCount(Joke.DISLIKE));
+        assertEquals(2, index.getCount(Joke.SHOW_ALL));
+    }
+
+    @Test
+    public void ratingIndexInvalidatedWhileLoadingStaysUnloaded() {
+        new SqliteJokeStore(databaseHelper).insert("Joke.", Joke.LIKE);
+
+        final JokeRatingIndex index = new JokeRatingIndex();
+        assertTrue(index.startLoading());
+        index.invalidate();
+        index.load(databaseHelper.getReadableDatabase());
+
+        assertFalse(index.isLoaded());
+        assertTrue(index.startLoading());
+    }
+
+    private long getNotifyCount() {
+        final Bundle metrics = resolver.call(JokeContentProvider.CONTENT_URI,
+                JokeContentProvider.METHOD_METRICS, null, null);
+        return metrics.getLong(JokeProviderMetrics.KEY_NOTIFY_COUNT);
+    }
+
+    private static ContentValues newJokeValues(final int i) {
+        final ContentValues values = new ContentValues(2);
+        values.put(JokeTable.KEY_TEXT, "Joke number " + i + ".");
+        values.put(JokeTable.KEY_RATING, i % 3);
+        return values;
+    }
+}
@@ -0,0 +1,83 @@
+package edu.cvtc.android.jokeview;
+
+import android.database.MatrixCursor;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Config;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks the item IDs JokeCursorAdapter gives the ListView for rows read from the
+ * provider and for jokes added to the list before they have been inserted.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(constants = BuildConfig.class, sdk = 23)
+public class JokeCursorAdapterTest {
+
+    private static final int PAGE_JOKES = 3;
+
+    private MatrixCursor page;
+    private JokeCursorAdapter adapter;
+
+    @Before
+    public void setUp() {
+        page = new MatrixCursor(new String[] {JokeTable.KEY_ID, JokeTable.KEY_TEXT, JokeTable.KEY_RATING});
+        for (int i = 1; i <= PAGE_JOKES; i++) {
+            page.addRow(new Object[] {i, "Joke number " + i + ".", Joke.UNRATED});
+        }
+
+        adapter = new JokeCursorAdapter(RuntimeEnvironment.application, null, 0);
+        adapter.swapCursor(page);
+    }
+
+    @After
+    public void tearDown() {
+        adapter.swapCursor(null);
+        page.close();
+    }
+
+    /**
+     * Jokes added at once each get their own temporary negative ID, which they keep once
+     * they are inserted, while rows from the provider keep their database IDs.
+     */
+    @Test
+    public void addedJokesHaveTheirOwnItemIds() {
+        final Joke first = new Joke("Added joke.");
+        final Joke second = new Joke("Added joke.");
+        adapter.addJoke(first);
+        adapter.addJoke(second);
+
+        assertTrue(adapter.hasStableIds());
+        assertEquals(2, adapter.getItemId(1));
+
+        final long firstId = adapter.getItemId(PAGE_JOKES);
+        final long secondId = adapter.getItemId(PAGE_JOKES + 1);
+        assertTrue(firstId < 0);
+        assertTrue(secondId < 0);
+        assertNotEquals(firstId, secondId);
+
+        first.setId(PAGE_JOKES + 1);
+        assertEquals(firstId, adapter.getItemId(PAGE_JOKES));
+
+        adapter.removeJoke(PAGE_JOKES);
+        assertEquals(secondId, adapter.getItemId(PAGE_JOKES));
+    }
+
+    /**
+     * A joke that was inserted before it was added keeps its database ID.
+     */
+    @Test
+    public void addedInsertedJokeKeepsItsId() {
+        adapter.addJoke(new Joke(PAGE_JOKES + 1, "Inserted joke.", Joke.LIKE));
+
+        assertEquals(PAGE_JOKES + 1, adapter.getItemId(PAGE_JOKES));
+    }
+}
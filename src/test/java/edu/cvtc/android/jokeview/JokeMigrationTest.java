@@ -0,0 +1,161 @@
+package edu.cvtc.android.jokeview;
+
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Config;
+
+import java.io.File;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Migrates a large version 1 joke database through every version with JokeDatabaseHelper,
+ * using the SQLite that Robolectric runs in place of the device's, and checks that every
+ * joke, rating, search row and count made it through.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(constants = BuildConfig.class, sdk = 23)
+public class JokeMigrationTest {
+
+    private static final int FIXTURE_JOKES = 50000;
+
+    /**
+     * The joke table as version 1 created it, kept here so the fixture never follows
+     * later changes to JokeTable.
+     */
+    private static final String VERSION_1_CREATE = "create table joke_table (" +
+            "_id integer primary key autoincrement, " +
+            "text text not null, " +
+            "rating integer not null);";
+
+    private Context context;
+    private JokeDatabaseHelper helper;
+
+    /**
+     * The number of fixture jokes with each rating.
+     */
+    private final int[] ratingCounts = new int[Joke.SHOW_ALL];
+
+    @Before
+    public void setUp() {
+        context = RuntimeEnvironment.application;
+
+        final File file = context.getDatabasePath(JokeDatabaseHelper.DATABASE_NAME);
+        file.getParentFile().mkdirs();
+
+        final SQLiteDatabase database = SQLiteDatabase.openOrCreateDatabase(file, null);
+        try {
+            database.execSQL(VERSION_1_CREATE);
+
+            final SQLiteStatement insert = database.compileStatement(
+                    "insert into joke_table (text, rating) values (?, ?)");
+
+            database.beginTransaction();
+            try {
+                for (int i = 1; i <= FIXTURE_JOKES; i++) {
+                    final int rating = i % 3;
+
+                    insert.bindString(1, "Fixture joke number " + i + " about a chicken.");
+                    insert.bindLong(2, rating);
+                    insert.executeInsert();
+                    ratingCounts[rating]++;
+                }
+                database.setVersion(1);
+                database.setTransactionSuccessful();
+            } finally {
+                database.endTransaction();
+            }
+        } finally {
+            database.close();
+        }
+
+        helper = new JokeDatabaseHelper(context, JokeDatabaseHelper.DATABASE_NAME, null,
+                JokeDatabaseHelper.DATABASE_VERSION);
+    }
+
+    @After
+    public void tearDown() {
+        helper.close();
+        context.deleteDatabase(JokeDatabaseHelper.DATABASE_NAME);
+    }
+
+    @Test
+    public void upgradeKeepsEveryJoke() {
+        final SQLiteDatabase database = helper.getWritableDatabase();
+        JokeMigrations.runBackfills(database);
+
+        assertEquals(JokeDatabaseHelper.DATABASE_VERSION, database.getVersion());
+        assertEquals(FIXTURE_JOKES, DatabaseUtils.queryNumEntries(database, JokeTable.TABLE_NAME));
+
+        for (int rating = Joke.UNRATED; rating <= Joke.DISLIKE; rating++) {
+            assertEquals(ratingCounts[rating], DatabaseUtils.queryNumEntries(database, JokeTable.TABLE_NAME,
+                    JokeTable.KEY_RATING + " = " + rating));
+        }
+
+        assertSearchable(database, FIXTURE_JOKES);
+        assertCounts(database);
+
+        assertEquals(0, DatabaseUtils.queryNumEntries(database, JokeMigrations.TABLE_NAME));
+    }
+
+    /**
+     * Deletes and rates fixture jokes before the backfills have reached them,
+     * which the counts and the search table must still agree with afterwards.
+     */
+    @Test
+    public void writesDuringBackfillAreKept() {
+        final SQLiteDatabase database = helper.getWritableDatabase();
+
+        database.delete(JokeTable.TABLE_NAME, JokeTable.KEY_ID + " = ?", new String[] {"" + FIXTURE_JOKES});
+        ratingCounts[FIXTURE_JOKES % 3]--;
+
+        final int oldRating = (FIXTURE_JOKES - 1) % 3;
+        final int newRating = (oldRating + 1) % 3;
+        final ContentValues values = new ContentValues(1);
+        values.put(JokeTable.KEY_RATING, newRating);
+        database.update(JokeTable.TABLE_NAME, values, JokeTable.KEY_ID + " = ?", new String[] {"" + (FIXTURE_JOKES - 1)});
+        ratingCounts[oldRating]--;
+        ratingCounts[newRating]++;
+
+        JokeMigrations.runBackfills(database);
+
+        assertSearchable(database, FIXTURE_JOKES - 1);
+        assertCounts(database);
+    }
+
+    private static void assertSearchable(final SQLiteDatabase database, final int jokes) {
+        assertEquals(jokes, DatabaseUtils.queryNumEntries(database, JokeSearchTable.TABLE_NAME));
+
+        final Cursor cursor = database.rawQuery(JokeSearchTable.SEARCH_QUERY,
+                new String[] {JokeSearchTable.toMatchQuery("chick"), "" + JokeSearchTable.SEARCH_LIMIT});
+        try {
+            assertEquals(JokeSearchTable.SEARCH_LIMIT, cursor.getCount());
+        } finally {
+            cursor.close();
+        }
+    }
+
+    private void assertCounts(final SQLiteDatabase database) {
+        final int[] counts = JokeCountTable.getCounts(database);
+
+        int total = 0;
+        for (int rating = Joke.UNRATED; rating <= Joke.DISLIKE; rating++) {
+            assertEquals(ratingCounts[rating], counts[rating]);
+            total += ratingCounts[rating];
+        }
+        assertEquals(total, counts[Joke.SHOW_ALL]);
+        assertTrue(total > 0);
+    }
+}
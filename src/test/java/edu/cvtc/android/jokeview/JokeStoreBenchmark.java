@@ -0,0 +1,179 @@
+package edu.cvtc.android.jokeview;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.results.format.ResultFormatType;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * JMH benchmarks of the JokeStore write, filter, search and paging paths, run on a plain JVM
+ * against stores holding from a thousand to ten million jokes.
+ *
+ * Every size completes in the 4 GB heap the forks run with: ten million jokes take about
+ * 2 GB in either store, and jokes added by the insert benchmark are deleted again after
+ * each iteration, so the store does not keep growing while it is measured. Turning Cursor
+ * rows into Jokes needs Android classes, so it is measured by JokeBenchmarkTest instead.
+ *
+ * Run every benchmark with "gradlew jmh", which writes JSON results to build/reports/jmh
+ * so runs on different commits can be compared. Run main with a results path and a
+ * benchmark name pattern to run only some of them.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = {"-Xms4g", "-Xmx4g"})
+public class JokeStoreBenchmark {
+
+    private static final String[] WORDS = {"chicken", "road", "cross", "knock", "who", "there", "doctor",
+            "walks", "into", "bar", "why", "did", "the", "duck", "say", "orange", "banana", "glad", "pun",
+            "programmer", "light", "bulb", "change", "cow", "moo", "fish", "water", "dad", "joke", "cat"};
+
+    /**
+     * Jokes shown on one screen of the list, which the adapter binds as it scrolls.
+     */
+    private static final int PAGE_SIZE = 50;
+
+    @Param({"1000", "100000", "1000000", "10000000"})
+    public int size;
+
+    @Param({"memory", "file"})
+    public String storeType;
+
+    private JokeStore store;
+    private File file;
+
+    private final Random random = new Random(42);
+
+    /**
+     * IDs added by the insert benchmark during the current iteration.
+     */
+    private long[] insertedIds = new long[1024];
+    private int insertedCount;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        if ("file".equals(storeType)) {
+            file = File.createTempFile("jokes", ".log");
+            store = new FileJokeStore(file);
+        } else {
+            store = new InMemoryJokeStore();
+        }
+
+        final Random texts = new Random(7);
+        for (int i = 0; i < size; i++) {
+            store.insert(newText(texts), i % 3);
+        }
+    }
+
+    /**
+     * Deletes the jokes the insert benchmark added, so every iteration starts
+     * from the same number of jokes.
+     */
+    @TearDown(Level.Iteration)
+    public void deleteInserted() {
+        for (int i = 0; i < insertedCount; i++) {
+            store.delete(insertedIds[i]);
+        }
+        insertedCount = 0;
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        store.close();
+
+        if (null != file && !file.delete()) {
+            file.deleteOnExit();
+        }
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.Throughput)
+    @OutputTimeUnit(TimeUnit.SECONDS)
+    public long insert() {
+        final long id = store.insert(newText(random), Joke.UNRATED);
+
+        if (insertedCount == insertedIds.length) {
+            insertedIds = Arrays.copyOf(insertedIds, 2 * insertedCount);
+        }
+        insertedIds[insertedCount++] = id;
+
+        return id;
+    }
+
+    @Benchmark
+    public boolean updateRating() {
+        return store.updateRating(randomId(), random.nextInt(3));
+    }
+
+    /**
+     * A page of liked jokes from a random point in the list.
+     */
+    @Benchmark
+    public List<Joke> filterPage() {
+        return store.queryPage(Joke.LIKE, randomId(), PAGE_SIZE);
+    }
+
+    @Benchmark
+    public List<Joke> search() {
+        return store.search(WORDS[random.nextInt(WORDS.length)].substring(0, 3) + " " +
+                WORDS[random.nextInt(WORDS.length)], 20);
+    }
+
+    private long randomId() {
+        return 1 + (long) (random.nextDouble() * size);
+    }
+
+    private static String newText(final Random random) {
+        final StringBuilder text = new StringBuilder();
+        final int words = 6 + random.nextInt(14);
+
+        for (int i = 0; i < words; i++) {
+            if (i > 0) {
+                text.append(' ');
+            }
+            text.append(WORDS[random.nextInt(WORDS.length)]);
+        }
+
+        return text.append('.').toString();
+    }
+
+    /**
+     * Runs the benchmarks and writes their results as JSON.
+     *
+     * @param args
+     *          The path of the results file, then optionally a pattern
+     *          matching the names of the benchmarks to run.
+     */
+    public static void main(final String[] args) throws RunnerException {
+        final Options options = new OptionsBuilder()
+                .include(JokeStoreBenchmark.class.getSimpleName() + "." + (args.length > 1 ? args[1] : ""))
+                .resultFormat(ResultFormatType.JSON)
+                .result(args.length > 0 ? args[0] : "jmh-results.json")
+                .build();
+
+        new Runner(options).run();
+    }
+}
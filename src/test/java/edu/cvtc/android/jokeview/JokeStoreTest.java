@@ -0,0 +1,62 @@
+package edu.cvtc.android.jokeview;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Checks that the plain Java JokeStores agree with SqliteJokeStore where SQLite decides
+ * the behavior, such as a negative limit meaning no limit. Runs on the JVM without Robolectric.
+ */
+public class JokeStoreTest {
+
+    private static final int JOKES = 300;
+
+    @Rule
+    public final TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void inMemoryStore() {
+        checkStore(new InMemoryJokeStore());
+    }
+
+    @Test
+    public void fileStore() throws IOException {
+        final FileJokeStore store = new FileJokeStore(folder.newFile("jokes.log"));
+        try {
+            checkStore(store);
+        } finally {
+            store.close();
+        }
+    }
+
+    private static void checkStore(final JokeStore store) {
+        final long[] liked = new long[JOKES / 3];
+
+        for (int i = 0; i < JOKES; i++) {
+            final long id = store.insert("Joke number " + i + " about a chicken.", Joke.UNRATED);
+            if (0 == i % 3) {
+                liked[i / 3] = id;
+            }
+        }
+
+        assertEquals(liked.length, store.updateRatings(liked, Joke.LIKE));
+        assertEquals(0, store.updateRatings(new long[] {JOKES + 1}, Joke.LIKE));
+
+        // A negative limit is no limit, as it is to SQLite.
+        assertEquals(JOKES, store.queryPage(Joke.SHOW_ALL, 0, -1).size());
+        assertEquals(liked.length, store.queryPage(Joke.LIKE, 0, -1).size());
+        assertEquals(JOKES - liked.length, store.queryPage(Joke.UNRATED, 0, -1).size());
+        assertEquals(JOKES, store.search("chicken", -1).size());
+
+        final List<Joke> page = store.queryPage(Joke.LIKE, liked[9], 10);
+        assertEquals(10, page.size());
+        assertEquals(liked[10], page.get(0).getId());
+        assertEquals(0, store.queryPage(Joke.SHOW_ALL, 0, 0).size());
+    }
+}
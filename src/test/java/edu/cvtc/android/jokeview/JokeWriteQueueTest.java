@@ -0,0 +1,212 @@
+package edu.cvtc.android.jokeview;
+
+import android.content.ContentResolver;
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.net.Uri;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.Robolectric;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Config;
+import org.robolectric.shadows.ShadowLooper;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Pushes writes through JokeWriteQueue into JokeContentProvider, using the SQLite
+ * that Robolectric runs in place of the device's, and checks what each listener
+ * was told against what ended up in the table.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(constants = BuildConfig.class, sdk = 23)
+public class JokeWriteQueueTest {
+
+    private static final int SEED_JOKES = 1200;
+
+    private static final long TIMEOUT_MILLIS = 10000;
+
+    private ContentResolver resolver;
+    private JokeWriteQueue queue;
+
+    private final List<Joke> written = new ArrayList<>();
+    private final List<Boolean> results = new ArrayList<>();
+
+    private final JokeWriteQueue.OnJokeWrittenListener listener = new JokeWriteQueue.OnJokeWrittenListener() {
+        @Override
+        public void onJokeWritten(Joke joke, boolean success) {
+            written.add(joke);
+            results.add(success);
+        }
+    };
+
+    @Before
+    public void setUp() {
+        Robolectric.setupContentProvider(JokeContentProvider.class, JokeContentProvider.AUTHORITY);
+
+        resolver = RuntimeEnvironment.application.getContentResolver();
+        queue = new JokeWriteQueue(resolver);
+
+        final ContentValues[] jokes = new ContentValues[SEED_JOKES];
+        for (int i = 0; i < SEED_JOKES; i++) {
+            jokes[i] = new ContentValues(2);
+            jokes[i].put(JokeTable.KEY_TEXT, "Joke number " + (i + 1) + ".");
+            jokes[i].put(JokeTable.KEY_RATING, Joke.UNRATED);
+        }
+        resolver.bulkInsert(JokeContentProvider.CONTENT_URI, jokes);
+    }
+
+    @After
+    public void tearDown() {
+        queue.shutdown();
+    }
+
+    /**
+     * Rates more jokes than fit in one rating update, so they are split across
+     * several grouped updates for each rating.
+     */
+    @Test
+    public void ratingsAreGroupedAndWritten() {
+        for (int id = 1; id <= SEED_JOKES; id++) {
+            queue.update(new Joke(id, "Joke number " + id + ".", id % 2 == 0 ? Joke.LIKE : Joke.DISLIKE), listener);
+        }
+        queue.flush();
+
+        awaitResults(SEED_JOKES);
+
+        for (final boolean success : results) {
+            assertTrue(success);
+        }
+        for (int id = 1; id <= SEED_JOKES; id++) {
+            assertEquals(id % 2 == 0 ? Joke.LIKE : Joke.DISLIKE, getRating(id));
+        }
+    }
+
+    /**
+     * Only the last rating queued for a joke is written.
+     */
+    @Test
+    public void repeatedRatingsAreMerged() {
+        final Joke joke = new Joke(7, "Joke number 7.", Joke.LIKE);
+
+        queue.update(joke, listener);
+        joke.setRating(Joke.DISLIKE);
+        queue.update(joke, listener);
+        joke.setRating(Joke.LIKE);
+        queue.update(joke, listener);
+        queue.flush();
+
+        awaitResults(3);
+
+        assertFalse(results.contains(false));
+        assertEquals(Joke.LIKE, getRating(7));
+    }
+
+    /**
+     * A rating update that can't find every joke it was given fails for all of them.
+     */
+    @Test
+    public void ratingOfMissingJokeFails() {
+        resolver.delete(getJokeUri(5), null, null);
+
+        queue.update(new Joke(5, "Joke number 5.", Joke.LIKE), listener);
+        queue.update(new Joke(6, "Joke number 6.", Joke.LIKE), listener);
+        queue.flush();
+
+        awaitResults(2);
+
+        assertEquals(2, results.size());
+        assertFalse(results.get(0));
+        assertFalse(results.get(1));
+    }
+
+    /**
+     * A joke rated while its insert is still waiting is rated once the insert commits.
+     */
+    @Test
+    public void ratingOfNewJokeFollowsItsInsert() {
+        final Joke joke = new Joke("A new joke.");
+
+        queue.insert(joke, listener);
+        joke.setRating(Joke.LIKE);
+        queue.update(joke, listener);
+        queue.flush();
+
+        awaitResults(2);
+
+        assertFalse(results.contains(false));
+        assertEquals(SEED_JOKES + 1, joke.getId());
+        assertEquals(Joke.LIKE, getRating(joke.getId()));
+    }
+
+    /**
+     * A rating waiting on an insert when the queue shuts down is still written,
+     * by the shutdown's own commits, and a write queued after shutdown fails.
+     */
+    @Test
+    public void ratingOfNewJokeIsWrittenAtShutdown() {
+        final Joke joke = new Joke("A new joke.");
+
+        queue.insert(joke, listener);
+        joke.setRating(Joke.DISLIKE);
+        queue.update(joke, listener);
+        queue.shutdown();
+
+        final Joke lateJoke = new Joke(9, "Joke number 9.", Joke.LIKE);
+        queue.update(lateJoke, listener);
+
+        awaitResults(3);
+
+        for (int i = 0; i < written.size(); i++) {
+            assertEquals(joke == written.get(i), results.get(i));
+        }
+        assertEquals(Joke.DISLIKE, getRating(joke.getId()));
+        assertEquals(Joke.UNRATED, getRating(9));
+    }
+
+    /**
+     * Runs the listeners posted to the UI thread until there have been a number of them.
+     */
+    private void awaitResults(final int count) {
+        final long deadline = System.currentTimeMillis() + TIMEOUT_MILLIS;
+
+        while (results.size() < count) {
+            if (System.currentTimeMillis() > deadline) {
+                fail("Only " + results.size() + " of " + count + " writes were reported");
+            }
+
+            ShadowLooper.runUiThreadTasksIncludingDelayedTasks();
+            try {
+                Thread.sleep(10);
+            } catch (InterruptedException e) {
+                throw new AssertionError(e);
+            }
+        }
+    }
+
+    private int getRating(final long id) {
+        final Cursor cursor = resolver.query(JokeContentProvider.getPageUri(Joke.SHOW_ALL, id - 1, 1),
+                null, null, null, null);
+        try {
+            assertTrue(cursor.moveToFirst());
+            assertEquals(id, cursor.getLong(JokeTable.INDEX_ID));
+            return cursor.getInt(JokeTable.INDEX_RATING);
+        } finally {
+            cursor.close();
+        }
+    }
+
+    private static Uri getJokeUri(final long id) {
+        return Uri.parse(JokeContentProvider.CONTENT_URI + "/joke/" + id);
+    }
+}
@@ -0,0 +1,75 @@
+package edu.cvtc.android.jokeview;
+
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Latencies in nanoseconds, grouped by name, reported as a table of percentiles
+ * by the tests that measure the provider and the list.
+ */
+class LatencyRecorder {
+
+    private final String title;
+
+    private final Map<String, long[]> samples = new TreeMap<>();
+    private final Map<String, Integer> counts = new TreeMap<>();
+
+    /**
+     * @param title
+     *          The heading of the name column of the report.
+     */
+    LatencyRecorder(final String title) {
+        this.title = title;
+    }
+
+    void record(final String name, final long nanos) {
+        long[] nameSamples = samples.get(name);
+        final int count = counts.containsKey(name) ? counts.get(name) : 0;
+
+        if (null == nameSamples) {
+            nameSamples = new long[64];
+        } else if (count == nameSamples.length) {
+            nameSamples = Arrays.copyOf(nameSamples, 2 * count);
+        }
+
+        nameSamples[count] = nanos;
+        samples.put(name, nameSamples);
+        counts.put(name, count + 1);
+    }
+
+    /**
+     * Returns the mean of the latencies recorded under a name, in nanoseconds.
+     */
+    long getMean(final String name) {
+        final int count = counts.get(name);
+        final long[] nameSamples = samples.get(name);
+
+        long total = 0;
+        for (int i = 0; i < count; i++) {
+            total += nameSamples[i];
+        }
+        return total / count;
+    }
+
+    String report() {
+        final StringBuilder report = new StringBuilder(String.format(Locale.US,
+                "%-30s %8s %10s %10s %10s%n", title, "calls", "mean ms", "p50 ms", "p99 ms"));
+
+        for (final Map.Entry<String, long[]> entry : samples.entrySet()) {
+            final int count = counts.get(entry.getKey());
+            final long[] sorted = Arrays.copyOf(entry.getValue(), count);
+            Arrays.sort(sorted);
+
+            report.append(String.format(Locale.US, "%-30s %8d %10.3f %10.3f %10.3f%n", entry.getKey(), count,
+                    getMean(entry.getKey()) / 1e6, percentile(sorted, 50) / 1e6, percentile(sorted, 99) / 1e6));
+        }
+
+        return report.toString();
+    }
+
+    private static long percentile(final long[] sorted, final int percent) {
+        return sorted[Math.min(sorted.length - 1, (int) Math.ceil(percent / 100.0 * sorted.length) - 1)];
+    }
+}